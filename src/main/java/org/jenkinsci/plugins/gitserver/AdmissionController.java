@@ -0,0 +1,344 @@
+package org.jenkinsci.plugins.gitserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import jenkins.util.SystemProperties;
+
+/**
+ * Limits how many upload-pack and receive-pack run at the same time, so that a clone storm
+ * can't take all the CPU and heap of the controller.
+ *
+ * <p>
+ * Each operation needs a {@link Permit}. There is a global limit and a per-repository limit on the number of
+ * permits handed out. Operations that can't run right away wait in a queue of bounded size, one per repository,
+ * and permits are handed out to the repositories in turn, so that a storm on one repository doesn't starve
+ * the others. An operation that finds the queue full, or waits longer than the timeout, is rejected with
+ * {@link OverloadedException}, which HTTP turns into a 503 and SSH into an error message.
+ *
+ * <p>
+ * This is off by default. A permit is held for the whole transfer, including the time it takes to send the pack
+ * to a slow client, so the limits need to be set with the clients in mind rather than the CPUs of the controller.
+ * HTTP and SSH share the permits, using the same {@linkplain #repositoryKey(String) key} for the same repository.
+ */
+public final class AdmissionController {
+    /**
+     * Allows one operation to run. {@linkplain #close() Close} it when the operation is over.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Queue queue;
+        private boolean released;
+
+        private Permit(Queue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (released) {
+                    return;
+                }
+                released = true;
+                running--;
+                queue.running--;
+                dispatch();
+                if (queue.isIdle()) {
+                    queues.remove(queue.key, queue);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Thrown when an operation can't be admitted.
+     */
+    public static final class OverloadedException extends IOException {
+        private final int retryAfter;
+
+        OverloadedException(String message, int retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * Number of seconds after which the client should try again.
+         */
+        public int getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    private static final class Waiter {
+        final Condition admitted;
+        boolean granted;
+
+        Waiter(Condition admitted) {
+            this.admitted = admitted;
+        }
+    }
+
+    private static final class Queue {
+        final String key;
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        int running;
+        boolean scheduled;
+
+        Queue(String key) {
+            this.key = key;
+        }
+
+        boolean isIdle() {
+            return running == 0 && waiters.isEmpty();
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Repositories with operations running or waiting. Guarded by {@link #lock}.
+     */
+    private final Map<String, Queue> queues = new HashMap<>();
+
+    /**
+     * Repositories with waiters, in the order they get their next permit. Guarded by {@link #lock}.
+     */
+    private final ArrayDeque<Queue> rotation = new ArrayDeque<>();
+
+    private int running;
+    private int queued;
+
+    private final int maxConcurrent;
+    private final int maxPerRepository;
+    private final int maxQueued;
+    private final long timeoutNanos;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyRecorder waitLatency = new LatencyRecorder();
+
+    AdmissionController(int maxConcurrent, int maxPerRepository, int maxQueued, long timeout, TimeUnit unit) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerRepository = maxPerRepository;
+        this.maxQueued = maxQueued;
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    public static AdmissionController get() {
+        return INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Identifies a repository by its path, as seen by SSH and by HTTP below the context path,
+     * such as "workflowLibs.git".
+     */
+    public static String repositoryKey(String path) {
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.endsWith("/") && path.length() > start ? path.length() - 1 : path.length();
+        return path.substring(start, end);
+    }
+
+    /**
+     * Waits until an operation on the given repository may run.
+     *
+     * @param repository
+     *      identifies the repository, for the per-repository limit and fairness.
+     * @throws OverloadedException
+     *      if the queue is full, or if the operation waited too long.
+     */
+    public Permit acquire(String repository) throws OverloadedException, InterruptedException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            Queue q = queues.computeIfAbsent(repository, Queue::new);
+            Waiter w = new Waiter(lock.newCondition());
+            q.waiters.add(w);
+            queued++;
+            schedule(q);
+            dispatch();
+
+            if (!w.granted && queued > maxQueued) {
+                cancel(q, w);
+                throw reject("Too many Git operations are waiting; try again later");
+            }
+
+            long remaining = timeoutNanos;
+            try {
+                while (!w.granted && remaining > 0) {
+                    remaining = w.admitted.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (!w.granted) {
+                    cancel(q, w);
+                    throw e;
+                }
+                Thread.currentThread().interrupt();
+            }
+            if (!w.granted) {
+                cancel(q, w);
+                throw reject("Timed out waiting for other Git operations to complete; try again later");
+            }
+
+            admitted.increment();
+            waitLatency.recordSince(start);
+            return new Permit(q);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands out permits to the waiters, one repository at a time.
+     */
+    private void dispatch() {
+        int skipped = 0;
+        while (running < maxConcurrent && skipped < rotation.size()) {
+            Queue q = rotation.poll();
+            if (q.running >= maxPerRepository) {
+                rotation.add(q);
+                skipped++;
+                continue;
+            }
+
+            Waiter w = q.waiters.poll();
+            w.granted = true;
+            w.admitted.signal();
+            queued--;
+            running++;
+            q.running++;
+            skipped = 0;
+
+            if (q.waiters.isEmpty()) {
+                q.scheduled = false;
+            } else {
+                rotation.add(q);
+            }
+        }
+    }
+
+    private void schedule(Queue q) {
+        if (!q.scheduled) {
+            q.scheduled = true;
+            rotation.add(q);
+        }
+    }
+
+    private void cancel(Queue q, Waiter w) {
+        q.waiters.remove(w);
+        queued--;
+        if (q.waiters.isEmpty() && q.scheduled) {
+            q.scheduled = false;
+            rotation.remove(q);
+        }
+        if (q.isIdle()) {
+            queues.remove(q.key, q);
+        }
+    }
+
+    private OverloadedException reject(String message) {
+        rejected.increment();
+        return new OverloadedException(message, RETRY_AFTER);
+    }
+
+    /**
+     * Number of operations running right now.
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of operations waiting for a permit right now.
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Number of operations that were allowed to run, whether they waited or not.
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * Number of operations turned away because the queue was full or they waited too long.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Time the admitted operations waited for their permit.
+     */
+    public LatencyRecorder getWaitLatency() {
+        return waitLatency;
+    }
+
+    /**
+     * Set to true to limit how many operations run at the same time.
+     */
+    private static final boolean ENABLED =
+            SystemProperties.getBoolean(AdmissionController.class.getName() + ".enabled", false);
+
+    /**
+     * Maximum number of operations running at the same time.
+     */
+    private static final int MAX_CONCURRENT = SystemProperties.getInteger(
+            AdmissionController.class.getName() + ".maxConcurrent",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Maximum number of operations running at the same time on any one repository.
+     * Half of the total by default, so that the slow clients of one repository can't hold all the permits.
+     */
+    private static final int MAX_PER_REPOSITORY = SystemProperties.getInteger(
+            AdmissionController.class.getName() + ".maxPerRepository", Math.max(1, MAX_CONCURRENT / 2));
+
+    /**
+     * Maximum number of operations waiting for their turn. Any more are rejected right away.
+     */
+    private static final int MAX_QUEUED =
+            SystemProperties.getInteger(AdmissionController.class.getName() + ".maxQueued", 100);
+
+    /**
+     * Number of seconds an operation waits for its turn before it's rejected.
+     */
+    private static final int TIMEOUT =
+            SystemProperties.getInteger(AdmissionController.class.getName() + ".timeout", 30);
+
+    /**
+     * Number of seconds rejected HTTP clients are told to wait before trying again.
+     */
+    private static final int RETRY_AFTER =
+            SystemProperties.getInteger(AdmissionController.class.getName() + ".retryAfter", 10);
+
+    private static final AdmissionController INSTANCE =
+            new AdmissionController(MAX_CONCURRENT, MAX_PER_REPOSITORY, MAX_QUEUED, TIMEOUT, TimeUnit.SECONDS);
+}
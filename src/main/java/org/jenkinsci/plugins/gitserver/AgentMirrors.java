@@ -0,0 +1,730 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.storage.pack.PackStatistics;
+import org.eclipse.jgit.transport.AdvertiseRefsHook;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.PreUploadHook;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefFilter;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * Serves clones and fetches from mirrors on designated agents, so that the controller only relays the bytes.
+ *
+ * <p>
+ * Agents that match the {@code label} system property keep a mirror of each repository that the controller
+ * serves from a directory, under {@code git-mirrors} in their root directory. The mirrors are brought up to date
+ * in the background after each push, and whenever a fetch finds none of them current, by pushing all the refs
+ * through {@link ChannelTransport}.
+ *
+ * <p>
+ * A fetch goes to the least busy mirror whose refs are exactly those of the repository on the controller.
+ * The {@link UploadPack} runs on the agent, with the same {@link UploadPackPolicy}, and the controller copies
+ * the bytes between the client and the agent. The ref advertisement for HTTP clients still comes from
+ * the controller. The controller serves the fetch itself, as it does without mirrors, when no mirror is current,
+ * or when the {@link UploadPack} has hooks or a ref filter that can't run on the agent. The post-upload hooks
+ * still run on the controller, with the statistics of the pack that the agent sent.
+ */
+public final class AgentMirrors {
+    private final ConcurrentHashMap<File, Map<String, Mirror>> mirrors = new ConcurrentHashMap<>();
+
+    private final LongAdder relayed = new LongAdder();
+    private final LongAdder relayedBytes = new LongAdder();
+    private final LongAdder servedLocally = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder syncFailures = new LongAdder();
+
+    private final PostReceiveHook refreshHook = (rp, commands) -> refresh(rp.getRepository());
+
+    AgentMirrors() {}
+
+    public static AgentMirrors get() {
+        return INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        return label != null;
+    }
+
+    /**
+     * For tests.
+     */
+    static void setLabel(@CheckForNull String label) {
+        AgentMirrors.label = label;
+    }
+
+    /**
+     * Returns the hook that brings the mirrors up to date after a push.
+     */
+    public PostReceiveHook getRefreshHook() {
+        return refreshHook;
+    }
+
+    /**
+     * Brings the mirrors of the given repository up to date in the background.
+     */
+    public void refresh(Repository db) {
+        File dir = db.getDirectory();
+        if (!isEnabled() || dir == null) {
+            return;
+        }
+        for (Mirror m : mirrorsOf(dir).values()) {
+            m.scheduleSync();
+        }
+    }
+
+    /**
+     * Returns the {@link UploadPack} that serves the fetch from a mirror if one is current,
+     * or the given one otherwise.
+     *
+     * <p>
+     * Call this once the given {@link UploadPack} is completely configured, right before it starts serving.
+     * Closing the returned {@link UploadPack} closes the given one.
+     *
+     * @param gitProtocol
+     *      the {@code Git-Protocol} header or {@code GIT_PROTOCOL} environment variable sent by the client, if any.
+     */
+    public UploadPack route(UploadPack up, @CheckForNull String gitProtocol) {
+        Repository db = up.getRepository();
+        File dir = db.getDirectory();
+        if (!isEnabled() || dir == null || !isRelayable(up)) {
+            return up;
+        }
+
+        Map<String, ObjectId> refs;
+        try {
+            Map<String, Ref> cached = RefAdvertisementCache.get().getRefs(db);
+            refs = idsOf(cached != null ? cached.values() : db.getRefDatabase().getRefs());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to read the refs of " + db);
+            return up;
+        }
+
+        Map<String, Mirror> all = mirrorsOf(dir);
+        Mirror best = null;
+        FilePath bestPath = null;
+        for (Mirror m : all.values()) {
+            if (m.isCurrent(refs) && (best == null || m.active.get() < best.active.get())) {
+                FilePath path = m.getPath();
+                if (path != null) {
+                    best = m;
+                    bestPath = path;
+                }
+            }
+        }
+        if (best == null) {
+            servedLocally.increment();
+            for (Mirror m : all.values()) {
+                if (!m.isCurrent(refs)) {
+                    m.scheduleSync();
+                }
+            }
+            return up;
+        }
+        return new RelayingUploadPack(up, best, bestPath, gitProtocol);
+    }
+
+    /**
+     * Can the given {@link UploadPack} be served elsewhere and still behave the same?
+     *
+     * <p>
+     * Hooks and filters that control what the client gets only exist on the controller,
+     * except for the {@link UploadPackPolicy}, which is sent along.
+     */
+    static boolean isRelayable(UploadPack up) {
+        PreUploadHook hook = up.getPreUploadHook();
+        return up.getRefFilter() == RefFilter.DEFAULT
+                && up.getAdvertiseRefsHook() == AdvertiseRefsHook.DEFAULT
+                && (hook == null || hook == PreUploadHook.NULL || UploadPackPolicy.of(hook) != null);
+    }
+
+    private Map<String, Mirror> mirrorsOf(File dir) {
+        Map<String, Mirror> all = mirrors.computeIfAbsent(dir, d -> new ConcurrentHashMap<>());
+        Set<String> agents = getAgents();
+        all.keySet().retainAll(agents);
+        for (String agent : agents) {
+            all.computeIfAbsent(agent, a -> new Mirror(dir, a));
+        }
+        return all;
+    }
+
+    /**
+     * Names of the agents that keep mirrors.
+     */
+    private static Set<String> getAgents() {
+        Set<String> names = new HashSet<>();
+        Label l = Jenkins.get().getLabel(label);
+        if (l != null) {
+            for (Node n : l.getNodes()) {
+                if (!n.getNodeName().isEmpty()) { // not the built-in node
+                    names.add(n.getNodeName());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Refs to compare the mirrors with. Symbolic refs such as {@code HEAD} are left out.
+     */
+    static Map<String, ObjectId> idsOf(Collection<Ref> refs) {
+        Map<String, ObjectId> ids = new HashMap<>();
+        for (Ref r : refs) {
+            if (!r.isSymbolic() && r.getObjectId() != null) {
+                ids.put(r.getName(), r.getObjectId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Makes the refs of the remote repository exactly the given ones, pushing whatever it misses.
+     */
+    static void push(Repository db, Transport t, Map<String, ObjectId> refs) throws IOException {
+        List<RemoteRefUpdate> updates = new ArrayList<>();
+        for (Map.Entry<String, ObjectId> e : refs.entrySet()) {
+            updates.add(new RemoteRefUpdate(db, (String) null, e.getValue(), e.getKey(), true, null, null));
+        }
+
+        Collection<Ref> remoteRefs;
+        if (updates.isEmpty()) {
+            // JGit refuses to push nothing
+            try (FetchConnection c = t.openFetch()) {
+                remoteRefs = c.getRefs();
+            }
+        } else {
+            PushResult result = t.push(NullProgressMonitor.INSTANCE, updates);
+            check(result);
+            remoteRefs = result.getAdvertisedRefs();
+        }
+
+        List<RemoteRefUpdate> deletions = new ArrayList<>();
+        for (Ref r : remoteRefs) {
+            if (!r.getName().equals(Constants.HEAD) && !refs.containsKey(r.getName())) {
+                deletions.add(new RemoteRefUpdate(db, (String) null, r.getName(), true, null, null));
+            }
+        }
+        if (!deletions.isEmpty()) {
+            check(t.push(NullProgressMonitor.INSTANCE, deletions));
+        }
+    }
+
+    private static void check(PushResult result) throws IOException {
+        for (RemoteRefUpdate u : result.getRemoteUpdates()) {
+            if (u.getStatus() != RemoteRefUpdate.Status.OK && u.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE) {
+                throw new IOException("Failed to update " + u.getRemoteName() + ": " + u.getStatus()
+                        + (u.getMessage() != null ? " (" + u.getMessage() + ")" : ""));
+            }
+        }
+    }
+
+    /**
+     * Copies everything, flushing as it goes, since the Git protocol waits for replies after each flush.
+     *
+     * @return
+     *      number of bytes copied.
+     */
+    static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[ChannelTransport.BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+            out.flush();
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Mirror of one repository on one agent.
+     */
+    private final class Mirror {
+        private final File dir;
+        private final String agent;
+
+        /**
+         * Number of fetches it's serving.
+         */
+        final AtomicInteger active = new AtomicInteger();
+
+        /**
+         * Refs it had after the last successful sync, or null if we don't know.
+         */
+        private volatile Map<String, ObjectId> synced;
+
+        /**
+         * Guarded by {@code this}.
+         */
+        private boolean syncing;
+
+        /**
+         * Set when another sync was asked for while one was running. Guarded by {@code this}.
+         */
+        private boolean pending;
+
+        Mirror(File dir, String agent) {
+            this.dir = dir;
+            this.agent = agent;
+        }
+
+        boolean isCurrent(Map<String, ObjectId> refs) {
+            return refs.equals(synced);
+        }
+
+        /**
+         * Where the mirror is on the agent, or null if the agent is gone or offline.
+         */
+        @CheckForNull
+        FilePath getPath() {
+            Node n = Jenkins.get().getNode(agent);
+            FilePath root = n == null ? null : n.getRootPath();
+            if (root == null || !root.isRemote()) {
+                return null;
+            }
+            return root.child("git-mirrors").child(Util.getDigestOf(dir.getAbsolutePath()));
+        }
+
+        void scheduleSync() {
+            synchronized (this) {
+                if (syncing) {
+                    pending = true;
+                    return;
+                }
+                syncing = true;
+            }
+            SYNC_POOL.execute(this::sync);
+        }
+
+        private void sync() {
+            while (true) {
+                synchronized (this) {
+                    pending = false;
+                }
+                try {
+                    synced = null; // the refs on the agent are in flux until we're done
+                    synced = syncOnce();
+                    syncs.increment();
+                } catch (IOException | RuntimeException e) {
+                    syncFailures.increment();
+                    LOGGER.log(Level.WARNING, e, () -> "Failed to update the mirror of " + dir + " on " + agent);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    synchronized (this) {
+                        syncing = false;
+                    }
+                    return;
+                }
+                synchronized (this) {
+                    if (!pending) {
+                        syncing = false;
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Pushes the current refs, and returns them.
+         */
+        private Map<String, ObjectId> syncOnce() throws IOException, InterruptedException {
+            FilePath path = getPath();
+            if (path == null) {
+                throw new IOException(agent + " is offline");
+            }
+            long start = System.nanoTime();
+            try (Repository db =
+                    new FileRepositoryBuilder().setGitDir(dir).setMustExist(true).build()) {
+                Map<String, ObjectId> refs = idsOf(db.getRefDatabase().getRefs());
+                Ref head = db.exactRef(Constants.HEAD);
+                path.act(new PrepareMirror(head != null && head.isSymbolic() ? head.getTarget().getName() : null));
+                try (Transport t = ChannelTransport.open(db, path)) {
+                    push(db, t, refs);
+                } catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+                LOGGER.log(Level.FINE, "Updated the mirror of {0} on {1} in {2}ms", new Object[] {
+                    dir, agent, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                });
+                return refs;
+            }
+        }
+    }
+
+    /**
+     * Relays the fetch to a mirror, or falls back to the {@link UploadPack} it replaces if the mirror can't be reached.
+     */
+    private final class RelayingUploadPack extends UploadPack {
+        private final UploadPack local;
+        private final Mirror mirror;
+        private final FilePath path;
+        private List<String> extraParameters;
+
+        RelayingUploadPack(UploadPack local, Mirror mirror, FilePath path, @CheckForNull String gitProtocol) {
+            super(local.getRepository());
+            this.local = local;
+            this.mirror = mirror;
+            this.path = path;
+            this.extraParameters = GitServiceSupport.extraParameters(gitProtocol);
+            setBiDirectionalPipe(local.isBiDirectionalPipe());
+            setTimeout(local.getTimeout());
+        }
+
+        @Override
+        public void setExtraParameters(Collection<String> params) {
+            extraParameters = List.copyOf(params);
+            local.setExtraParameters(params);
+        }
+
+        @Override
+        public void upload(InputStream in, OutputStream out, OutputStream messages) throws IOException {
+            local.setBiDirectionalPipe(isBiDirectionalPipe());
+            // the mirror is a bare copy, so the tuning is what was applied on the controller
+            PackTuning tuning = PackTuning.of(local);
+            MirrorUploadTask task = new MirrorUploadTask(
+                    isBiDirectionalPipe(),
+                    getTimeout(),
+                    extraParameters,
+                    local.getRequestPolicy(),
+                    UploadPackPolicy.of(local.getPreUploadHook()),
+                    tuning != null ? tuning : PackTuning.forRepository(getRepository()));
+            Future<RelayedStatistics> result;
+            try {
+                result = path.actAsync(task);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, e, () -> "Failed to reach the mirror of " + getRepository() + " on " + path);
+                servedLocally.increment();
+                local.upload(in, out, messages);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            relayed.increment();
+            mirror.active.incrementAndGet();
+            OutputStream toAgent = ChannelTransport.wrap(task.l2r.getOut(), task.bufferSize, task.compression);
+            InputStream fromAgent = ChannelTransport.wrap(task.r2l.getIn(), task.bufferSize, task.compression);
+            Future<?> requests = PUMP_POOL.submit(() -> {
+                try {
+                    copy(in, toAgent);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Stopped relaying requests", e);
+                } finally {
+                    IOUtils.closeQuietly(toAgent);
+                }
+            });
+            RelayedStatistics statistics;
+            try {
+                relayedBytes.add(copy(fromAgent, out));
+                statistics = result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to serve " + getRepository() + " from " + path, e.getCause());
+            } finally {
+                // the client may keep its end open after the pack, which is no reason to keep a thread waiting
+                requests.cancel(true);
+                IOUtils.closeQuietly(fromAgent);
+                mirror.active.decrementAndGet();
+            }
+            if (statistics != null) {
+                // the hooks of the controller, such as the metrics, count the fetch as if it had served it
+                local.getPostUploadHook().onPostUpload(statistics.toPackStatistics());
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                super.close();
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    /**
+     * Runs {@link UploadPack} on the mirror, as configured on the controller, and returns what it sent.
+     */
+    private static final class MirrorUploadTask extends MasterToSlaveFileCallable<RelayedStatistics> {
+        private static final long serialVersionUID = 1L;
+
+        final Pipe l2r = Pipe.createLocalToRemote();
+        final Pipe r2l = Pipe.createRemoteToLocal();
+        final int bufferSize = ChannelTransport.BUFFER_SIZE;
+        final boolean compression = ChannelTransport.COMPRESSION;
+        private final boolean biDirectionalPipe;
+        private final int timeout;
+        private final List<String> extraParameters;
+
+        @CheckForNull
+        private final UploadPack.RequestPolicy requestPolicy;
+
+        @CheckForNull
+        private final UploadPackPolicy policy;
+
+        private final PackTuning packTuning;
+
+        MirrorUploadTask(
+                boolean biDirectionalPipe,
+                int timeout,
+                List<String> extraParameters,
+                @CheckForNull UploadPack.RequestPolicy requestPolicy,
+                @CheckForNull UploadPackPolicy policy,
+                PackTuning packTuning) {
+            this.biDirectionalPipe = biDirectionalPipe;
+            this.timeout = timeout;
+            this.extraParameters = extraParameters;
+            this.requestPolicy = requestPolicy;
+            this.policy = policy;
+            this.packTuning = packTuning;
+        }
+
+        @Override
+        @CheckForNull
+        public RelayedStatistics invoke(File f, VirtualChannel channel) throws IOException {
+            InputStream in = ChannelTransport.wrap(l2r.getIn(), bufferSize, compression);
+            OutputStream out = ChannelTransport.wrap(r2l.getOut(), bufferSize, compression);
+            try (Repository repo = ChannelTransport.openRepository(f);
+                    UploadPack up = new UploadPack(repo)) {
+                up.setBiDirectionalPipe(biDirectionalPipe);
+                up.setTimeout(timeout);
+                packTuning.apply(up);
+                if (policy != null) {
+                    policy.apply(up);
+                }
+                if (requestPolicy != null) {
+                    up.setRequestPolicy(requestPolicy);
+                }
+                if (!extraParameters.isEmpty()) {
+                    up.setExtraParameters(extraParameters);
+                }
+                up.upload(in, out, null);
+                // no statistics if the client didn't want anything
+                PackStatistics statistics = up.getStatistics();
+                return statistics != null ? new RelayedStatistics(statistics) : null;
+            } finally {
+                IOUtils.closeQuietly(in);
+                // closing also finishes the compressed stream, if any
+                IOUtils.closeQuietly(out);
+            }
+        }
+    }
+
+    /**
+     * The {@link PackStatistics} of a relayed fetch, sent back from the agent.
+     *
+     * <p>
+     * {@link PackStatistics} itself isn't serializable, and the objects and packs it refers to only exist
+     * on the agent, so this only keeps the counts and the times.
+     */
+    static final class RelayedStatistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long wants;
+        private final long haves;
+        private final long timeNegotiating;
+        private final long totalObjects;
+        private final long bitmapIndexMisses;
+        private final long totalDeltas;
+        private final long reusedObjects;
+        private final long reusedDeltas;
+        private final long totalBytes;
+        private final long thinPackBytes;
+        private final long timeCounting;
+        private final long timeSearchingForReuse;
+        private final long timeSearchingForSizes;
+        private final long timeCompressing;
+        private final long timeWriting;
+
+        RelayedStatistics(PackStatistics s) {
+            wants = s.getWants();
+            haves = s.getHaves();
+            timeNegotiating = s.getTimeNegotiating();
+            totalObjects = s.getTotalObjects();
+            bitmapIndexMisses = s.getBitmapIndexMisses();
+            totalDeltas = s.getTotalDeltas();
+            reusedObjects = s.getReusedObjects();
+            reusedDeltas = s.getReusedDeltas();
+            totalBytes = s.getTotalBytes();
+            thinPackBytes = s.getThinPackBytes();
+            timeCounting = s.getTimeCounting();
+            timeSearchingForReuse = s.getTimeSearchingForReuse();
+            timeSearchingForSizes = s.getTimeSearchingForSizes();
+            timeCompressing = s.getTimeCompressing();
+            timeWriting = s.getTimeWriting();
+        }
+
+        PackStatistics toPackStatistics() {
+            PackStatistics.Accumulator a = new PackStatistics.Accumulator();
+            a.wants = wants;
+            a.haves = haves;
+            a.timeNegotiating = timeNegotiating;
+            a.totalObjects = totalObjects;
+            a.bitmapIndexMisses = bitmapIndexMisses;
+            a.totalDeltas = totalDeltas;
+            a.reusedObjects = reusedObjects;
+            a.reusedDeltas = reusedDeltas;
+            a.totalBytes = totalBytes;
+            a.thinPackBytes = thinPackBytes;
+            a.timeCounting = timeCounting;
+            a.timeSearchingForReuse = timeSearchingForReuse;
+            a.timeSearchingForSizes = timeSearchingForSizes;
+            a.timeCompressing = timeCompressing;
+            a.timeWriting = timeWriting;
+            a.reusedPacks = List.of();
+            return new PackStatistics(a);
+        }
+    }
+
+    /**
+     * Creates the mirror if it doesn't exist yet, and points its {@code HEAD} where the controller's points.
+     */
+    private static final class PrepareMirror extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        @CheckForNull
+        private final String head;
+
+        PrepareMirror(@CheckForNull String head) {
+            this.head = head;
+        }
+
+        @Override
+        public Void invoke(File f, VirtualChannel channel) throws IOException {
+            try (Repository repo = ChannelTransport.openRepository(f)) {
+                if (!repo.getObjectDatabase().exists()) {
+                    repo.create();
+                }
+                if (head != null) {
+                    RefUpdate u = repo.updateRef(Constants.HEAD);
+                    u.disableRefLog();
+                    u.link(head);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Number of fetches relayed to a mirror since Jenkins started.
+     */
+    public long getRelayed() {
+        return relayed.sum();
+    }
+
+    /**
+     * Number of bytes sent to clients from the mirrors since Jenkins started.
+     */
+    public long getRelayedBytes() {
+        return relayedBytes.sum();
+    }
+
+    /**
+     * Number of fetches the controller served itself because no mirror was current or reachable.
+     */
+    public long getServedLocally() {
+        return servedLocally.sum();
+    }
+
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    public long getSyncFailures() {
+        return syncFailures.sum();
+    }
+
+    /**
+     * Label expression of the agents that keep mirrors. Mirrors are off if unset.
+     */
+    @CheckForNull
+    private static final String LABEL =
+            Util.fixEmptyAndTrim(SystemProperties.getString(AgentMirrors.class.getName() + ".label"));
+
+    @CheckForNull
+    private static volatile String label = LABEL;
+
+    /**
+     * Number of threads updating the mirrors.
+     */
+    private static final int THREADS = SystemProperties.getInteger(AgentMirrors.class.getName() + ".threads", 2);
+
+    private static final ThreadPoolExecutor SYNC_POOL = new ThreadPoolExecutor(
+            THREADS,
+            THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Git mirror update"));
+
+    /**
+     * Copies the requests of the clients to the mirrors. Each fetch needs its thread for as long as it lasts,
+     * so nothing is queued; {@link AdmissionController} can limit how many fetches run.
+     */
+    private static final ThreadPoolExecutor PUMP_POOL = new ThreadPoolExecutor(
+            0,
+            Integer.MAX_VALUE,
+            60,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Git mirror relay"));
+
+    static {
+        SYNC_POOL.allowCoreThreadTimeOut(true);
+    }
+
+    private static final AgentMirrors INSTANCE = new AgentMirrors();
+
+    private static final Logger LOGGER = Logger.getLogger(AgentMirrors.class.getName());
+}
@@ -0,0 +1,390 @@
+package org.jenkinsci.plugins.gitserver;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Serves pack requests without holding on to a container thread for the whole transfer.
+ *
+ * <p>
+ * The request is put in asynchronous mode, and the pack is generated on a bounded pool of our own.
+ * What it writes goes through a small queue of buffers, which the container drains with non-blocking I/O
+ * whenever the client can take more. When a slow client lets the queue fill up, the pack generation
+ * waits, so memory use stays bounded and the container threads are free to serve other requests.
+ *
+ * <p>
+ * A waiting pack generation still holds its thread of the pool though, so as many slow clients as there are
+ * threads hold up everyone else, whose requests wait in the queue of the pool. Past a bound, further requests
+ * are turned away with a 503, like {@link AdmissionController} does, rather than holding on to connections
+ * for an unbounded time. Raise the number of threads when many clients are slow, since they mostly wait.
+ *
+ * <p>
+ * The pack generation runs with the {@link Authentication} of the request, but without the request
+ * being the current Stapler request. When {@link PackResponseCache} is enabled too, it runs on the pool
+ * as well, in front of the pack generation, so requests waiting for an identical one hold a thread too,
+ * although only for a few seconds.
+ */
+final class AsyncPackService {
+    private AsyncPackService() {}
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * For tests.
+     */
+    static void setEnabled(boolean enabled) {
+        AsyncPackService.enabled = enabled;
+    }
+
+    /**
+     * Has {@code dispatcher} serve the request on the pool, or right here if the container can't do asynchronous I/O.
+     */
+    static void service(HttpServletRequest req, HttpServletResponse rsp, PackResponseCache.Dispatcher dispatcher)
+            throws IOException, ServletException {
+        if (!req.isAsyncSupported()) {
+            dispatcher.service(req, rsp);
+            return;
+        }
+
+        service(POOL, req, rsp, dispatcher);
+    }
+
+    static void service(
+            ThreadPoolExecutor pool,
+            HttpServletRequest req,
+            HttpServletResponse rsp,
+            PackResponseCache.Dispatcher dispatcher)
+            throws IOException {
+        AsyncContext ctx = req.startAsync(req, rsp);
+        ctx.setTimeout(0); // as long as it takes, like it does without asynchronous mode
+        NonBlockingOutput out = new NonBlockingOutput(ctx, rsp.getOutputStream());
+        Authentication auth = Jenkins.getAuthentication2();
+        try {
+            pool.execute(() -> run(req, rsp, out, auth, dispatcher));
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, e, () -> "Too many pack requests waiting, turning away " + req.getRequestURI());
+            try {
+                rsp.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+                rsp.sendError(
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Too many Git operations are waiting to be served, try again later");
+            } finally {
+                ctx.complete();
+            }
+        }
+    }
+
+    private static void run(
+            HttpServletRequest req,
+            HttpServletResponse rsp,
+            NonBlockingOutput out,
+            Authentication auth,
+            PackResponseCache.Dispatcher dispatcher) {
+        Response wrapped = new Response(rsp, out);
+        try (ACLContext acl = ACL.as2(auth)) {
+            dispatcher.service(req, wrapped);
+        } catch (IOException | ServletException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to serve " + req.getRequestURI());
+            if (!rsp.isCommitted() && !out.hasWritten()) {
+                try {
+                    rsp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } catch (IOException | IllegalStateException x) {
+                    e.addSuppressed(x);
+                }
+            }
+        } finally {
+            wrapped.finish();
+        }
+    }
+
+    /**
+     * Pool of {@code threads} threads, which rejects tasks once {@code queue} of them are waiting.
+     */
+    static ThreadPoolExecutor newPool(int threads, int queue) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queue),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Git pack generation"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Routes everything written to the response through {@link NonBlockingOutput}.
+     */
+    private static final class Response extends HttpServletResponseWrapper {
+        private final NonBlockingOutput out;
+        private PrintWriter writer;
+
+        Response(HttpServletResponse rsp, NonBlockingOutput out) {
+            super(rsp);
+            this.out = out;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            out.flush();
+        }
+
+        void finish() {
+            if (writer != null) {
+                writer.flush();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * The pack generation writes into this stream, which hands full buffers over to the container.
+     *
+     * <p>
+     * The container side is {@link #drain()}, called whenever the container says the client can take more,
+     * and whenever the writer adds a buffer while the container side had run out of them.
+     */
+    static final class NonBlockingOutput extends ServletOutputStream implements WriteListener {
+        private static final byte[] END = new byte[0];
+
+        private final AsyncContext ctx;
+        private final ServletOutputStream out;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(BUFFERS);
+
+        private byte[] buf = new byte[BUFFER_SIZE];
+        private int count;
+        private boolean written;
+        private boolean closed;
+
+        /**
+         * Set when the client is gone, so the writer should stop.
+         */
+        private volatile Throwable failure;
+
+        /**
+         * Guarded by {@code this}.
+         */
+        private boolean completed;
+
+        NonBlockingOutput(AsyncContext ctx, ServletOutputStream out) {
+            this.ctx = ctx;
+            this.out = out;
+            out.setWriteListener(this);
+        }
+
+        boolean hasWritten() {
+            return written;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                handOver();
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    handOver();
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Sends what was written so far, which matters for the progress messages of the side-band.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                handOver();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flush();
+                enqueue(END);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Client went away", e);
+            }
+            drain();
+        }
+
+        private void handOver() throws IOException {
+            byte[] b = count == buf.length ? buf : Arrays.copyOf(buf, count);
+            enqueue(b);
+            written = true;
+            buf = new byte[BUFFER_SIZE];
+            count = 0;
+            drain();
+        }
+
+        /**
+         * Waits for room in the queue, which is where a slow client slows the pack generation down.
+         */
+        private void enqueue(byte[] b) throws IOException {
+            try {
+                while (!queue.offer(b, 1, TimeUnit.SECONDS)) {
+                    checkFailure();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkFailure();
+        }
+
+        private void checkFailure() throws IOException {
+            Throwable t = failure;
+            if (t != null) {
+                throw new IOException("Failed to write the response", t);
+            }
+        }
+
+        /**
+         * Writes as many buffers as the container takes without blocking.
+         */
+        synchronized void drain() {
+            if (completed) {
+                return;
+            }
+            try {
+                while (out.isReady()) {
+                    byte[] b = queue.poll();
+                    if (b == null) {
+                        return; // the writer will call us again when it has more
+                    }
+                    if (b == END) {
+                        completed = true;
+                        ctx.complete();
+                        return;
+                    }
+                    out.write(b);
+                }
+            } catch (IOException | RuntimeException e) {
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            failure = t;
+            queue.clear();
+            if (!completed) {
+                completed = true;
+                ctx.complete();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Set to true to generate packs for HTTP clients on a pool of our own, and send them with non-blocking I/O.
+     */
+    private static final boolean ENABLED =
+            SystemProperties.getBoolean(AsyncPackService.class.getName() + ".enabled", false);
+
+    private static volatile boolean enabled = ENABLED;
+
+    /**
+     * Number of threads generating packs for HTTP clients. Each slow client holds one for the whole transfer.
+     */
+    private static final int THREADS = SystemProperties.getInteger(
+            AsyncPackService.class.getName() + ".threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Number of buffers that can wait for a client to take them, per response.
+     */
+    private static final int BUFFERS = SystemProperties.getInteger(AsyncPackService.class.getName() + ".buffers", 16);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Number of requests that can wait for a thread, beyond which they get a 503.
+     */
+    private static final int QUEUE = SystemProperties.getInteger(AsyncPackService.class.getName() + ".queue", 100);
+
+    /**
+     * Number of seconds clients turned away are told to wait before trying again.
+     */
+    private static final int RETRY_AFTER =
+            SystemProperties.getInteger(AsyncPackService.class.getName() + ".retryAfter", 10);
+
+    /**
+     * Generates the packs.
+     */
+    private static final ThreadPoolExecutor POOL = newPool(THREADS, QUEUE);
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncPackService.class.getName());
+}
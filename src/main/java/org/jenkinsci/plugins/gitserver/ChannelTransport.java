@@ -1,14 +1,38 @@
 package org.jenkinsci.plugins.gitserver;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.FilePath;
 import hudson.remoting.Pipe;
 import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
@@ -27,11 +51,23 @@ import org.eclipse.jgit.transport.UploadPack;
 /**
  * {@link Transport} implementation across pipes.
  *
+ * <p>
+ * Both ends buffer the pipes with {@link #setBufferSize(int)} bytes, so that pack data crosses the
+ * channel in large chunks, and can optionally {@linkplain #setCompression(boolean) compress} the streams.
+ * These settings are sent along with each transfer, so the agent always uses the same ones as the controller.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class ChannelTransport extends Transport implements PackTransport {
     private final FilePath remoteRepository;
 
+    @CheckForNull
+    private final Session session;
+
+    private int bufferSize = BUFFER_SIZE;
+    private boolean compression = COMPRESSION;
+    private PackTuning packTuning = PackTuning.getDefault();
+
     public static Transport open(Repository local, FilePath remoteRepository)
             throws NotSupportedException, URISyntaxException, TransportException {
         if (remoteRepository.isRemote()) return new ChannelTransport(local, remoteRepository);
@@ -39,52 +75,110 @@ public class ChannelTransport extends Transport implements PackTransport {
     }
 
     public ChannelTransport(Repository local, FilePath remoteRepository) throws URISyntaxException {
+        this(local, remoteRepository, null);
+    }
+
+    private ChannelTransport(Repository local, FilePath remoteRepository, @CheckForNull Session session)
+            throws URISyntaxException {
         super(local, new URIish("channel:" + remoteRepository.getRemote()));
         this.remoteRepository = remoteRepository;
+        this.session = session;
+    }
+
+    /**
+     * Sets the size of the buffers on both ends of the pipes.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets whether the streams are compressed, which pays off on slow links to agents.
+     *
+     * <p>
+     * Objects in pack files are already compressed individually, so this mostly helps with
+     * the ref advertisement, the negotiation, and packs that are sent without deltas.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets how the agent builds the packs it sends on fetch, for whatever the configuration of the repository
+     * on the agent doesn't set. This defaults to the {@linkplain PackTuning#getDefault() defaults} of the controller.
+     */
+    public void setPackTuning(PackTuning packTuning) {
+        this.packTuning = packTuning;
+    }
+
+    public PackTuning getPackTuning() {
+        return packTuning;
     }
 
     @Override
     public FetchConnection openFetch() throws NotSupportedException, TransportException {
-        final Pipe l2r = Pipe.createLocalToRemote();
-        final Pipe r2l = Pipe.createRemoteToLocal();
-
+        Connection c = connect(FETCH);
         try {
-            remoteRepository.actAsync(new GitFetchTask(l2r, r2l));
-        } catch (IOException e) {
-            throw new TransportException("Failed to open a fetch connection", e);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new TransportException("Failed to open a fetch connection", e);
+            return new BasePackFetchConnection(this) {
+                {
+                    init(c.in, c.out);
+                    readAdvertisedRefs();
+                }
+            };
+        } catch (TransportException | RuntimeException e) {
+            c.abort();
+            throw e;
         }
-
-        return new BasePackFetchConnection(this) {
-            {
-                init(new BufferedInputStream(r2l.getIn()), new BufferedOutputStream(l2r.getOut()));
-                readAdvertisedRefs();
-            }
-        };
     }
 
     @Override
     public PushConnection openPush() throws NotSupportedException, TransportException {
+        Connection c = connect(PUSH);
+        try {
+            return new BasePackPushConnection(this) {
+                {
+                    init(c.in, c.out);
+                    readAdvertisedRefs();
+                }
+            };
+        } catch (TransportException | RuntimeException e) {
+            c.abort();
+            throw e;
+        }
+    }
+
+    private Connection connect(int op) throws TransportException {
+        if (session != null) {
+            return session.begin(op, bufferSize, compression, packTuning);
+        }
+
         final Pipe l2r = Pipe.createLocalToRemote();
         final Pipe r2l = Pipe.createRemoteToLocal();
 
+        String what = op == FETCH ? "fetch" : "push";
         try {
-            remoteRepository.actAsync(new GitPushTask(l2r, r2l));
+            remoteRepository.actAsync(
+                    op == FETCH
+                            ? new GitFetchTask(l2r, r2l, bufferSize, compression, packTuning)
+                            : new GitPushTask(l2r, r2l, bufferSize, compression));
         } catch (IOException e) {
-            throw new TransportException("Failed to open a fetch connection", e);
+            throw new TransportException("Failed to open a " + what + " connection", e);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            throw new TransportException("Failed to open a fetch connection", e);
+            throw new TransportException("Failed to open a " + what + " connection", e);
         }
-
-        return new BasePackPushConnection(this) {
-            {
-                init(new BufferedInputStream(r2l.getIn()), new BufferedOutputStream(l2r.getOut()));
-                readAdvertisedRefs();
-            }
-        };
+        return new Connection(wrap(r2l.getIn(), bufferSize, compression), wrap(l2r.getOut(), bufferSize, compression));
     }
 
     @Override
@@ -92,45 +186,616 @@ public class ChannelTransport extends Transport implements PackTransport {
         // no-op
     }
 
-    private static class GitFetchTask extends MasterToSlaveFileCallable<Void> {
+    /**
+     * Starts a remote call that serves any number of fetches and pushes to the given repository,
+     * one after the other, sparing the round trips and the agent-side setup of a remote call for each of them.
+     *
+     * <pre>
+     * try (ChannelTransport.Session s = ChannelTransport.openSession(workspace)) {
+     *     try (Transport t = s.open(local)) {
+     *         t.fetch(monitor, refSpecs);
+     *     }
+     *     ...
+     * }
+     * </pre>
+     */
+    public static Session openSession(FilePath remoteRepository) throws IOException, InterruptedException {
+        return new Session(remoteRepository);
+    }
+
+    /**
+     * Both ends of the Git protocol on this side.
+     */
+    private static final class Connection {
+        final InputStream in;
+        final OutputStream out;
+
+        Connection(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        void abort() {
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * A remote call that runs a series of fetches and pushes.
+     *
+     * <p>
+     * Operations share one pair of pipes, so each of them is sent as a header followed by
+     * {@linkplain FramedOutputStream frames} in both directions, until both sides have closed their stream.
+     * Only one operation runs at a time; others wait for their turn. Once the pipes fail, or the remote call ends
+     * while an operation still holds the session, the session is over, and the operations waiting fail instead.
+     *
+     * @see ChannelTransport#openSession(FilePath)
+     */
+    public static final class Session implements Closeable {
+        private final FilePath remoteRepository;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final Future<Void> task;
+        private boolean busy;
+        private boolean closed;
+
+        /**
+         * Set once the pipes can't be used anymore.
+         */
+        private boolean broken;
+
+        private Session(FilePath remoteRepository) throws IOException, InterruptedException {
+            this.remoteRepository = remoteRepository;
+            Pipe l2r = Pipe.createLocalToRemote();
+            Pipe r2l = Pipe.createRemoteToLocal();
+            this.task = remoteRepository.actAsync(new GitSessionTask(l2r, r2l));
+            this.out = new DataOutputStream(new BufferedOutputStream(new FailureDetectingOutputStream(l2r.getOut())));
+            this.in = new DataInputStream(new BufferedInputStream(new FailureDetectingInputStream(r2l.getIn())));
+        }
+
+        /**
+         * Releases the session, whether or not the current operation is done with it, since it can't go on anyway.
+         */
+        private synchronized void broken() {
+            broken = true;
+            busy = false;
+            notifyAll();
+        }
+
+        /**
+         * Creates a {@link Transport} that runs its operations within this session.
+         */
+        public ChannelTransport open(Repository local) throws URISyntaxException {
+            return new ChannelTransport(local, remoteRepository, this);
+        }
+
+        synchronized Connection begin(int op, int bufferSize, boolean compression, PackTuning packTuning)
+                throws TransportException {
+            try {
+                while (busy && !closed && !broken) {
+                    wait(TimeUnit.SECONDS.toMillis(1));
+                    if (task.isDone()) {
+                        broken(); // the current operation won't ever be done
+                    }
+                }
+                if (closed) {
+                    throw new TransportException("Session to " + remoteRepository.getRemote() + " is closed");
+                }
+                if (broken) {
+                    throw new TransportException("Session to " + remoteRepository.getRemote() + " failed");
+                }
+                out.write(op);
+                out.writeInt(bufferSize);
+                out.writeBoolean(compression);
+                packTuning.write(out);
+                out.flush();
+                busy = true;
+            } catch (IOException e) {
+                throw new TransportException("Failed to start an operation on " + remoteRepository.getRemote(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransportException("Interrupted while waiting for " + remoteRepository.getRemote(), e);
+            }
+
+            // the operation is over once both streams are closed
+            Runnable done = new Runnable() {
+                private int open = 2;
+
+                @Override
+                public void run() {
+                    synchronized (Session.this) {
+                        if (--open == 0) {
+                            busy = false;
+                            Session.this.notifyAll();
+                        }
+                    }
+                }
+            };
+            return new Connection(
+                    wrap(new FramedInputStream(in, done), bufferSize, compression),
+                    wrap(new FramedOutputStream(out, done), bufferSize, compression));
+        }
+
+        /**
+         * Waits for the current operation, if any, then ends the remote call.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    while (busy) {
+                        wait(TimeUnit.SECONDS.toMillis(1));
+                        if (task.isDone()) {
+                            broken();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    closed = true;
+                    notifyAll();
+                }
+                try {
+                    if (!broken) {
+                        out.write(END);
+                        out.flush();
+                    }
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+            }
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException("Session to " + remoteRepository.getRemote() + " failed", e.getCause());
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        /**
+         * Tells the session when the pipe from the agent fails or ends, which it only does after {@link #END}.
+         */
+        private final class FailureDetectingInputStream extends FilterInputStream {
+            FailureDetectingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    return check(super.read());
+                } catch (IOException e) {
+                    broken();
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return check(super.read(b, off, len));
+                } catch (IOException e) {
+                    broken();
+                    throw e;
+                }
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                try {
+                    return super.skip(n);
+                } catch (IOException e) {
+                    broken();
+                    throw e;
+                }
+            }
+
+            private int check(int n) {
+                if (n < 0) {
+                    broken();
+                }
+                return n;
+            }
+        }
+
+        /**
+         * Tells the session when the pipe to the agent fails.
+         */
+        private final class FailureDetectingOutputStream extends FilterOutputStream {
+            FailureDetectingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    broken();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    broken();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    broken();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a stream as length-prefixed frames on top of another one, and ends it with an empty frame
+     * on {@link #close()}, leaving the underlying stream open for whatever comes next.
+     */
+    static final class FramedOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final Runnable onClose;
+        private boolean closed;
+
+        FramedOutputStream(DataOutputStream out, Runnable onClose) {
+            this.out = out;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len > 0) {
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.writeInt(0);
+                out.flush();
+            } finally {
+                onClose.run();
+            }
+        }
+    }
+
+    /**
+     * Reads what {@link FramedOutputStream} writes. {@link #close()} skips whatever hasn't been read,
+     * so that the underlying stream is positioned right after the end of this one.
+     */
+    static final class FramedInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Runnable onClose;
+        private int remaining;
+        private boolean eof;
+        private boolean closed;
+
+        FramedInputStream(DataInputStream in, Runnable onClose) {
+            this.in = in;
+            this.onClose = onClose;
+        }
+
+        private boolean nextFrame() throws IOException {
+            while (remaining == 0 && !eof) {
+                remaining = in.readInt();
+                eof = remaining == 0;
+            }
+            return !eof;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextFrame()) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("Unexpected end of frame");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(remaining, in.available());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            try {
+                while (nextFrame()) {
+                    int n = in.skipBytes(remaining);
+                    if (n == 0 && in.read() < 0) {
+                        throw new EOFException("Unexpected end of frame");
+                    }
+                    remaining -= Math.max(n, 1);
+                }
+            } finally {
+                closed = true;
+                onClose.run();
+            }
+        }
+    }
+
+    /**
+     * Buffers, and optionally decompresses, one end of a pipe.
+     *
+     * <p>
+     * {@link InflaterInputStream} has its own buffer. It mustn't go under a {@link BufferedInputStream}, which keeps
+     * reading as long as {@link InflaterInputStream#available()} is positive, which it is until the end of the stream,
+     * and so would wait for more than what the other side flushed.
+     */
+    static InputStream wrap(InputStream in, int bufferSize, boolean compression) {
+        if (compression) {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, bufferSize) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        return new BufferedInputStream(in, bufferSize);
+    }
+
+    /**
+     * Buffers, and optionally compresses, one end of a pipe.
+     *
+     * <p>
+     * The compressed stream is flushed with {@link Deflater#SYNC_FLUSH}, so that every flush of the Git protocol
+     * still gets through to the other side immediately.
+     */
+    static OutputStream wrap(OutputStream out, int bufferSize, boolean compression) {
+        if (compression) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            out = new DeflaterOutputStream(out, deflater, bufferSize, true) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+        return new BufferedOutputStream(out, bufferSize);
+    }
+
+    private abstract static class GitTask extends MasterToSlaveFileCallable<Void> {
         private final Pipe l2r;
         private final Pipe r2l;
+        private final int bufferSize;
+        private final boolean compression;
 
-        public GitFetchTask(Pipe l2r, Pipe r2l) {
+        protected GitTask(Pipe l2r, Pipe r2l, int bufferSize, boolean compression) {
             this.l2r = l2r;
             this.r2l = r2l;
+            this.bufferSize = bufferSize;
+            this.compression = compression;
         }
 
         public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
-            try (Repository repo = new FileRepositoryBuilder().setWorkTree(f).build()) {
-                final UploadPack rp = new UploadPack(repo);
-                rp.upload(new BufferedInputStream(l2r.getIn()), new BufferedOutputStream(r2l.getOut()), null);
+            InputStream in = wrap(l2r.getIn(), bufferSize, compression);
+            OutputStream out = wrap(r2l.getOut(), bufferSize, compression);
+            try (Repository repo = openRepository(f)) {
+                run(repo, in, out);
                 return null;
             } finally {
-                IOUtils.closeQuietly(l2r.getIn());
-                IOUtils.closeQuietly(r2l.getOut());
+                IOUtils.closeQuietly(in);
+                // closing also finishes the compressed stream, if any
+                IOUtils.closeQuietly(out);
             }
         }
+
+        protected abstract void run(Repository repo, InputStream in, OutputStream out) throws IOException;
+    }
+
+    private static class GitFetchTask extends GitTask {
+        private final PackTuning packTuning;
+
+        public GitFetchTask(Pipe l2r, Pipe r2l, int bufferSize, boolean compression, PackTuning packTuning) {
+            super(l2r, r2l, bufferSize, compression);
+            this.packTuning = packTuning;
+        }
+
+        @Override
+        protected void run(Repository repo, InputStream in, OutputStream out) throws IOException {
+            upload(repo, in, out, packTuning);
+        }
     }
 
-    private static class GitPushTask extends MasterToSlaveFileCallable<Void> {
+    private static class GitPushTask extends GitTask {
+        public GitPushTask(Pipe l2r, Pipe r2l, int bufferSize, boolean compression) {
+            super(l2r, r2l, bufferSize, compression);
+        }
+
+        @Override
+        protected void run(Repository repo, InputStream in, OutputStream out) throws IOException {
+            receive(repo, in, out);
+        }
+    }
+
+    /**
+     * Remote end of a {@link Session}.
+     */
+    private static class GitSessionTask extends MasterToSlaveFileCallable<Void> {
         private final Pipe l2r;
         private final Pipe r2l;
 
-        public GitPushTask(Pipe l2r, Pipe r2l) {
+        public GitSessionTask(Pipe l2r, Pipe r2l) {
             this.l2r = l2r;
             this.r2l = r2l;
         }
 
         public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
-            try (Repository repo = new FileRepositoryBuilder().setWorkTree(f).build()) {
-                final ReceivePack rp = new ReceivePack(repo);
-                rp.receive(new BufferedInputStream(l2r.getIn()), new BufferedOutputStream(r2l.getOut()), null);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(l2r.getIn()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(r2l.getOut()));
+            try {
+                int op;
+                while ((op = in.read()) != END && op != -1) {
+                    int bufferSize = in.readInt();
+                    boolean compression = in.readBoolean();
+                    PackTuning packTuning = PackTuning.read(in);
+                    Runnable nop = () -> {};
+                    InputStream pin = wrap(new FramedInputStream(in, nop), bufferSize, compression);
+                    OutputStream pout = wrap(new FramedOutputStream(out, nop), bufferSize, compression);
+                    try (Repository repo = openRepository(f)) {
+                        if (op == FETCH) {
+                            upload(repo, pin, pout, packTuning);
+                        } else {
+                            receive(repo, pin, pout);
+                        }
+                    } catch (IOException e) {
+                        // the other side finds out through the Git protocol; the session itself is still fine
+                        LOGGER.log(Level.FINE, e, () -> "Operation on " + f + " failed");
+                    } finally {
+                        // output first, so that the other side stops waiting for us and closes its own stream
+                        pout.close();
+                        pin.close();
+                    }
+                }
                 return null;
             } finally {
-                IOUtils.closeQuietly(l2r.getIn());
-                IOUtils.closeQuietly(r2l.getOut());
+                IOUtils.closeQuietly(in);
+                IOUtils.closeQuietly(out);
             }
         }
     }
+
+    private static void upload(Repository repo, InputStream in, OutputStream out, PackTuning packTuning)
+            throws IOException {
+        final UploadPack rp = new UploadPack(repo);
+        packTuning.withConfig(repo.getConfig()).apply(rp);
+        rp.upload(in, out, null);
+    }
+
+    private static void receive(Repository repo, InputStream in, OutputStream out) throws IOException {
+        final ReceivePack rp = new ReceivePack(repo);
+        rp.receive(in, out, null);
+    }
+
+    /**
+     * Opens the repository on the agent.
+     *
+     * <p>
+     * With {@code agentRepositoryCache} set, handles are kept in {@link SharedRepositoryCache} of the agent JVM,
+     * so that repeated transfers to the same workspace don't scan its refs and open its pack indexes every time.
+     * Only the cache itself is used there: {@link RepositoryMaintenance} is a controller thing, and releasing
+     * a handle doesn't involve it. Since agents don't run
+     * {@link SharedRepositoryCache.IdleSweeper}, a thread of our own closes the handles that aren't used anymore.
+     */
+    static Repository openRepository(File workTree) throws IOException {
+        if (!AGENT_REPOSITORY_CACHE) {
+            return new FileRepositoryBuilder().setWorkTree(workTree).build();
+        }
+        AgentSweeper.start();
+        SharedRepositoryCache cache = SharedRepositoryCache.get();
+        SharedRepositoryCache.Opener opener = () -> new FileRepositoryBuilder().setWorkTree(workTree).build();
+        Repository r = cache.borrow(workTree.toPath(), opener);
+        if (!r.getObjectDatabase().exists()) {
+            // the workspace was wiped since we last saw it
+            r.close();
+            cache.invalidate(workTree.toPath());
+            r = cache.borrow(workTree.toPath(), opener);
+        }
+        return r;
+    }
+
+    private static final class AgentSweeper {
+        private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "ChannelTransport.AgentSweeper"));
+
+        static {
+            EXECUTOR.scheduleWithFixedDelay(() -> SharedRepositoryCache.get().evictIdle(), 1, 1, TimeUnit.MINUTES);
+        }
+
+        /**
+         * Does nothing but making sure the class is initialized.
+         */
+        static void start() {}
+    }
+
+    private static final int FETCH = 'F';
+    private static final int PUSH = 'P';
+    private static final int END = 'E';
+
+    /**
+     * Set to true on agents to keep repositories open between transfers, rather than opening them afresh every time.
+     * This holds on to file handles in the workspaces, which some agents would rather not.
+     */
+    private static final boolean AGENT_REPOSITORY_CACHE =
+            SystemProperties.getBoolean(ChannelTransport.class.getName() + ".agentRepositoryCache", false);
+
+    /**
+     * Size of the buffers on both ends of the pipes, in bytes.
+     */
+    static final int BUFFER_SIZE =
+            SystemProperties.getInteger(ChannelTransport.class.getName() + ".bufferSize", 64 * 1024);
+
+    /**
+     * Set to true to compress the streams by default.
+     */
+    static final boolean COMPRESSION =
+            SystemProperties.getBoolean(ChannelTransport.class.getName() + ".compression", false);
+
+    private static final Logger LOGGER = Logger.getLogger(ChannelTransport.class.getName());
 }
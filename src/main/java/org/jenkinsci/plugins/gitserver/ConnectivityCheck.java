@@ -0,0 +1,245 @@
+package org.jenkinsci.plugins.gitserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.BitmapIndex.BitmapBuilder;
+import org.eclipse.jgit.lib.BitmapObject;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.BitmapWalker;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.transport.ConnectivityChecker;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.ReceivePack;
+
+/**
+ * Makes sure that what a client pushes is connected to what the repository already has,
+ * without walking the whole history to find out.
+ *
+ * <p>
+ * Before updating the refs, {@link ReceivePack} can check that every object reachable from the new tips
+ * is either in the pack it just received, or already reachable from the tips it advertised.
+ * It does so by walking from the new tips until it meets the advertised ones, which on a large history
+ * can take longer than everything else the push does. With {@link Mode#BITMAP}, the objects reachable
+ * from the advertised tips come from the pack bitmap index instead, so only the objects that were actually
+ * pushed get walked. Repositories without a bitmap index aren't checked unless their configuration says so,
+ * as with {@link Mode#OFF}, since that would be the full walk on every push.
+ *
+ * <p>
+ * The mode is set per repository with {@code git config gitserver.connectivityCheck <mode>},
+ * and defaults to the {@code defaultMode} system property. How long the check took is logged,
+ * and exported by {@link GitServerMetrics}.
+ */
+public final class ConnectivityCheck {
+    private ConnectivityCheck() {}
+
+    public enum Mode {
+        /**
+         * Check as JGit does by default, which is only when {@code receive.fsckObjects}
+         * or {@code receive.checkReferencedObjectsAreReachable} is set, with a full walk.
+         */
+        OFF,
+        /**
+         * Check every push, with a full walk.
+         */
+        WALK,
+        /**
+         * Check every push, with the help of the pack bitmap index, if the repository has one.
+         * Otherwise the same as {@link #OFF}.
+         */
+        BITMAP
+    }
+
+    /**
+     * Returns the mode configured for the given repository.
+     */
+    public static Mode getMode(Repository repo) {
+        String value = repo.getConfig().getString(CONFIG_SECTION, null, CONFIG_KEY);
+        Mode mode = parse(value);
+        if (mode == null && value != null) {
+            LOGGER.log(Level.WARNING, "Unknown {0}.{1} in {2}: {3}", new Object[] {
+                CONFIG_SECTION, CONFIG_KEY, repo, value
+            });
+        }
+        return mode != null ? mode : DEFAULT_MODE;
+    }
+
+    private static Mode parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Mode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a {@link ReceivePack} that checks the connectivity of what it receives
+     * as configured for the repository.
+     */
+    public static ReceivePack newReceivePack(Repository db) {
+        return new CheckingReceivePack(db, getMode(db));
+    }
+
+    /**
+     * Returns how long the given {@link ReceivePack} took to check the connectivity of what it received.
+     *
+     * @return
+     *      -1 if it didn't come from {@link #newReceivePack(Repository)}, or didn't check anything.
+     */
+    public static long getNanos(ReceivePack rp) {
+        return rp instanceof CheckingReceivePack ? ((CheckingReceivePack) rp).checker.nanos : -1;
+    }
+
+    private static final class CheckingReceivePack extends ReceivePack {
+        private final TimedChecker checker;
+
+        CheckingReceivePack(Repository db, Mode mode) {
+            super(db);
+            if (mode == Mode.WALK || (mode == Mode.BITMAP && hasBitmapIndex(db))) {
+                setCheckReferencedObjectsAreReachable(true);
+            }
+            checker = new TimedChecker(
+                    mode == Mode.BITMAP ? new BitmapChecker(connectivityChecker) : connectivityChecker);
+            connectivityChecker = checker;
+        }
+    }
+
+    private static boolean hasBitmapIndex(Repository db) {
+        try (ObjectReader reader = db.newObjectReader()) {
+            return reader.getBitmapIndex() != null;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to read the bitmap index of " + db);
+            return false;
+        }
+    }
+
+    private static final class TimedChecker implements ConnectivityChecker {
+        private final ConnectivityChecker checker;
+        private volatile long nanos = -1;
+
+        TimedChecker(ConnectivityChecker checker) {
+            this.checker = checker;
+        }
+
+        @Override
+        public void checkConnectivity(ConnectivityCheckInfo info, Set<ObjectId> haves, ProgressMonitor pm)
+                throws IOException {
+            long start = System.nanoTime();
+            try {
+                checker.checkConnectivity(info, haves, pm);
+            } finally {
+                nanos = System.nanoTime() - start;
+                LOGGER.log(Level.FINE, "Checked the connectivity of a push to {0} in {1}ms", new Object[] {
+                    info.getRepository(), nanos / 1_000_000
+                });
+            }
+        }
+    }
+
+    /**
+     * Checks with the pack bitmap index, or with the given checker if there's none.
+     *
+     * <p>
+     * The objects reachable from the advertised tips mostly come straight from the bitmaps, and only the
+     * commits pushed since the last repack get walked. From the new tips, the walk stops at those objects,
+     * and fails on anything that is missing from the repository.
+     */
+    static final class BitmapChecker implements ConnectivityChecker {
+        private final ConnectivityChecker fallback;
+
+        BitmapChecker(ConnectivityChecker fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void checkConnectivity(ConnectivityCheckInfo info, Set<ObjectId> haves, ProgressMonitor pm)
+                throws IOException {
+            List<ObjectId> wants = new ArrayList<>();
+            for (ReceiveCommand c : info.getCommands()) {
+                if (c.getResult() == ReceiveCommand.Result.NOT_ATTEMPTED
+                        && c.getType() != ReceiveCommand.Type.DELETE
+                        && !haves.contains(c.getNewId())) {
+                    wants.add(c.getNewId());
+                }
+            }
+            if (wants.isEmpty()) {
+                return;
+            }
+
+            ObjectReader reader = info.getWalk().getObjectReader();
+            BitmapIndex index = reader.getBitmapIndex();
+            if (index == null) {
+                fallback.checkConnectivity(info, haves, pm);
+                return;
+            }
+
+            BitmapBuilder known;
+            try (ObjectWalk ow = new ObjectWalk(reader)) {
+                // a ref pointing to a missing object isn't the client's problem, as with the regular walk
+                known = new BitmapWalker(ow, index, pm).findObjects(haves, null, true);
+            }
+            BitmapBuilder reachable;
+            try (ObjectWalk ow = new ObjectWalk(reader)) {
+                reachable = new BitmapWalker(ow, index, pm).findObjects(wants, known, false);
+            }
+            BitmapBuilder added = reachable.andNot(known);
+            if (info.isCheckObjects()) {
+                checkObjects(info, known, added);
+            } else {
+                // the walk doesn't read the blobs, so it can't tell whether they exist
+                for (BitmapObject o : added) {
+                    if (o.getType() == Constants.OBJ_BLOB && !reader.has(o.getObjectId())) {
+                        throw new MissingObjectException(o.getObjectId(), Constants.OBJ_BLOB);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Makes sure the client only referred to objects it can see, like the regular walk does:
+         * whatever it didn't send has to be reachable from the advertised tips.
+         */
+        private static void checkObjects(ConnectivityCheckInfo info, BitmapBuilder known, BitmapBuilder sent)
+                throws MissingObjectException {
+            ObjectIdSubclassMap<ObjectId> provided = info.getParser().getNewObjectIds();
+            for (BitmapObject o : sent) {
+                if (!provided.contains(o.getObjectId())) {
+                    throw new MissingObjectException(o.getObjectId(), o.getType());
+                }
+            }
+            for (ObjectId base : info.getParser().getBaseObjectIds()) {
+                if (!known.contains(base)) {
+                    throw new MissingObjectException(base, "delta base");
+                }
+            }
+        }
+    }
+
+    private static final String CONFIG_SECTION = "gitserver";
+    private static final String CONFIG_KEY = "connectivityCheck";
+
+    /**
+     * Mode of the repositories that don't configure {@code gitserver.connectivityCheck}:
+     * one of {@code off}, {@code walk} or {@code bitmap}.
+     */
+    private static final Mode DEFAULT_MODE = Objects.requireNonNullElse(
+            parse(SystemProperties.getString(ConnectivityCheck.class.getName() + ".defaultMode")), Mode.BITMAP);
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectivityCheck.class.getName());
+}
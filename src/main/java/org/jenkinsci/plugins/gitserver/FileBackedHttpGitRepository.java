@@ -1,5 +1,9 @@
 package org.jenkinsci.plugins.gitserver;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jakarta.servlet.http.HttpServletRequest;
 import java.io.File;
 import java.io.IOException;
@@ -8,22 +12,40 @@ import java.io.StringWriter;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ResetCommand;
 import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.eclipse.jgit.transport.ReceivePack;
 import org.eclipse.jgit.transport.UploadPack;
 import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
 import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.springframework.security.core.Authentication;
 
 /**
@@ -40,6 +62,40 @@ public abstract class FileBackedHttpGitRepository extends HttpGitRepository {
      */
     public final Path workspace;
 
+    /**
+     * Commit that the {@linkplain #workspace workspace} was last successfully updated to,
+     * or null if we don't know. Guarded by {@link #workspaceLock}.
+     */
+    private ObjectId workspaceCommit;
+
+    /**
+     * Latest commit pushed that the background updater hasn't picked up yet, if any.
+     * Guarded by {@link #workspaceLock}.
+     */
+    private ObjectId pendingUpdate;
+
+    /**
+     * What {@code master} was before the earliest push that {@link #pendingUpdate} covers,
+     * which is where the workspace probably is when we don't know. Guarded by {@link #workspaceLock}.
+     */
+    private ObjectId pendingBase;
+
+    /**
+     * True while a background update is queued or running. Guarded by {@link #workspaceLock}.
+     */
+    private boolean updateScheduled;
+
+    private final Object workspaceLock = new Object();
+
+    private volatile boolean asyncWorkspaceUpdate = ASYNC_WORKSPACE_UPDATE;
+
+    private final LongAdder fullCheckouts = new LongAdder();
+
+    /**
+     * Serializes the actual checkouts, which can take a while and so can't hold {@link #workspaceLock}.
+     */
+    private final Object checkoutLock = new Object();
+
     protected FileBackedHttpGitRepository(Path workspace) {
         this.workspace = workspace;
         try {
@@ -55,17 +111,51 @@ public abstract class FileBackedHttpGitRepository extends HttpGitRepository {
         this(workspace.toPath());
     }
 
+    /**
+     * Returns the repository in the {@linkplain #workspace workspace}, creating it if necessary.
+     *
+     * <p>
+     * The handle is borrowed from {@link SharedRepositoryCache}, so concurrent and repeated requests
+     * share the same {@link Repository} instead of re-reading it from disk every time.
+     * As usual, the caller is responsible for closing it.
+     *
+     * <p>
+     * When the repository is first opened, {@link RepositoryMaintenance}, if enabled, builds its bitmap index
+     * and commit-graph in the background if they are missing. If reftable is enabled, its refs are
+     * also {@linkplain RepositoryMaintenance#convertToReftable(Repository) moved to a reftable},
+     * whether the repository was just created or not.
+     */
     @Override
     public Repository openRepository() throws IOException {
         checkPullPermission();
-        Repository r =
-                new FileRepositoryBuilder().setWorkTree(workspace.toFile()).build();
+        return SharedRepositoryCache.get().borrow(workspace, () -> {
+            Repository r =
+                    new FileRepositoryBuilder().setWorkTree(workspace.toFile()).build();
 
-        // if the repository doesn't exist, create it
-        if (!r.getObjectDatabase().exists()) {
-            createInitialRepository(r);
-        }
-        return r;
+            // if the repository doesn't exist, create it
+            if (!r.getObjectDatabase().exists()) {
+                // whatever we knew about a repository that was there before doesn't apply anymore
+                RepositoryMaintenance.get().forget(r);
+                try {
+                    createInitialRepository(r);
+                } catch (IOException | RuntimeException e) {
+                    r.close();
+                    throw e;
+                }
+            }
+            if (REFTABLE) {
+                try {
+                    if (RepositoryMaintenance.convertToReftable(r)) {
+                        LOGGER.log(Level.INFO, "Moved the refs of {0} to a reftable", workspace);
+                    }
+                } catch (IOException e) {
+                    // the refs are still where they were, so we can carry on with them
+                    LOGGER.log(Level.WARNING, e, () -> "Failed to move the refs of " + workspace + " to a reftable");
+                }
+            }
+            RepositoryMaintenance.get().ensureReachabilityIndexes(r);
+            return r;
+        });
     }
 
     /**
@@ -73,10 +163,30 @@ public abstract class FileBackedHttpGitRepository extends HttpGitRepository {
      *
      * <p>
      * This implementation also imports whatever currently in there into the repository.
+     * The files are hashed in parallel, and progress is logged for large workspaces.
      */
     protected void createInitialRepository(Repository r) throws IOException {
         r.create();
 
+        PersonIdent author = new PersonIdent("Jenkins", "noreply@jenkins-ci.org");
+        String message = "Initial import of the existing contents";
+        if (PARALLEL_IMPORT) {
+            WorkspaceImporter importer = new WorkspaceImporter(r, workspace);
+            long start = System.nanoTime();
+            try {
+                importer.commit(author, message, NullProgressMonitor.INSTANCE);
+                LOGGER.log(Level.FINE, "Imported {0} files ({1} bytes) from {2} in {3}ms", new Object[] {
+                    importer.getFiles(),
+                    importer.getBytes(),
+                    workspace,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                });
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Initial import of " + workspace + " into Git repository failed");
+            }
+            return;
+        }
+
         try {
             // import initial content
             Git git = new Git(r);
@@ -85,8 +195,8 @@ public abstract class FileBackedHttpGitRepository extends HttpGitRepository {
             cmd.call();
 
             CommitCommand co = git.commit();
-            co.setAuthor("Jenkins", "noreply@jenkins-ci.org");
-            co.setMessage("Initial import of the existing contents");
+            co.setAuthor(author);
+            co.setMessage(message);
             co.call();
         } catch (GitAPIException e) {
             LOGGER.log(Level.WARNING, e, () -> "Initial import of " + workspace + " into Git repository failed");
@@ -124,27 +234,51 @@ public abstract class FileBackedHttpGitRepository extends HttpGitRepository {
         return rp;
     }
 
+    /**
+     * Creates the {@link ReceivePack} that updates the workspace after the push.
+     *
+     * <p>
+     * When the refs are in a reftable, all the ref updates of a push are written as a single table,
+     * so we make the push atomic, like {@code git push --atomic}: either all the refs are updated, or none.
+     *
+     * <p>
+     * What the client sends is checked as configured by {@link ConnectivityCheck}.
+     */
     public ReceivePack createReceivePack(Repository db) {
         checkPushPermission();
 
-        ReceivePack rp = new ReceivePack(db);
+        ReceivePack rp = ConnectivityCheck.newReceivePack(db);
+        if (RepositoryMaintenance.usesReftable(db)) {
+            rp.setAtomic(true);
+        }
 
         // update userContent after the push
         rp.setPostReceiveHook((rp1, commands) -> {
-            try {
-                updateWorkspace(rp1.getRepository());
-            } catch (Exception e) {
-                StringWriter sw = new StringWriter();
-                e.printStackTrace(new PrintWriter(sw));
-                rp1.sendMessage("Failed to update workspace: " + sw);
+            if (asyncWorkspaceUpdate) {
+                if (scheduleWorkspaceUpdate(rp1.getRepository(), commands)) {
+                    rp1.sendMessage("Workspace update queued; it will be checked out in the background");
+                }
+            } else {
+                try {
+                    updateWorkspace(rp1.getRepository(), commands);
+                } catch (Exception e) {
+                    StringWriter sw = new StringWriter();
+                    e.printStackTrace(new PrintWriter(sw));
+                    rp1.sendMessage("Failed to update workspace: " + sw);
+                }
             }
+            RepositoryMaintenance.get().recordPush(rp1.getRepository());
         });
         return rp;
     }
 
     /**
-     * Called when new ref is pushed to update the {@linkplain #workspace local workspace}.
-     * The default implementation does "git reset --hard main"
+     * Called when new ref is pushed to update the {@linkplain #workspace local workspace},
+     * but only if a subclass overrides it. Otherwise {@link #updateWorkspace(Repository, Collection)}
+     * takes care of the workspace on its own.
+     *
+     * <p>
+     * The implementation here does "git reset --hard master".
      */
     protected void updateWorkspace(Repository repo) throws IOException, GitAPIException {
         ResetCommand cmd = new Git(repo).reset();
@@ -153,11 +287,299 @@ public abstract class FileBackedHttpGitRepository extends HttpGitRepository {
         cmd.call();
     }
 
+    /**
+     * Called after a push with the commands that were applied, to update the {@linkplain #workspace local workspace}.
+     *
+     * <p>
+     * If we know which commit the workspace is at, only the files that changed between that commit
+     * and the new {@code master} are rewritten or deleted. After a restart, when we don't, the index
+     * matching the old {@code master} of the push is good enough. This is a lot cheaper than
+     * {@link #updateWorkspace(Repository)} on a big tree. Whenever that can't be done safely,
+     * this falls back to a full checkout. If a subclass overrides {@link #updateWorkspace(Repository)},
+     * that is called instead, and the workspace is then assumed to be at {@code master}.
+     */
+    protected void updateWorkspace(Repository repo, Collection<ReceiveCommand> commands)
+            throws IOException, GitAPIException {
+        if (isUpdateWorkspaceOverridden()) {
+            updateOverriddenWorkspace(repo);
+            return;
+        }
+        ReceiveCommand master = findMaster(commands);
+        if (master != null) {
+            checkout(repo, master.getOldId(), master.getNewId());
+        }
+    }
+
+    /**
+     * Waits until the {@linkplain #workspace workspace} has been updated to the given commit or one of its descendants.
+     *
+     * <p>
+     * This is mostly useful when workspace updates are done asynchronously,
+     * for example to make sure that what was just pushed is visible in the workspace.
+     *
+     * @return
+     *      false if the timeout elapsed first.
+     */
+    public boolean awaitWorkspace(Repository repo, ObjectId commit, long timeout, TimeUnit unit)
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            ObjectId current;
+            synchronized (workspaceLock) {
+                current = workspaceCommit;
+            }
+            if (current != null && isMergedInto(repo, commit, current)) {
+                return true;
+            }
+            synchronized (workspaceLock) {
+                if (Objects.equals(current, workspaceCommit)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(workspaceLock, remaining);
+                }
+            }
+        }
+    }
+
+    private static boolean isMergedInto(Repository repo, ObjectId commit, ObjectId tip) throws IOException {
+        if (commit.equals(tip)) {
+            return true;
+        }
+        try (RevWalk rw = new RevWalk(repo)) {
+            return rw.isMergedInto(rw.parseCommit(commit), rw.parseCommit(tip));
+        } catch (MissingObjectException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queues a background update of the workspace, merging it with any update that hasn't started yet.
+     *
+     * <p>
+     * Only one update per repository runs at any given time, and it always checks out
+     * the latest commit pushed, so a burst of pushes results in a single checkout.
+     *
+     * @return
+     *      true if an update was queued, false if the push didn't affect the workspace.
+     */
+    private boolean scheduleWorkspaceUpdate(Repository repo, Collection<ReceiveCommand> commands) {
+        boolean overridden = isUpdateWorkspaceOverridden();
+        ReceiveCommand master = findMaster(commands);
+        if (!overridden && master == null) {
+            return false;
+        }
+        synchronized (workspaceLock) {
+            if (pendingUpdate == null) {
+                pendingBase = master == null ? null : master.getOldId();
+            }
+            pendingUpdate = overridden ? ObjectId.zeroId() : master.getNewId();
+            if (updateScheduled) {
+                return true; // the running worker will pick it up
+            }
+            updateScheduled = true;
+        }
+
+        repo.incrementOpen(); // keep it open until the updates are done
+        WORKSPACE_UPDATER.execute(() -> {
+            try {
+                while (true) {
+                    ObjectId base;
+                    ObjectId target;
+                    synchronized (workspaceLock) {
+                        base = pendingBase;
+                        target = pendingUpdate;
+                        pendingBase = null;
+                        pendingUpdate = null;
+                        if (target == null) {
+                            updateScheduled = false;
+                            return;
+                        }
+                    }
+                    try {
+                        if (overridden) {
+                            updateOverriddenWorkspace(repo);
+                        } else {
+                            checkout(repo, base, target);
+                        }
+                    } catch (IOException | GitAPIException | RuntimeException e) {
+                        LOGGER.log(Level.WARNING, e, () -> "Failed to update workspace " + workspace);
+                    }
+                }
+            } finally {
+                repo.close();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Brings the workspace to the given commit, incrementally if possible.
+     *
+     * @param base
+     *      What {@code master} was before the push, which the workspace is likely at if we don't know,
+     *      such as after a restart.
+     */
+    private void checkout(Repository repo, @CheckForNull ObjectId base, ObjectId to) throws IOException {
+        synchronized (checkoutLock) {
+            ObjectId from;
+            synchronized (workspaceLock) {
+                from = workspaceCommit;
+                workspaceCommit = null;
+            }
+            if (from == null && base != null && !base.equals(ObjectId.zeroId()) && isIndexAt(repo, base)) {
+                // the incremental checkout still makes sure that the files it touches are as in base
+                from = base;
+            }
+            if (to.equals(from)) {
+                setWorkspaceCommit(to);
+                return;
+            }
+            if (INCREMENTAL && from != null) {
+                if (new IncrementalCheckout(repo, workspace).apply(from, to)) {
+                    setWorkspaceCommit(to);
+                    return;
+                }
+                LOGGER.log(Level.FINE, "Falling back to a full checkout of {0}", workspace);
+            }
+
+            // same as "git reset --hard", but for the commit we were asked for, without touching refs
+            fullCheckouts.increment();
+            DirCache dc = repo.lockDirCache();
+            try (RevWalk rw = new RevWalk(repo)) {
+                DirCacheCheckout co = new DirCacheCheckout(repo, dc, rw.parseCommit(to).getTree());
+                co.setFailOnConflict(false);
+                co.checkout();
+            } finally {
+                dc.unlock();
+            }
+            setWorkspaceCommit(to);
+        }
+    }
+
+    /**
+     * Does the index have exactly what the given commit has?
+     */
+    private static boolean isIndexAt(Repository repo, ObjectId commit) throws IOException {
+        try (RevWalk rw = new RevWalk(repo);
+                TreeWalk tw = new TreeWalk(repo)) {
+            tw.addTree(new DirCacheIterator(repo.readDirCache()));
+            tw.addTree(rw.parseCommit(commit).getTree());
+            tw.setRecursive(true);
+            tw.setFilter(TreeFilter.ANY_DIFF);
+            return !tw.next();
+        } catch (MissingObjectException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Number of times the workspace was updated with a full checkout, rather than incrementally.
+     */
+    long getFullCheckouts() {
+        return fullCheckouts.sum();
+    }
+
+    /**
+     * Calls the {@link #updateWorkspace(Repository)} of a subclass, which we expect to check out {@code master}.
+     */
+    private void updateOverriddenWorkspace(Repository repo) throws IOException, GitAPIException {
+        synchronized (checkoutLock) {
+            // resolved first, so that a push that lands during the update isn't taken for checked out
+            ObjectId master = repo.resolve(Constants.R_HEADS + "master");
+            synchronized (workspaceLock) {
+                workspaceCommit = null;
+            }
+            updateWorkspace(repo);
+            if (master != null) {
+                setWorkspaceCommit(master);
+            }
+        }
+    }
+
+    /**
+     * Whether the workspace is updated in the background after a push, which defaults to
+     * the {@code asyncWorkspaceUpdate} system property.
+     */
+    void setAsyncWorkspaceUpdate(boolean asyncWorkspaceUpdate) {
+        this.asyncWorkspaceUpdate = asyncWorkspaceUpdate;
+    }
+
+    private void setWorkspaceCommit(ObjectId commit) {
+        synchronized (workspaceLock) {
+            workspaceCommit = commit;
+            workspaceLock.notifyAll();
+        }
+    }
+
+    private boolean isUpdateWorkspaceOverridden() {
+        return Util.isOverridden(FileBackedHttpGitRepository.class, getClass(), "updateWorkspace", Repository.class);
+    }
+
+    @CheckForNull
+    private static ReceiveCommand findMaster(Collection<ReceiveCommand> commands) {
+        for (ReceiveCommand c : commands) {
+            if (c.getResult() == ReceiveCommand.Result.OK
+                    && c.getType() != ReceiveCommand.Type.DELETE
+                    && c.getRefName().equals(Constants.R_HEADS + "master")) {
+                return c;
+            }
+        }
+        return null;
+    }
+
     /**
      * Do something like {@code Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER)}
      * to make sure the user has the permission to push.
      */
     protected abstract void checkPushPermission();
 
+    /**
+     * Set to false to always update the workspace with a full "git reset --hard".
+     */
+    private static final boolean INCREMENTAL = SystemProperties.getBoolean(
+            FileBackedHttpGitRepository.class.getName() + ".incrementalWorkspaceUpdate", true);
+
+    /**
+     * Set to false to import the existing contents of a new workspace with "git add" and "git commit".
+     */
+    private static final boolean PARALLEL_IMPORT =
+            SystemProperties.getBoolean(FileBackedHttpGitRepository.class.getName() + ".parallelImport", true);
+
+    /**
+     * Set to true to keep the refs in a reftable, both in new repositories and in existing ones,
+     * which are converted when first opened.
+     */
+    private static final boolean REFTABLE =
+            SystemProperties.getBoolean(FileBackedHttpGitRepository.class.getName() + ".reftable", false);
+
+    /**
+     * Set to true to update the workspace in the background, so that {@code git push} doesn't wait for the checkout.
+     */
+    private static final boolean ASYNC_WORKSPACE_UPDATE = SystemProperties.getBoolean(
+            FileBackedHttpGitRepository.class.getName() + ".asyncWorkspaceUpdate", false);
+
+    /**
+     * Number of workspaces that can be updated concurrently in the background.
+     */
+    private static final int WORKSPACE_UPDATE_THREADS = SystemProperties.getInteger(
+            FileBackedHttpGitRepository.class.getName() + ".workspaceUpdateThreads", 2);
+
+    /**
+     * Runs the background workspace updates. There's at most one task queued per workspace, so the queue is unbounded.
+     */
+    private static final ThreadPoolExecutor WORKSPACE_UPDATER = new ThreadPoolExecutor(
+            WORKSPACE_UPDATE_THREADS,
+            WORKSPACE_UPDATE_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "FileBackedHttpGitRepository.updateWorkspace"));
+
+    static {
+        WORKSPACE_UPDATER.allowCoreThreadTimeOut(true);
+    }
+
     private static final Logger LOGGER = Logger.getLogger(FileBackedHttpGitRepository.class.getName());
 }
@@ -0,0 +1,362 @@
+package org.jenkinsci.plugins.gitserver;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackStatistics;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.PostReceiveHookChain;
+import org.eclipse.jgit.transport.PostUploadHook;
+import org.eclipse.jgit.transport.PostUploadHookChain;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.UploadPack;
+import org.jenkinsci.plugins.gitserver.ssh.SshCommandExecutor;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+/**
+ * Counters and histograms of the Git traffic this plugin serves, per repository and transport.
+ *
+ * <p>
+ * Fetches are measured from the {@link PackStatistics} JGit reports at the end of each of them,
+ * and pushes from the time the {@link ReceivePack} was set up to the time its refs were updated.
+ * Recording a sample only updates {@link LongAdder}s, without allocating anything.
+ *
+ * <p>
+ * Everything is exposed, along with the statistics of the caches and of {@link AdmissionController},
+ * in the Prometheus text format at {@code /git-server-metrics/}, for administrators.
+ */
+public final class GitServerMetrics {
+    public enum Transport {
+        HTTP,
+        SSH
+    }
+
+    /**
+     * What we know about the traffic of one repository through one transport.
+     */
+    public static final class RepositoryMetrics {
+        final LongAdder uploads = new LongAdder();
+        final LongAdder uploadErrors = new LongAdder();
+        final LongAdder objects = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final Histogram uploadMillis = newTimeHistogram();
+        final Histogram negotiatingMillis = newTimeHistogram();
+        final Histogram countingMillis = newTimeHistogram();
+        final Histogram compressingMillis = newTimeHistogram();
+        final Histogram writingMillis = newTimeHistogram();
+        final Histogram uploadBytes = newSizeHistogram();
+
+        final LongAdder pushes = new LongAdder();
+        final LongAdder pushErrors = new LongAdder();
+        final Histogram pushMillis = newTimeHistogram();
+        final Histogram pushBytes = newSizeHistogram();
+        final Histogram connectivityCheckMillis = newTimeHistogram();
+
+        private final PostUploadHook uploadHook = this::recordUpload;
+
+        RepositoryMetrics() {}
+
+        public void recordUpload(PackStatistics stats) {
+            uploads.increment();
+            objects.add(stats.getTotalObjects());
+            bytes.add(stats.getTotalBytes());
+            uploadBytes.observe(stats.getTotalBytes());
+            uploadMillis.observe(stats.getTimeTotal());
+            negotiatingMillis.observe(stats.getTimeNegotiating());
+            countingMillis.observe(stats.getTimeCounting());
+            compressingMillis.observe(stats.getTimeCompressing());
+            writingMillis.observe(stats.getTimeWriting());
+        }
+
+        public void recordUploadError() {
+            uploadErrors.increment();
+        }
+
+        public void recordPush(long nanos, long packSize) {
+            pushes.increment();
+            pushMillis.observe(TimeUnit.NANOSECONDS.toMillis(nanos));
+            pushBytes.observe(packSize);
+        }
+
+        public void recordPushError() {
+            pushErrors.increment();
+        }
+
+        /**
+         * Makes the given {@link UploadPack} report its statistics here, on top of its existing hooks.
+         */
+        public UploadPack instrument(UploadPack up) {
+            PostUploadHook existing = up.getPostUploadHook();
+            up.setPostUploadHook(
+                    existing == null || existing == PostUploadHook.NULL
+                            ? uploadHook
+                            : PostUploadHookChain.newChain(List.of(existing, uploadHook)));
+            return up;
+        }
+
+        /**
+         * Makes the given {@link ReceivePack} report here, on top of its existing hooks.
+         * Call this right before it starts receiving.
+         */
+        public ReceivePack instrument(ReceivePack rp) {
+            long start = System.nanoTime();
+            PostReceiveHook hook = (r, commands) -> {
+                long size;
+                try {
+                    size = r.getPackSize();
+                } catch (IllegalStateException e) {
+                    size = 0; // only deletions, so no pack was sent
+                }
+                recordPush(System.nanoTime() - start, size);
+                long check = ConnectivityCheck.getNanos(r);
+                if (check >= 0) {
+                    connectivityCheckMillis.observe(TimeUnit.NANOSECONDS.toMillis(check));
+                }
+            };
+            PostReceiveHook existing = rp.getPostReceiveHook();
+            rp.setPostReceiveHook(
+                    existing == null || existing == PostReceiveHook.NULL
+                            ? hook
+                            : PostReceiveHookChain.newChain(List.of(existing, hook)));
+            return rp;
+        }
+    }
+
+    private final Map<Transport, Map<String, RepositoryMetrics>> repositories = Map.of(
+            Transport.HTTP, new ConcurrentHashMap<>(),
+            Transport.SSH, new ConcurrentHashMap<>());
+
+    GitServerMetrics() {}
+
+    public static GitServerMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the metrics of the given repository.
+     *
+     * <p>
+     * Beyond a certain number of repositories, the rest are all counted together, to keep the output manageable.
+     */
+    public RepositoryMetrics of(Transport transport, Repository repository) {
+        Map<String, RepositoryMetrics> m = repositories.get(transport);
+        String name = repository.getIdentifier();
+        RepositoryMetrics r = m.get(name);
+        if (r == null) {
+            if (m.size() >= MAX_REPOSITORIES) {
+                name = OTHERS;
+            }
+            r = m.computeIfAbsent(name, k -> new RepositoryMetrics());
+        }
+        return r;
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text exposition format.
+     */
+    public void write(PrintWriter w) {
+        // labels of each repository, in a stable order
+        Map<String, RepositoryMetrics> all = new TreeMap<>();
+        repositories.forEach((transport, m) -> {
+            String prefix = "transport=\"" + transport.name().toLowerCase(Locale.ENGLISH) + "\",repository=\"";
+            m.forEach((name, r) -> all.put(prefix + escape(name) + "\"", r));
+        });
+
+        counters(w, "git_server_uploads_total", all, r -> r.uploads.sum());
+        counters(w, "git_server_upload_errors_total", all, r -> r.uploadErrors.sum());
+        counters(w, "git_server_upload_objects_total", all, r -> r.objects.sum());
+        counters(w, "git_server_upload_bytes_total", all, r -> r.bytes.sum());
+        histograms(w, "git_server_upload_seconds", all, 1000, Map.of("", r -> r.uploadMillis));
+        histograms(
+                w,
+                "git_server_upload_phase_seconds",
+                all,
+                1000,
+                Map.of(
+                        ",phase=\"negotiating\"", r -> r.negotiatingMillis,
+                        ",phase=\"counting\"", r -> r.countingMillis,
+                        ",phase=\"compressing\"", r -> r.compressingMillis,
+                        ",phase=\"writing\"", r -> r.writingMillis));
+        histograms(w, "git_server_upload_size_bytes", all, 1, Map.of("", r -> r.uploadBytes));
+        counters(w, "git_server_pushes_total", all, r -> r.pushes.sum());
+        counters(w, "git_server_push_errors_total", all, r -> r.pushErrors.sum());
+        histograms(w, "git_server_push_seconds", all, 1000, Map.of("", r -> r.pushMillis));
+        histograms(w, "git_server_push_size_bytes", all, 1, Map.of("", r -> r.pushBytes));
+        histograms(
+                w, "git_server_push_connectivity_check_seconds", all, 1000, Map.of("", r -> r.connectivityCheckMillis));
+
+        AdmissionController ac = AdmissionController.get();
+        gauge(w, "git_server_admission_running", ac.getRunning());
+        gauge(w, "git_server_admission_queued", ac.getQueued());
+        gauge(w, "git_server_admission_max_concurrent", ac.getMaxConcurrent());
+        counter(w, "git_server_admission_admitted_total", ac.getAdmitted());
+        counter(w, "git_server_admission_rejected_total", ac.getRejected());
+        latency(w, "git_server_admission_wait_seconds", ac.getWaitLatency());
+        latency(w, "git_server_resolution_seconds", RepositoryResolverIndex.get().getResolutionLatency());
+
+        SshCommandExecutor ssh = SshCommandExecutor.get();
+        gauge(w, "git_server_ssh_sessions_active", ssh.getActiveSessions());
+        counter(w, "git_server_ssh_sessions_total", ssh.getStartedSessions());
+
+        RefAdvertisementCache refs = RefAdvertisementCache.get();
+        counter(w, "git_server_ref_cache_hits_total", refs.getHits());
+        counter(w, "git_server_ref_cache_misses_total", refs.getMisses());
+        gauge(w, "git_server_ref_cache_size", refs.size());
+
+        SharedRepositoryCache repos = SharedRepositoryCache.get();
+        counter(w, "git_server_repository_cache_hits_total", repos.getHits());
+        counter(w, "git_server_repository_cache_misses_total", repos.getMisses());
+        counter(w, "git_server_repository_cache_evictions_total", repos.getEvictions());
+        gauge(w, "git_server_repository_cache_size", repos.size());
+
+        if (PackResponseCache.isEnabled()) {
+            PackResponseCache packs = PackResponseCache.get();
+            counter(w, "git_server_pack_cache_hits_total", packs.getHits());
+            counter(w, "git_server_pack_cache_shared_total", packs.getSharedGenerations());
+            counter(w, "git_server_pack_cache_misses_total", packs.getMisses());
+            counter(w, "git_server_pack_cache_served_bytes_total", packs.getBytesServed());
+            gauge(w, "git_server_pack_cache_size_bytes", packs.getSize());
+        }
+
+        InMemoryRepositoryPool pool = InMemoryRepositoryPool.get();
+        gauge(w, "git_server_in_memory_repositories", pool.size());
+        gauge(w, "git_server_in_memory_repositories_size_bytes", pool.getSize());
+        counter(w, "git_server_in_memory_repositories_evictions_total", pool.getEvictions());
+        counter(w, "git_server_in_memory_repositories_spills_total", pool.getSpills());
+
+        if (AgentMirrors.isEnabled()) {
+            AgentMirrors mirrors = AgentMirrors.get();
+            counter(w, "git_server_mirror_relayed_total", mirrors.getRelayed());
+            counter(w, "git_server_mirror_relayed_bytes_total", mirrors.getRelayedBytes());
+            counter(w, "git_server_mirror_served_locally_total", mirrors.getServedLocally());
+            counter(w, "git_server_mirror_syncs_total", mirrors.getSyncs());
+            counter(w, "git_server_mirror_sync_failures_total", mirrors.getSyncFailures());
+        }
+
+        RepositoryMaintenance maintenance = RepositoryMaintenance.get();
+        counter(w, "git_server_uploads_with_bitmaps_total", maintenance.getUploadsWithBitmaps());
+        counter(w, "git_server_uploads_without_bitmaps_total", maintenance.getUploadsWithoutBitmaps());
+    }
+
+    private static void counters(
+            PrintWriter w, String name, Map<String, RepositoryMetrics> all, ToLongFunction<RepositoryMetrics> value) {
+        w.println("# TYPE " + name + " counter");
+        all.forEach((labels, r) -> w.println(name + "{" + labels + "} " + value.applyAsLong(r)));
+    }
+
+    /**
+     * Writes one histogram per repository and per entry of {@code variants},
+     * whose keys are appended to the labels of the repository.
+     */
+    private static void histograms(
+            PrintWriter w,
+            String name,
+            Map<String, RepositoryMetrics> all,
+            double scale,
+            Map<String, Function<RepositoryMetrics, Histogram>> variants) {
+        w.println("# TYPE " + name + " histogram");
+        all.forEach((repository, r) -> new TreeMap<>(variants).forEach((variant, f) -> {
+            String labels = repository + variant;
+            Histogram h = f.apply(r);
+            for (int i = 0; i < h.getBucketCount(); i++) {
+                w.println(name + "_bucket{" + labels + ",le=\"" + h.getBound(i) / scale + "\"} "
+                        + h.getCumulativeCount(i));
+            }
+            w.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + h.getCount());
+            w.println(name + "_sum{" + labels + "} " + h.getSum() / scale);
+            w.println(name + "_count{" + labels + "} " + h.getCount());
+        }));
+    }
+
+    private static void counter(PrintWriter w, String name, long value) {
+        w.println("# TYPE " + name + " counter");
+        w.println(name + " " + value);
+    }
+
+    private static void gauge(PrintWriter w, String name, long value) {
+        w.println("# TYPE " + name + " gauge");
+        w.println(name + " " + value);
+    }
+
+    private static void latency(PrintWriter w, String name, LatencyRecorder r) {
+        w.println("# TYPE " + name + " summary");
+        w.println(name + "_sum " + r.getTotal(TimeUnit.MICROSECONDS) / 1e6);
+        w.println(name + "_count " + r.getCount());
+        w.println("# TYPE " + name + "_max gauge");
+        w.println(name + "_max " + r.getMax(TimeUnit.MICROSECONDS) / 1e6);
+    }
+
+    static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Milliseconds, from 1ms to about 20 minutes.
+     */
+    private static Histogram newTimeHistogram() {
+        return Histogram.exponential(1, 1_000_000, 4);
+    }
+
+    /**
+     * Bytes, from 1KB to about 4GB.
+     */
+    private static Histogram newSizeHistogram() {
+        return Histogram.exponential(1024, 4L << 30, 4);
+    }
+
+    /**
+     * Serves the metrics to administrators.
+     */
+    @Extension
+    public static final class Endpoint implements RootAction {
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Git server metrics";
+        }
+
+        @Override
+        public String getUrlName() {
+            return "git-server-metrics";
+        }
+
+        public void doIndex(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+            Jenkins.get().checkPermission(Jenkins.MANAGE);
+            rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            get().write(w);
+            w.flush();
+        }
+    }
+
+    /**
+     * Label of the repositories beyond {@link #MAX_REPOSITORIES}.
+     */
+    private static final String OTHERS = "(others)";
+
+    /**
+     * Maximum number of repositories tracked individually, per transport.
+     */
+    private static final int MAX_REPOSITORIES =
+            SystemProperties.getInteger(GitServerMetrics.class.getName() + ".maxRepositories", 1000);
+
+    private static final GitServerMetrics INSTANCE = new GitServerMetrics();
+}
@@ -0,0 +1,101 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.PostReceiveHookChain;
+import org.eclipse.jgit.transport.PostUploadHook;
+import org.eclipse.jgit.transport.PostUploadHookChain;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.UploadPack;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Applies the plugin-wide settings to every {@link UploadPack} and {@link ReceivePack} we hand out,
+ * whether it came from an {@link HttpGitRepository} or from a {@link RepositoryResolver}.
+ */
+@Restricted(NoExternalUse.class)
+public final class GitServiceSupport {
+    private GitServiceSupport() {}
+
+    /**
+     * Configures the given {@link UploadPack} right before it starts serving a client.
+     *
+     * <p>
+     * Hooks installed by the implementation that created it are preserved.
+     */
+    public static UploadPack configure(UploadPack up) {
+        return configure(up, null);
+    }
+
+    /**
+     * Configures the given {@link UploadPack} right before it starts serving a client
+     * that sent the given {@code Git-Protocol} header or {@code GIT_PROTOCOL} environment variable.
+     *
+     * <p>
+     * This is what lets a client negotiate protocol v2, so that it can ask for just the refs it's interested in
+     * instead of receiving the whole ref advertisement. The server side can still opt out
+     * with {@code protocol.version} in the repository configuration.
+     *
+     * @param gitProtocol
+     *      colon-separated parameters such as "version=2", or null if the client didn't send any.
+     */
+    public static UploadPack configure(UploadPack up, @CheckForNull String gitProtocol) {
+        List<String> extraParameters = extraParameters(gitProtocol);
+        if (!extraParameters.isEmpty()) {
+            up.setExtraParameters(extraParameters);
+        }
+        up.setPostUploadHook(chain(up.getPostUploadHook(), RepositoryMaintenance.get().getUploadStatisticsHook()));
+        RefAdvertisementCache.get().apply(up);
+        return up;
+    }
+
+    /**
+     * Splits the {@code Git-Protocol} header into what {@link UploadPack#setExtraParameters} takes,
+     * unless protocol v2 is turned off.
+     */
+    static List<String> extraParameters(@CheckForNull String gitProtocol) {
+        if (PROTOCOL_V2 && gitProtocol != null && !gitProtocol.isEmpty()) {
+            return Arrays.asList(gitProtocol.split(":"));
+        }
+        return List.of();
+    }
+
+    /**
+     * Configures the given {@link ReceivePack} right before it starts serving a client.
+     *
+     * <p>
+     * Hooks installed by the implementation that created it are preserved.
+     */
+    public static ReceivePack configure(ReceivePack rp) {
+        PostReceiveHook existing = rp.getPostReceiveHook();
+        // invalidate first, so that clients see the new refs even while the other hooks are running
+        List<PostReceiveHook> hooks = new ArrayList<>();
+        hooks.add(RefAdvertisementCache.get().getInvalidationHook());
+        if (AgentMirrors.isEnabled()) {
+            hooks.add(AgentMirrors.get().getRefreshHook());
+        }
+        if (existing != null && existing != PostReceiveHook.NULL) {
+            hooks.add(existing);
+        }
+        rp.setPostReceiveHook(hooks.size() == 1 ? hooks.get(0) : PostReceiveHookChain.newChain(hooks));
+        return rp;
+    }
+
+    private static PostUploadHook chain(PostUploadHook existing, PostUploadHook added) {
+        if (existing == null || existing == PostUploadHook.NULL) {
+            return added;
+        }
+        return PostUploadHookChain.newChain(List.of(existing, added));
+    }
+
+    /**
+     * Set to false to ignore what the clients send, which forces everyone back to protocol v0.
+     */
+    private static final boolean PROTOCOL_V2 =
+            SystemProperties.getBoolean(GitServiceSupport.class.getName() + ".protocolV2", true);
+}
@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.gitserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram with fixed buckets, cheap enough to update on every request.
+ *
+ * <p>
+ * Like {@link LatencyRecorder}, it doesn't keep individual samples, only the number of them
+ * that fell into each bucket, plus their count and sum.
+ */
+public final class Histogram {
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param bounds
+     *      inclusive upper bounds of the buckets, in increasing order.
+     *      Values above the last one go to an extra, unbounded bucket.
+     */
+    public Histogram(long... bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Bounds that grow exponentially, from {@code first} to at least {@code last}.
+     */
+    public static Histogram exponential(long first, long last, int factor) {
+        int n = 1;
+        for (long b = first; b < last; b *= factor) {
+            n++;
+        }
+        long[] bounds = new long[n];
+        long b = first;
+        for (int i = 0; i < n; i++, b *= factor) {
+            bounds[i] = b;
+        }
+        return new Histogram(bounds);
+    }
+
+    public void observe(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sum.add(value);
+    }
+
+    public int getBucketCount() {
+        return bounds.length;
+    }
+
+    /**
+     * Upper bound of the given bucket.
+     */
+    public long getBound(int bucket) {
+        return bounds[bucket];
+    }
+
+    /**
+     * Number of samples that are less than or equal to the bound of the given bucket.
+     * Passing {@link #getBucketCount()} gives the number of all the samples.
+     */
+    public long getCumulativeCount(int bucket) {
+        long n = 0;
+        for (int i = 0; i <= bucket; i++) {
+            n += buckets[i].sum();
+        }
+        return n;
+    }
+
+    public long getCount() {
+        return getCumulativeCount(bounds.length);
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+}
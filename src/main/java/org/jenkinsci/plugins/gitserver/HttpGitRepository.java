@@ -1,28 +1,47 @@
 package org.jenkinsci.plugins.gitserver;
 
+import hudson.ExtensionList;
 import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.Action;
+import hudson.model.RootAction;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
 import io.jenkins.servlet.http.HttpServletRequestWrapper;
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.http.server.GitServlet;
+import org.eclipse.jgit.http.server.GitSmartHttpTools;
 import org.eclipse.jgit.http.server.resolver.DefaultReceivePackFactory;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.GitProtocolConstants;
 import org.eclipse.jgit.transport.ReceivePack;
 import org.eclipse.jgit.transport.UploadPack;
 import org.eclipse.jgit.transport.resolver.ReceivePackFactory;
 import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
 import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
 import org.eclipse.jgit.transport.resolver.UploadPackFactory;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
 
@@ -36,9 +55,18 @@ import org.kohsuke.stapler.StaplerResponse2;
  * @author Kohsuke Kawaguchi
  */
 public abstract class HttpGitRepository {
-    private GitServlet g;
+    /**
+     * Created on the first request, or when {@linkplain #warmUp() warming up}.
+     */
+    private volatile GitServlet g;
+
+    /**
+     * Set before {@link #g}, which publishes it.
+     */
     private Exception causeOfDeath;
 
+    private final Object initLock = new Object();
+
     protected HttpGitRepository() {}
 
     /**
@@ -131,6 +159,27 @@ public abstract class HttpGitRepository {
                 + "either overload of the createUploadPack method.");
     }
 
+    /**
+     * Returns the limits on partial and shallow clones of the given repository.
+     *
+     * <p>
+     * By default this comes from the repository configuration. See {@link UploadPackPolicy}.
+     */
+    public UploadPackPolicy getUploadPackPolicy(Repository db) {
+        return UploadPackPolicy.forRepository(db);
+    }
+
+    /**
+     * Returns how the packs sent from the given repository are built.
+     *
+     * <p>
+     * By default this comes from the repository configuration. See {@link PackTuning}.
+     * It replaces any {@link PackConfig} that {@code createUploadPack} set, so tune the packs here instead.
+     */
+    public PackTuning getPackTuning(Repository db) {
+        return PackTuning.forRepository(db);
+    }
+
     /**
      * to make sure the user has the permission to pull.
      */
@@ -149,9 +198,19 @@ public abstract class HttpGitRepository {
         });
 
         // this creates (and thus configures) the receiver program
-        g.setReceivePackFactory(this::createReceivePack);
+        g.setReceivePackFactory((req, db) ->
+                metricsOf(req, db).instrument(GitServiceSupport.configure(createReceivePack(req, db))));
 
-        g.setUploadPackFactory(this::createUploadPack);
+        // JGit only honors Git-Protocol in some versions of GitServlet, so pass it on ourselves
+        g.setUploadPackFactory((req, db) -> {
+            String gitProtocol = req.getHeader(GitProtocolConstants.PROTOCOL_HEADER);
+            UploadPack up = metricsOf(req, db)
+                    .instrument(GitServiceSupport.configure(
+                            getPackTuning(db).apply(getUploadPackPolicy(db).apply(createUploadPack(req, db))),
+                            gitProtocol));
+            // the ref advertisement of protocol v0 is a GET, which the controller keeps serving
+            return "POST".equals(req.getMethod()) ? AgentMirrors.get().route(up, gitProtocol) : up;
+        });
 
         try {
             g.init(new ServletConfig() {
@@ -178,13 +237,82 @@ public abstract class HttpGitRepository {
         return g;
     }
 
+    /**
+     * Returns the {@link GitServlet}, initializing it if this is the first time.
+     *
+     * <p>
+     * Concurrent first requests wait for the same initialization rather than each building their own.
+     */
+    private GitServlet gitServlet() throws ServletException {
+        GitServlet s = g;
+        if (s == null) {
+            synchronized (initLock) {
+                s = g;
+                if (s == null) {
+                    g = s = init();
+                }
+            }
+        }
+        if (causeOfDeath != null) throw new ServletException(causeOfDeath);
+        return s;
+    }
+
+    /**
+     * Gets ready to serve this repository, so that the first clone after a restart isn't much slower than the rest.
+     *
+     * <p>
+     * This initializes the {@link GitServlet}, opens the repository, reads its refs, and loads the pack indexes
+     * and the bitmap index that serving those refs needs. The caller needs the permission to pull.
+     * Repositories that are {@link RootAction}s are warmed up at startup if enabled; see {@link #warmUpRootActions()}.
+     */
+    public void warmUp() throws IOException, ServletException {
+        gitServlet();
+        try (Repository db = openRepository();
+                ObjectReader reader = db.newObjectReader()) {
+            for (Ref ref : db.getRefDatabase().getRefs()) {
+                ObjectId id = ref.getObjectId();
+                if (id != null) {
+                    reader.has(id);
+                }
+            }
+            reader.getBitmapIndex();
+        }
+    }
+
+    /**
+     * Warms up the {@link HttpGitRepository}s that are bound to the root of Jenkins,
+     * such as {@code userContent.git}, in the background.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    @Restricted(NoExternalUse.class)
+    public static void warmUpRootActions() {
+        if (!WARM_UP) {
+            return;
+        }
+        Timer.get().submit(() -> {
+            try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+                for (RootAction a : ExtensionList.lookup(RootAction.class)) {
+                    if (a instanceof HttpGitRepository) {
+                        long start = System.nanoTime();
+                        try {
+                            ((HttpGitRepository) a).warmUp();
+                            LOGGER.log(Level.FINE, "Warmed up {0} in {1}ms", new Object[] {
+                                a.getUrlName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                            });
+                        } catch (IOException | ServletException | RuntimeException e) {
+                            LOGGER.log(Level.WARNING, e, () -> "Failed to warm up " + a.getUrlName());
+                        }
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Handles git smart HTTP protocol.
      */
     public void doDynamic(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException, ServletException {
-        if (g == null) g = init();
-
-        if (causeOfDeath != null) throw new ServletException(causeOfDeath);
+        GitServlet g = gitServlet();
 
         // This is one place where we allow POST without CSRF headers
         HttpServletRequest realRequest = CSRFExclusionImpl.unwrapRequest(req);
@@ -199,8 +327,93 @@ public abstract class HttpGitRepository {
 
            So in this case one bug cancels out another and it works out well.
         */
+        if (isPackRequest(realRequest)) {
+            // the cache runs on the pool too, so that waiting for a concurrent generation doesn't take a container
+            // thread, and stored responses are sent with non-blocking I/O as well
+            PackResponseCache.Dispatcher dispatcher =
+                    PackResponseCache.isEnabled() && PackResponseCache.isUploadPackRequest(realRequest)
+                            ? this::serviceCachedPack
+                            : this::servicePack;
+            if (AsyncPackService.isEnabled()) {
+                AsyncPackService.service(realRequest, rsp, dispatcher);
+            } else {
+                dispatcher.service(realRequest, rsp);
+            }
+            return;
+        }
         g.service(realRequest, rsp);
     }
 
+    /**
+     * Is this the request that makes the server generate or receive a pack?
+     */
+    private static boolean isPackRequest(HttpServletRequest req) {
+        String path = req.getPathInfo();
+        return "POST".equals(req.getMethod())
+                && path != null
+                && (path.endsWith("/" + GitSmartHttpTools.UPLOAD_PACK)
+                        || path.endsWith("/" + GitSmartHttpTools.RECEIVE_PACK));
+    }
+
+    private void serviceCachedPack(HttpServletRequest req, HttpServletResponse rsp)
+            throws IOException, ServletException {
+        PackResponseCache.get().service(this, req, rsp, this::servicePack);
+    }
+
+    /**
+     * Runs a pack request once {@link AdmissionController} lets it, if it's enabled,
+     * or tells the client to come back later.
+     */
+    private void servicePack(HttpServletRequest req, HttpServletResponse rsp) throws IOException, ServletException {
+        // the URL of the repository is all we know about it at this point
+        String uri = req.getRequestURI();
+        String repository =
+                AdmissionController.repositoryKey(uri.substring(req.getContextPath().length(), uri.lastIndexOf('/')));
+        AdmissionController.Permit permit;
+        try {
+            permit = AdmissionController.isEnabled() ? AdmissionController.get().acquire(repository) : null;
+        } catch (AdmissionController.OverloadedException e) {
+            rsp.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for other Git operations to complete");
+        }
+        boolean failed = true;
+        try (permit) {
+            g.service(req, rsp);
+            failed = rsp.getStatus() >= 400;
+        } finally {
+            // set by the factories, unless we failed even before getting there
+            GitServerMetrics.RepositoryMetrics metrics =
+                    (GitServerMetrics.RepositoryMetrics) req.getAttribute(METRICS_ATTRIBUTE);
+            if (failed && metrics != null) {
+                if (req.getPathInfo().endsWith("/" + GitSmartHttpTools.UPLOAD_PACK)) {
+                    metrics.recordUploadError();
+                } else {
+                    metrics.recordPushError();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds where to record the traffic of this request, and remembers it in the request for the errors.
+     */
+    private static GitServerMetrics.RepositoryMetrics metricsOf(HttpServletRequest req, Repository db) {
+        GitServerMetrics.RepositoryMetrics metrics = GitServerMetrics.get().of(GitServerMetrics.Transport.HTTP, db);
+        req.setAttribute(METRICS_ATTRIBUTE, metrics);
+        return metrics;
+    }
+
+    private static final String METRICS_ATTRIBUTE = GitServerMetrics.RepositoryMetrics.class.getName();
+
+    /**
+     * Set to true to open the repositories bound to the root of Jenkins at startup, and load their indexes.
+     */
+    private static final boolean WARM_UP =
+            SystemProperties.getBoolean(HttpGitRepository.class.getName() + ".warmUp", false);
+
     private static final Logger LOGGER = Logger.getLogger(HttpGitRepository.class.getName());
 }
@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.gitserver;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import jenkins.model.Jenkins;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
+import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Convenient subtype of {@link HttpGitRepository} for a bare repository
+ * that lives in an {@link InMemoryRepositoryPool}.
+ *
+ * <p>
+ * Good for the scratch repositories that only live for the duration of a build: create it with
+ * {@link InMemoryRepositoryPool#create(String)}, bind this object to the URL space, and
+ * {@link InMemoryRepositoryPool#delete(String) delete} it when the build is done.
+ */
+public abstract class InMemoryHttpGitRepository extends HttpGitRepository {
+    public final InMemoryRepositoryPool pool;
+
+    /**
+     * Name of the repository in {@link #pool}.
+     */
+    public final String name;
+
+    protected InMemoryHttpGitRepository(InMemoryRepositoryPool pool, String name) {
+        this.pool = pool;
+        this.name = name;
+    }
+
+    protected InMemoryHttpGitRepository(String name) {
+        this(InMemoryRepositoryPool.get(), name);
+    }
+
+    @Override
+    public Repository openRepository() throws IOException {
+        checkPullPermission();
+        Repository db = pool.open(name);
+        if (db == null) {
+            throw new RepositoryNotFoundException(name);
+        }
+        return db;
+    }
+
+    @Override
+    public UploadPack createUploadPack(HttpServletRequest context, Repository db)
+            throws ServiceNotEnabledException, ServiceNotAuthorizedException {
+        return new UploadPack(db);
+    }
+
+    /**
+     * Requires {@link #checkPushPermission()} to be able to push.
+     */
+    @Override
+    public ReceivePack createReceivePack(HttpServletRequest context, Repository db)
+            throws ServiceNotEnabledException, ServiceNotAuthorizedException {
+        checkPushPermission();
+
+        Authentication a = Jenkins.getAuthentication2();
+        ReceivePack rp = ConnectivityCheck.newReceivePack(db);
+        rp.setRefLogIdent(new PersonIdent(a.getName(), a.getName() + "@" + context.getRemoteAddr()));
+        return rp;
+    }
+
+    /**
+     * Makes sure the current user has the permission to push.
+     */
+    protected abstract void checkPushPermission();
+}
@@ -0,0 +1,478 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackFile;
+import org.eclipse.jgit.internal.storage.dfs.DfsReftable;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * Named repositories that live in memory, for short-lived repositories that aren't worth a directory,
+ * a working tree and a cleanup.
+ *
+ * <p>
+ * Each repository is a JGit {@link InMemoryRepository}, so creating, serving and deleting one
+ * doesn't touch the file system. Serve them with {@link InMemoryHttpGitRepository} over HTTP
+ * and {@link InMemoryRepositoryResolver} over SSH.
+ *
+ * <p>
+ * The pool keeps the repositories within a memory budget. When they take more than that,
+ * the least recently used repositories that nobody is using are evicted: written to the spill directory
+ * if there is one, from where they are read back the next time they are opened, or otherwise dropped.
+ * A repository counts as used while a handle from {@link #open(String)} or {@link #create(String)}
+ * is open, and for {@code minIdle} after that.
+ */
+public final class InMemoryRepositoryPool {
+    /**
+     * Counts the handles that were handed out and not closed yet.
+     */
+    private static final class PooledRepository extends InMemoryRepository {
+        final AtomicInteger borrowers = new AtomicInteger();
+
+        PooledRepository(String name) {
+            super(new DfsRepositoryDescription(name));
+        }
+
+        @Override
+        public void incrementOpen() {
+            borrowers.incrementAndGet();
+            super.incrementOpen();
+        }
+
+        @Override
+        public void close() {
+            borrowers.decrementAndGet();
+            super.close();
+        }
+
+        /**
+         * Gives up the reference of the pool, which isn't one of the borrowers.
+         */
+        void release() {
+            super.close();
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+
+        /**
+         * Null while spilled.
+         */
+        PooledRepository repository;
+
+        long lastUsed;
+        boolean deleted;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Access-ordered, so iteration starts from the least recently used entry.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long maxBytes;
+
+    @CheckForNull
+    private final Path spillDirectory;
+
+    private final long minIdleNanos;
+
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder spills = new LongAdder();
+
+    InMemoryRepositoryPool(long maxBytes, @CheckForNull Path spillDirectory, long minIdle, TimeUnit unit) {
+        this.maxBytes = maxBytes;
+        this.spillDirectory = spillDirectory;
+        this.minIdleNanos = unit.toNanos(minIdle);
+    }
+
+    public static InMemoryRepositoryPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates an empty repository, whose {@code HEAD} points to {@code master}.
+     *
+     * <p>
+     * As with {@link #open(String)}, the caller must close the returned repository when done.
+     *
+     * @throws IllegalArgumentException
+     *      if there's already a repository by that name.
+     */
+    public Repository create(String name) throws IOException {
+        PooledRepository r = new PooledRepository(name);
+        RefUpdate u = r.updateRef(Constants.HEAD);
+        u.disableRefLog();
+        u.link(Constants.R_HEADS + Constants.MASTER);
+
+        Entry e = new Entry(name);
+        synchronized (entries) {
+            if (entries.containsKey(name)) {
+                throw new IllegalArgumentException("Repository " + name + " already exists");
+            }
+            e.repository = r;
+            e.lastUsed = System.nanoTime();
+            r.incrementOpen();
+            entries.put(name, e);
+        }
+        trim();
+        return r;
+    }
+
+    /**
+     * Opens the repository of the given name, reading it back from the spill directory if it was evicted.
+     *
+     * @return
+     *      null if there's no such repository. Otherwise the caller owns one reference
+     *      to the repository, and must {@link Repository#close() close} it when done.
+     */
+    @CheckForNull
+    public Repository open(String name) throws IOException {
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(name);
+        }
+        if (e == null) {
+            return null;
+        }
+
+        PooledRepository r;
+        synchronized (e) {
+            if (e.deleted) {
+                return null;
+            }
+            if (e.repository == null) {
+                e.repository = unspill(e);
+            }
+            r = e.repository;
+            r.incrementOpen();
+            e.lastUsed = System.nanoTime();
+        }
+        trim();
+        return r;
+    }
+
+    /**
+     * Deletes the repository of the given name, wherever it is.
+     * Those who still have it open can keep using it until they close it.
+     *
+     * @return
+     *      false if there was no such repository.
+     */
+    public boolean delete(String name) throws IOException {
+        Entry e;
+        synchronized (entries) {
+            e = entries.remove(name);
+        }
+        if (e == null) {
+            return false;
+        }
+        synchronized (e) {
+            e.deleted = true;
+            if (e.repository != null) {
+                e.repository.release();
+                e.repository = null;
+            } else {
+                FileUtils.delete(spillDirectoryOf(e).toFile(), FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Names of all the repositories, in memory or spilled.
+     */
+    public Set<String> getNames() {
+        synchronized (entries) {
+            return new TreeSet<>(entries.keySet());
+        }
+    }
+
+    /**
+     * Evicts the least recently used idle repositories until the others fit in the memory budget.
+     *
+     * <p>
+     * This happens whenever a repository is created or opened, so there's normally no need to call it.
+     *
+     * @return
+     *      number of repositories evicted.
+     */
+    public int trim() {
+        int evicted = 0;
+        while (getSize() > maxBytes) {
+            Entry victim = null;
+            long now = System.nanoTime();
+            synchronized (entries) {
+                for (Entry e : entries.values()) {
+                    PooledRepository r = e.repository;
+                    if (r != null && r.borrowers.get() == 0 && now - e.lastUsed >= minIdleNanos) {
+                        victim = e;
+                        break;
+                    }
+                }
+            }
+            if (victim == null) {
+                LOGGER.log(Level.FINE, "In-memory repositories exceed their budget, but they are all in use");
+                return evicted;
+            }
+            try {
+                if (evict(victim)) {
+                    evicted++;
+                }
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, x, () -> "Failed to spill in-memory repository " + x);
+                return evicted;
+            }
+        }
+        return evicted;
+    }
+
+    private boolean evict(Entry e) throws IOException {
+        synchronized (e) {
+            PooledRepository r = e.repository;
+            if (e.deleted || r == null || r.borrowers.get() > 0) {
+                return false; // someone got to it first
+            }
+            if (spillDirectory != null) {
+                Path dir = spillDirectoryOf(e);
+                Files.createDirectories(spillDirectory);
+                try (Repository target =
+                        new FileRepositoryBuilder().setGitDir(dir.toFile()).build()) {
+                    target.create(true);
+                    copy(r, target);
+                } catch (IOException | RuntimeException x) {
+                    FileUtils.delete(dir.toFile(), FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+                    throw x;
+                }
+                spills.increment();
+                LOGGER.log(Level.FINE, "Spilled in-memory repository {0} to {1}", new Object[] {e.name, dir});
+            } else {
+                e.deleted = true;
+                synchronized (entries) {
+                    entries.remove(e.name, e);
+                }
+                LOGGER.log(Level.INFO, "Dropped in-memory repository {0} to stay within the memory budget", e.name);
+            }
+            e.repository = null;
+            r.release();
+            evictions.increment();
+            return true;
+        }
+    }
+
+    /**
+     * Reads a spilled repository back into memory, and deletes it from the spill directory.
+     */
+    private PooledRepository unspill(Entry e) throws IOException {
+        Path dir = spillDirectoryOf(e);
+        PooledRepository r = new PooledRepository(e.name);
+        try (Repository source =
+                new FileRepositoryBuilder().setGitDir(dir.toFile()).setMustExist(true).build()) {
+            copy(source, r);
+        } catch (IOException | RuntimeException x) {
+            r.release();
+            throw x;
+        }
+        FileUtils.delete(dir.toFile(), FileUtils.RECURSIVE);
+        LOGGER.log(Level.FINE, "Read in-memory repository {0} back from {1}", new Object[] {e.name, dir});
+        return r;
+    }
+
+    private Path spillDirectoryOf(Entry e) {
+        return spillDirectory.resolve(URLEncoder.encode(e.name, StandardCharsets.UTF_8) + ".git");
+    }
+
+    /**
+     * Copies the refs of a repository and everything reachable from them into an empty one,
+     * going through a pack in the spill directory.
+     */
+    private void copy(Repository from, Repository to) throws IOException {
+        List<Ref> refs = from.getRefDatabase().getRefs();
+        Set<ObjectId> tips = new HashSet<>();
+        Map<String, String> symbolic = new HashMap<>();
+        List<ReceiveCommand> commands = new ArrayList<>();
+        for (Ref r : refs) {
+            if (r.isSymbolic()) {
+                symbolic.put(r.getName(), r.getTarget().getName());
+            } else if (r.getObjectId() != null) {
+                tips.add(r.getObjectId());
+                commands.add(new ReceiveCommand(ObjectId.zeroId(), r.getObjectId(), r.getName()));
+            }
+        }
+        Ref head = from.exactRef(Constants.HEAD);
+        if (head != null && head.isSymbolic()) {
+            symbolic.put(Constants.HEAD, head.getTarget().getName()); // even when unborn
+        }
+
+        if (!tips.isEmpty()) {
+            Path pack = Files.createTempFile(spillDirectory, "copy", ".pack");
+            try {
+                try (ObjectReader reader = from.newObjectReader();
+                        PackWriter writer = new PackWriter(new PackConfig(from), reader);
+                        OutputStream out = Files.newOutputStream(pack)) {
+                    writer.preparePack(NullProgressMonitor.INSTANCE, tips, Set.of());
+                    writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+                }
+                try (ObjectInserter ins = to.newObjectInserter();
+                        InputStream in = Files.newInputStream(pack)) {
+                    ins.newPackParser(in).parse(NullProgressMonitor.INSTANCE);
+                    ins.flush();
+                }
+            } finally {
+                Files.delete(pack);
+            }
+
+            BatchRefUpdate u = to.getRefDatabase().newBatchUpdate();
+            u.setAtomic(true);
+            u.disableRefLog();
+            u.addCommand(commands);
+            try (RevWalk rw = new RevWalk(to)) {
+                u.execute(rw, NullProgressMonitor.INSTANCE);
+            }
+            for (ReceiveCommand c : commands) {
+                if (c.getResult() != ReceiveCommand.Result.OK) {
+                    throw new IOException("Failed to copy " + c.getRefName() + ": " + c.getResult());
+                }
+            }
+        }
+
+        for (Map.Entry<String, String> s : symbolic.entrySet()) {
+            RefUpdate u = to.updateRef(s.getKey());
+            u.disableRefLog();
+            u.link(s.getValue());
+        }
+    }
+
+    /**
+     * Bytes taken by the repositories that are in memory, as the size of their packs and reftables.
+     */
+    public long getSize() {
+        List<Entry> all;
+        synchronized (entries) {
+            all = new ArrayList<>(entries.values());
+        }
+        long size = 0;
+        for (Entry e : all) {
+            PooledRepository r = e.repository;
+            if (r != null) {
+                size += sizeOf(r);
+            }
+        }
+        return size;
+    }
+
+    private static long sizeOf(InMemoryRepository r) {
+        Set<DfsPackDescription> files = new HashSet<>();
+        DfsObjDatabase odb = r.getObjectDatabase();
+        try {
+            for (DfsPackFile p : odb.getPacks()) {
+                files.add(p.getPackDescription());
+            }
+            for (DfsReftable t : odb.getReftables()) {
+                files.add(t.getPackDescription());
+            }
+        } catch (IOException e) {
+            return 0; // can't happen in memory
+        }
+        long size = 0;
+        for (DfsPackDescription d : files) {
+            for (PackExt ext : PackExt.values()) {
+                size += d.getFileSize(ext);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Number of repositories, in memory or spilled.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Number of repositories evicted from memory since Jenkins started, spilled or dropped.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Number of repositories written to the spill directory since Jenkins started.
+     */
+    public long getSpills() {
+        return spills.sum();
+    }
+
+    /**
+     * Number of megabytes the in-memory repositories may take before the idle ones get evicted.
+     */
+    private static final int MAX_MEGABYTES =
+            SystemProperties.getInteger(InMemoryRepositoryPool.class.getName() + ".maxMegabytes", 256);
+
+    /**
+     * Directory where evicted repositories are kept until they are needed again. If unset, they are dropped.
+     */
+    private static final String SPILL_DIRECTORY =
+            SystemProperties.getString(InMemoryRepositoryPool.class.getName() + ".spillDirectory");
+
+    /**
+     * Number of seconds a repository stays in memory after it was last opened, whatever the budget.
+     */
+    private static final int MIN_IDLE =
+            SystemProperties.getInteger(InMemoryRepositoryPool.class.getName() + ".minIdle", 300);
+
+    private static final InMemoryRepositoryPool INSTANCE = new InMemoryRepositoryPool(
+            MAX_MEGABYTES * 1024L * 1024L,
+            SPILL_DIRECTORY == null ? null : Paths.get(SPILL_DIRECTORY),
+            MIN_IDLE,
+            TimeUnit.SECONDS);
+
+    private static final Logger LOGGER = Logger.getLogger(InMemoryRepositoryPool.class.getName());
+}
@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * {@link RepositoryResolver} that exposes the repositories of an {@link InMemoryRepositoryPool} over SSH,
+ * as "prefix/name.git" for the repository "name".
+ *
+ * <p>
+ * Subclasses register themselves with {@code @Extension}, and decide who may pull and push.
+ *
+ * <p>
+ * The {@link ReceivePack} and {@link UploadPack} returned hold a handle of the pool, which keeps
+ * the repository from being evicted until the SSH command releases it at the end of the transfer.
+ */
+public abstract class InMemoryRepositoryResolver extends RepositoryResolver {
+    private final InMemoryRepositoryPool pool;
+
+    private final String prefix;
+
+    /**
+     * @param prefix
+     *      Such as "scratch/", which is what repository names need to start with.
+     */
+    protected InMemoryRepositoryResolver(InMemoryRepositoryPool pool, String prefix) {
+        this.pool = pool;
+        this.prefix = prefix;
+    }
+
+    protected InMemoryRepositoryResolver(String prefix) {
+        this(InMemoryRepositoryPool.get(), prefix);
+    }
+
+    @Override
+    public Collection<String> getRepositoryNamePrefixes() {
+        return List.of(prefix);
+    }
+
+    /**
+     * Yes, which gives the handle back to the pool.
+     */
+    @Override
+    public boolean isRepositoryClosedAfterTransfer() {
+        return true;
+    }
+
+    /**
+     * Maps the repository path name as given by git client to the name of the repository in the pool.
+     *
+     * @return
+     *      null if it's not one of ours.
+     */
+    @CheckForNull
+    String toPoolName(String fullRepositoryName) {
+        String name = fullRepositoryName.startsWith("/") ? fullRepositoryName.substring(1) : fullRepositoryName;
+        if (!name.startsWith(prefix)) {
+            return null;
+        }
+        name = name.substring(prefix.length());
+        if (name.endsWith(".git")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name.isEmpty() ? null : name;
+    }
+
+    @Override
+    public ReceivePack createReceivePack(String fullRepositoryName) throws IOException, InterruptedException {
+        String name = toPoolName(fullRepositoryName);
+        if (name == null) {
+            return null;
+        }
+        checkPushPermission(name);
+        Repository db = pool.open(name);
+        if (db == null) {
+            return null;
+        }
+        try {
+            return ConnectivityCheck.newReceivePack(db);
+        } catch (RuntimeException e) {
+            db.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public UploadPack createUploadPack(String fullRepositoryName) throws IOException, InterruptedException {
+        String name = toPoolName(fullRepositoryName);
+        if (name == null) {
+            return null;
+        }
+        checkPullPermission(name);
+        Repository db = pool.open(name);
+        return db == null ? null : new UploadPack(db);
+    }
+
+    /**
+     * Makes sure the current user has the permission to pull the given repository of the pool.
+     * By default this requires {@link Jenkins#READ}, like {@link HttpGitRepository#checkPullPermission()}.
+     */
+    protected void checkPullPermission(String name) {
+        Jenkins.get().checkPermission(Jenkins.READ);
+    }
+
+    /**
+     * Makes sure the current user has the permission to push to the given repository of the pool.
+     */
+    protected abstract void checkPushPermission(String name);
+}
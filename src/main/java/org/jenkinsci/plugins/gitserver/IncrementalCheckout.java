@@ -0,0 +1,262 @@
+package org.jenkinsci.plugins.gitserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
+import org.eclipse.jgit.dircache.DirCacheEditor.PathEdit;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.SystemReader;
+
+/**
+ * Moves a working tree from one commit to another by only touching the paths that differ between the two.
+ *
+ * <p>
+ * Like {@code git checkout}, this only looks at the paths that differ. Each of them must be unmodified
+ * in the index and in the working tree, as of the first commit, since the working tree may well have been
+ * edited on disk. Local changes to the other paths are left alone.
+ *
+ * <p>
+ * It doesn't deal with anything fancy: as soon as symlinks, submodules, {@code .gitattributes}
+ * or end-of-line conversion are involved, or a path is modified or in the way,
+ * it gives up and lets the caller fall back to a regular checkout.
+ */
+final class IncrementalCheckout {
+    private final Repository repo;
+    private final Path workTree;
+
+    private final List<String> deletions = new ArrayList<>();
+    private final List<String> updates = new ArrayList<>();
+    private final List<ObjectId> updatedIds = new ArrayList<>();
+    private final List<FileMode> updatedModes = new ArrayList<>();
+
+    IncrementalCheckout(Repository repo, Path workTree) {
+        this.repo = repo;
+        this.workTree = workTree;
+    }
+
+    /**
+     * Updates the working tree and the index from one commit to another.
+     *
+     * @return
+     *      false if this couldn't be done safely, in which case the working tree and the index
+     *      may be partially updated and need a full checkout.
+     */
+    boolean apply(ObjectId from, ObjectId to) throws IOException {
+        if (usesConversions()) {
+            return false;
+        }
+
+        DirCache dc = repo.lockDirCache();
+        try {
+            if (!diff(dc, from, to)) {
+                return false;
+            }
+
+            DirCacheEditor editor = dc.editor();
+            for (String path : deletions) {
+                deleteFile(path);
+                editor.add(new DeletePath(path));
+            }
+            try (ObjectReader reader = repo.newObjectReader()) {
+                for (int i = 0; i < updates.size(); i++) {
+                    PathEdit e = writeFile(reader, updates.get(i), updatedIds.get(i), updatedModes.get(i));
+                    if (e == null) {
+                        return false;
+                    }
+                    editor.add(e);
+                }
+            }
+            editor.commit();
+        } finally {
+            dc.unlock();
+        }
+        LOGGER.log(Level.FINE, "Updated {0} and deleted {1} files in {2}", new Object[] {
+            updates.size(), deletions.size(), workTree
+        });
+        return true;
+    }
+
+    /**
+     * Lists the paths that differ between the two commits.
+     *
+     * @return
+     *      false if one of them can't be updated safely.
+     */
+    private boolean diff(DirCache dc, ObjectId from, ObjectId to) throws IOException {
+        Set<String> directories = new HashSet<>();
+        try (RevWalk rw = new RevWalk(repo);
+                TreeWalk tw = new TreeWalk(repo);
+                ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+            ObjectId newTree = rw.parseCommit(to).getTree();
+            tw.addTree(rw.parseCommit(from).getTree());
+            tw.addTree(newTree);
+            tw.setRecursive(true);
+            tw.setFilter(TreeFilter.ANY_DIFF);
+            while (tw.next()) {
+                String path = tw.getPathString();
+                FileMode oldMode = tw.getFileMode(0);
+                FileMode newMode = tw.getFileMode(1);
+                if (!isSupported(oldMode) || !isSupported(newMode)) {
+                    return false;
+                }
+                if (tw.getNameString().equals(Constants.DOT_GIT_ATTRIBUTES)) {
+                    return false;
+                }
+                try {
+                    SystemReader.getInstance().checkPath(path);
+                } catch (CorruptObjectException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Refusing to check out " + path);
+                    return false;
+                }
+                if (!isUnmodified(dc, formatter, path, tw.getObjectId(0), oldMode)) {
+                    LOGGER.log(Level.FINE, "{0} was modified in {1}", new Object[] {path, workTree});
+                    return false;
+                }
+                for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+                    directories.add(path.substring(0, i + 1));
+                }
+                if (newMode == FileMode.MISSING) {
+                    deletions.add(path);
+                } else {
+                    updates.add(path);
+                    updatedIds.add(tw.getObjectId(1));
+                    updatedModes.add(newMode);
+                }
+            }
+
+            // attributes apply to everything below them, so look for them above every path we touch
+            directories.add("");
+            for (String dir : directories) {
+                if (TreeWalk.forPath(repo, dir + Constants.DOT_GIT_ATTRIBUTES, newTree) != null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the index and the working tree both have the given path as it is in the first commit.
+     */
+    private boolean isUnmodified(
+            DirCache dc, ObjectInserter.Formatter formatter, String path, ObjectId id, FileMode mode)
+            throws IOException {
+        DirCacheEntry ent = dc.getEntry(path);
+        if (mode == FileMode.MISSING) {
+            return ent == null;
+        }
+        if (ent == null || !mode.equals(ent.getRawMode()) || !id.equals(ent.getObjectId())) {
+            return false;
+        }
+
+        Path f = workTree.resolve(path);
+        if (!Files.isRegularFile(f, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        FS fs = repo.getFS();
+        if (fs.supportsExecute() && fs.canExecute(f.toFile()) != (mode == FileMode.EXECUTABLE_FILE)) {
+            return false;
+        }
+        // hashing beats trusting timestamps, which can't tell apart edits made within their granularity
+        try (InputStream in = Files.newInputStream(f)) {
+            return id.equals(formatter.idFor(Constants.OBJ_BLOB, Files.size(f), in));
+        }
+    }
+
+    /**
+     * Number of paths the last {@link #apply(ObjectId, ObjectId)} rewrote or deleted.
+     */
+    int getChangedPaths() {
+        return deletions.size() + updates.size();
+    }
+
+    private boolean usesConversions() {
+        String autocrlf = repo.getConfig()
+                .getString(ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_KEY_AUTOCRLF);
+        String eol =
+                repo.getConfig().getString(ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_KEY_EOL);
+        return (autocrlf != null && !autocrlf.equalsIgnoreCase("false"))
+                || eol != null
+                || Files.exists(repo.getDirectory().toPath().resolve("info/attributes"));
+    }
+
+    private static boolean isSupported(FileMode mode) {
+        return mode == FileMode.MISSING || mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE;
+    }
+
+    private void deleteFile(String path) throws IOException {
+        Path f = workTree.resolve(path);
+        Files.deleteIfExists(f);
+        // like Git, don't leave empty directories behind
+        for (Path dir = f.getParent(); dir != null && !dir.equals(workTree); dir = dir.getParent()) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException e) {
+                break;
+            }
+        }
+    }
+
+    private PathEdit writeFile(ObjectReader reader, String path, ObjectId id, FileMode mode) throws IOException {
+        Path f = workTree.resolve(path);
+        if (Files.isDirectory(f)) {
+            return null; // something untracked is in the way
+        }
+        Files.createDirectories(f.getParent());
+
+        Path tmp = Files.createTempFile(f.getParent(), ".git-checkout", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                reader.open(id, Constants.OBJ_BLOB).copyTo(out);
+            }
+            FS fs = repo.getFS();
+            if (fs.supportsExecute()) {
+                fs.setExecute(tmp.toFile(), mode == FileMode.EXECUTABLE_FILE);
+            }
+            Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        long length = Files.size(f);
+        Instant lastModified = repo.getFS().lastModifiedInstant(f);
+        return new PathEdit(path) {
+            @Override
+            public void apply(DirCacheEntry ent) {
+                ent.setFileMode(mode);
+                ent.setObjectId(id);
+                ent.setLength(length);
+                ent.setLastModified(lastModified);
+            }
+        };
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IncrementalCheckout.class.getName());
+}
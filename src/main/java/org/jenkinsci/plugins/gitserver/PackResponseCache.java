@@ -0,0 +1,833 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.AdvertiseRefsHook;
+import org.eclipse.jgit.transport.GitProtocolConstants;
+import org.eclipse.jgit.transport.PreUploadHook;
+import org.eclipse.jgit.transport.RefFilter;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
+import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
+
+/**
+ * Keeps the responses to "git clone" requests over HTTP on disk, so that when many clients
+ * clone the same commits of the same repository, the pack is only generated once.
+ *
+ * <p>
+ * The cache key is made of the repository, a digest of its refs, and the request body
+ * normalized so that differences that don't affect the response (such as the client's
+ * {@code agent=} string or the order of the wants) don't matter. Only requests without
+ * any {@code have} line are cached, which is what clones and the first fetch into an empty
+ * repository send; incremental fetches are too diverse to be worth it.
+ *
+ * <p>
+ * Concurrent identical requests share a single generation: the first one runs {@link UploadPack},
+ * which streams the response to its client while writing it to disk, and the others wait for it
+ * to complete before streaming the stored file. Since the first one goes at the speed of its client,
+ * the others only wait for so long before generating their own response. Authorization is still checked
+ * for every request, by going through {@link HttpGitRepository#createUploadPack(HttpServletRequest, Repository)}.
+ * Responses of an {@link UploadPack} that filters or checks anything on its own are never cached,
+ * since they could depend on who's asking.
+ *
+ * <p>
+ * The cache is bounded by the total size of the files, evicting the least recently used ones first.
+ * Failing to write them, for example because the disk is full, only means that the response isn't cached.
+ * It is off by default, and SSH isn't covered since the SSH commands stream both ways at once.
+ */
+public final class PackResponseCache {
+    /**
+     * Sends a request to the actual Git HTTP implementation.
+     */
+    @FunctionalInterface
+    interface Dispatcher {
+        void service(HttpServletRequest req, HttpServletResponse rsp) throws IOException, ServletException;
+    }
+
+    /**
+     * A response stored on disk.
+     */
+    private static final class Stored {
+        final String key;
+        final Path file;
+        final long size;
+        final String contentType;
+        final Map<String, List<String>> headers;
+
+        Stored(String key, Path file, long size, String contentType, Map<String, List<String>> headers) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.contentType = contentType;
+            this.headers = headers;
+        }
+    }
+
+    /**
+     * Access-ordered, so iteration starts from the least recently used entry.
+     */
+    private final LinkedHashMap<String, Stored> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalSize;
+
+    /**
+     * Generations in progress. Completes with null if the response wasn't cacheable.
+     */
+    private final Map<String, CompletableFuture<Stored>> inflight = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final long maxSize;
+    private final long waitTimeoutMillis;
+    private volatile boolean initialized;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+
+    PackResponseCache(Path directory, long maxSize) {
+        this(directory, maxSize, WAIT_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    PackResponseCache(Path directory, long maxSize, long waitTimeout, TimeUnit unit) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.waitTimeoutMillis = unit.toMillis(waitTimeout);
+    }
+
+    public static PackResponseCache get() {
+        return Holder.INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * For tests.
+     */
+    static void setEnabled(boolean enabled) {
+        PackResponseCache.enabled = enabled;
+    }
+
+    /**
+     * Is this the request that carries the wants and haves of a fetch?
+     */
+    static boolean isUploadPackRequest(HttpServletRequest req) {
+        String path = req.getPathInfo();
+        return "POST".equals(req.getMethod()) && path != null && path.endsWith("/" + UPLOAD_PACK);
+    }
+
+    /**
+     * Handles an upload-pack request, from the cache if possible.
+     */
+    void service(HttpGitRepository repository, HttpServletRequest req, HttpServletResponse rsp, Dispatcher dispatcher)
+            throws IOException, ServletException {
+        BufferedRequest buffered = new BufferedRequest(req);
+        service(buffered.isComplete() ? keyOf(repository, buffered) : null, buffered, rsp, dispatcher);
+    }
+
+    /**
+     * Handles a request whose cache key has already been computed.
+     *
+     * @param key
+     *      null if the request isn't cacheable.
+     */
+    void service(@CheckForNull String key, HttpServletRequest req, HttpServletResponse rsp, Dispatcher dispatcher)
+            throws IOException, ServletException {
+        if (key == null) {
+            dispatcher.service(req, rsp);
+            return;
+        }
+
+        Stored s;
+        synchronized (entries) {
+            s = entries.get(key);
+        }
+        if (s != null && replay(s, rsp)) {
+            hits.increment();
+            return;
+        }
+
+        CompletableFuture<Stored> mine = new CompletableFuture<>();
+        CompletableFuture<Stored> theirs = inflight.putIfAbsent(key, mine);
+        if (theirs != null) {
+            Stored result = null;
+            try {
+                result = theirs.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "Concurrent generation failed, generating the response myself", e);
+            } catch (TimeoutException e) {
+                LOGGER.log(Level.FINE, "Concurrent generation is too slow, generating the response myself");
+            }
+            if (result != null && replay(result, rsp)) {
+                shared.increment();
+                return;
+            }
+            dispatcher.service(req, rsp);
+            return;
+        }
+
+        misses.increment();
+        try {
+            generate(key, req, rsp, dispatcher, mine);
+        } finally {
+            inflight.remove(key, mine);
+        }
+    }
+
+    private void generate(
+            String key,
+            HttpServletRequest req,
+            HttpServletResponse rsp,
+            Dispatcher dispatcher,
+            CompletableFuture<Stored> future)
+            throws IOException, ServletException {
+        Path tmp = null;
+        TeeResponse tee;
+        try {
+            init();
+            tmp = Files.createTempFile(directory, TEMP_PREFIX, TEMP_SUFFIX);
+            tee = new TeeResponse(rsp, tmp);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Failed to cache a response in " + directory);
+            deleteQuietly(tmp);
+            future.complete(null);
+            dispatcher.service(req, rsp);
+            return;
+        }
+
+        try {
+            try {
+                dispatcher.service(req, tee);
+            } finally {
+                tee.close();
+            }
+        } catch (IOException | ServletException | RuntimeException e) {
+            future.completeExceptionally(e);
+            deleteQuietly(tmp);
+            throw e;
+        }
+
+        // the client has its response by now, so whatever happens next only matters to the cache
+        Stored s = null;
+        try {
+            if (tee.isCacheable()) {
+                Path file = directory.resolve(key + STORED_SUFFIX);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                s = new Stored(key, file, Files.size(file), tee.contentType, tee.headers);
+                store(key, s);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Failed to cache a response in " + directory);
+            s = null;
+        } finally {
+            future.complete(s);
+            deleteQuietly(tmp);
+        }
+    }
+
+    private static void deleteQuietly(@CheckForNull Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to delete " + file);
+        }
+    }
+
+    private void store(String key, Stored s) {
+        List<Stored> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Stored old = entries.put(key, s);
+            if (old != null) {
+                totalSize -= old.size;
+            }
+            totalSize += s.size;
+            Iterator<Stored> it = entries.values().iterator();
+            while (totalSize > maxSize && it.hasNext()) {
+                Stored e = it.next();
+                if (e == s) {
+                    continue;
+                }
+                it.remove();
+                totalSize -= e.size;
+                evicted.add(e);
+            }
+        }
+        for (Stored e : evicted) {
+            deleteQuietly(e.file);
+        }
+    }
+
+    /**
+     * Sends a stored response.
+     *
+     * @return false if the file is gone, in which case nothing was sent.
+     */
+    private boolean replay(Stored s, HttpServletResponse rsp) throws IOException {
+        InputStream in;
+        try {
+            in = Files.newInputStream(s.file);
+        } catch (IOException e) {
+            synchronized (entries) {
+                if (entries.remove(s.key, s)) {
+                    totalSize -= s.size;
+                }
+            }
+            return false;
+        }
+        try (in) {
+            rsp.setStatus(HttpServletResponse.SC_OK);
+            rsp.setContentType(s.contentType);
+            s.headers.forEach((name, values) -> values.forEach(v -> rsp.addHeader(name, v)));
+            rsp.setContentLengthLong(s.size);
+            in.transferTo(rsp.getOutputStream());
+            rsp.flushBuffer();
+            bytesServed.add(s.size);
+            return true;
+        }
+    }
+
+    /**
+     * Computes the cache key, also making sure that the user is allowed to fetch from this repository.
+     *
+     * @return null if this request shouldn't be cached, including when the response could depend on the user.
+     */
+    @CheckForNull
+    private String keyOf(HttpGitRepository repository, BufferedRequest req) throws IOException {
+        String body = normalize(req.decodedBody());
+        if (body == null) {
+            return null;
+        }
+
+        try (Repository db = repository.openRepository()) {
+            // run the same checks as a real fetch would, but leave the error reporting to it
+            try (UploadPack up = repository.createUploadPack(req, db)) {
+                if (up == null || !isShareable(up)) {
+                    return null;
+                }
+            } catch (ServiceNotEnabledException | ServiceNotAuthorizedException | RuntimeException e) {
+                return null;
+            }
+
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            update(md, db.getIdentifier());
+            update(md, String.valueOf(req.getHeader(GitProtocolConstants.PROTOCOL_HEADER)));
+            update(md, String.valueOf(acceptsGzip(req)));
+            Map<String, Ref> refs = RefAdvertisementCache.get().getRefs(db);
+            if (refs == null) {
+                refs = new TreeMap<>();
+                for (Ref r : db.getRefDatabase().getRefs()) {
+                    refs.put(r.getName(), r);
+                }
+            }
+            for (Ref r : new TreeMap<>(refs).values()) {
+                update(md, r.getName());
+                update(md, r.getObjectId() == null ? "" : r.getObjectId().name());
+            }
+            update(md, body);
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            return null; // let the real request report the problem
+        }
+    }
+
+    /**
+     * Does this {@link UploadPack} send the same response to everyone who's allowed to fetch?
+     *
+     * <p>
+     * Ref filters, hooks and request policies may depend on the user, so only those that come
+     * from the repository configuration, like the {@link UploadPackPolicy}, are fine.
+     */
+    static boolean isShareable(UploadPack up) {
+        PreUploadHook hook = up.getPreUploadHook();
+        if (up.getRefFilter() != RefFilter.DEFAULT
+                || up.getAdvertiseRefsHook() != AdvertiseRefsHook.DEFAULT
+                || (hook != null && hook != PreUploadHook.NULL && UploadPackPolicy.of(hook) == null)) {
+            return false;
+        }
+        try (UploadPack plain = new UploadPack(up.getRepository())) {
+            return up.getRequestPolicy() == plain.getRequestPolicy();
+        }
+    }
+
+    private static void update(MessageDigest md, String s) {
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        String ae = req.getHeader("Accept-Encoding");
+        return ae != null && ae.contains("gzip");
+    }
+
+    /**
+     * Normalizes the body of an upload-pack request, in either protocol version.
+     *
+     * @return null if the request isn't a clone-like request that we cache.
+     */
+    @CheckForNull
+    static String normalize(byte[] body) {
+        List<String> wants = new ArrayList<>();
+        List<String> others = new ArrayList<>();
+        boolean done = false;
+        int i = 0;
+        while (i + 4 <= body.length) {
+            int len;
+            try {
+                len = Integer.parseInt(new String(body, i, 4, StandardCharsets.US_ASCII), 16);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (len < 4) { // flush, delimiter or response-end packet
+                others.add(String.format("%04x", len));
+                i += 4;
+                continue;
+            }
+            if (i + len > body.length) {
+                return null;
+            }
+            String line = new String(body, i + 4, len - 4, StandardCharsets.UTF_8);
+            i += len;
+            if (line.endsWith("\n")) {
+                line = line.substring(0, line.length() - 1);
+            }
+
+            if (line.startsWith("have ")) {
+                return null;
+            }
+            if (line.equals("done")) {
+                done = true;
+            } else if (line.startsWith("want ")) {
+                String[] tokens = line.split(" ");
+                wants.add(tokens[0] + " " + tokens[1]);
+                if (tokens.length > 2) {
+                    // v0 sends its capabilities after the first want
+                    List<String> caps = new ArrayList<>();
+                    for (int t = 2; t < tokens.length; t++) {
+                        if (!isVolatile(tokens[t])) {
+                            caps.add(tokens[t]);
+                        }
+                    }
+                    Collections.sort(caps);
+                    others.add(String.join(" ", caps));
+                }
+                continue;
+            } else if (isVolatile(line)) {
+                continue;
+            }
+            others.add(line);
+        }
+        if (i != body.length || !done || wants.isEmpty()) {
+            return null;
+        }
+        Collections.sort(wants);
+        return String.join("\n", wants) + "\n" + String.join("\n", others);
+    }
+
+    /**
+     * Things the client sends that vary between clients but don't affect the response.
+     */
+    private static boolean isVolatile(String capability) {
+        return capability.startsWith("agent=") || capability.startsWith("session-id=");
+    }
+
+    private void init() throws IOException {
+        if (initialized) {
+            return;
+        }
+        synchronized (this) {
+            if (!initialized) {
+                Files.createDirectories(directory);
+                // whatever is left from a previous run isn't indexed, so it would never be used or evicted
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PackResponseCache::isOurs)) {
+                    files.forEach(PackResponseCache::deleteQuietly);
+                }
+                initialized = true;
+            }
+        }
+    }
+
+    /**
+     * Is this a file that the cache wrote? The directory can be configured, so anything else is left alone.
+     */
+    private static boolean isOurs(Path file) {
+        String name = file.getFileName().toString();
+        return Files.isRegularFile(file)
+                && ((name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX))
+                        || name.matches("[0-9a-f]{64}" + Pattern.quote(STORED_SUFFIX)));
+    }
+
+    /**
+     * Number of requests served from a stored response.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of requests served from a response generated for a concurrent identical request.
+     */
+    public long getSharedGenerations() {
+        return shared.sum();
+    }
+
+    /**
+     * Number of cacheable requests that had to generate their response.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of bytes sent from the cache.
+     */
+    public long getBytesServed() {
+        return bytesServed.sum();
+    }
+
+    /**
+     * Total size of the stored responses.
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return totalSize;
+        }
+    }
+
+    /**
+     * Reads the request body into memory, up to a limit, so that it can be inspected and then read again.
+     */
+    private static final class BufferedRequest extends HttpServletRequestWrapper {
+        private final byte[] buffer;
+        private final InputStream rest;
+
+        BufferedRequest(HttpServletRequest req) throws IOException {
+            super(req);
+            InputStream in = req.getInputStream();
+            buffer = in.readNBytes(MAX_REQUEST_SIZE + 1);
+            rest = buffer.length > MAX_REQUEST_SIZE ? in : InputStream.nullInputStream();
+        }
+
+        boolean isComplete() {
+            return buffer.length <= MAX_REQUEST_SIZE;
+        }
+
+        byte[] decodedBody() throws IOException {
+            if (!"gzip".equals(getHeader("Content-Encoding"))) {
+                return buffer;
+            }
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(buffer))) {
+                return in.readNBytes(MAX_REQUEST_SIZE);
+            }
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            InputStream in = new SequenceInputStream(new ByteArrayInputStream(buffer), rest);
+            return new ServletInputStream() {
+                private boolean finished;
+
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    finished = b < 0;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    finished = n < 0;
+                    return n;
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return finished;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * Sends a response while also writing its body into a file, and records what's needed to send it again.
+     *
+     * <p>
+     * Failing to write the file only makes the response not cacheable, so that the client doesn't notice.
+     */
+    private static final class TeeResponse extends HttpServletResponseWrapper {
+        private final FileChannel channel;
+        private final OutputStream copy;
+        private boolean copyFailed;
+        private int status = SC_OK;
+        private boolean error;
+        private String contentType;
+        private final Map<String, List<String>> headers = new LinkedHashMap<>();
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        TeeResponse(HttpServletResponse rsp, Path file) throws IOException {
+            super(rsp);
+            this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.copy = Channels.newOutputStream(channel);
+        }
+
+        boolean isCacheable() {
+            return status == SC_OK && !error && !copyFailed;
+        }
+
+        void close() {
+            if (writer != null) {
+                writer.flush();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to write the response to the cache", e);
+                copyFailed = true;
+            }
+        }
+
+        private void copy(byte[] b, int off, int len) {
+            if (copyFailed) {
+                return;
+            }
+            try {
+                copy.write(b, off, len);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to write the response to the cache", e);
+                copyFailed = true;
+            }
+        }
+
+        private void truncate() {
+            try {
+                channel.truncate(0);
+                channel.position(0);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to truncate the cached response", e);
+                copyFailed = true;
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream == null) {
+                ServletOutputStream out = super.getOutputStream();
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        copy(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return out.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        out.setWriteListener(writeListener);
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), StandardCharsets.UTF_8));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            error = true;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            error = true;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void setContentType(String type) {
+            contentType = type;
+            super.setContentType(type);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            List<String> values = new ArrayList<>();
+            values.add(value);
+            headers.put(name, values);
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            setHeader(name, String.valueOf(value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            addHeader(name, String.valueOf(value));
+        }
+
+        @Override
+        public void reset() {
+            status = SC_OK;
+            error = false;
+            contentType = null;
+            headers.clear();
+            super.reset();
+            truncate();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            truncate();
+        }
+    }
+
+    private static final String UPLOAD_PACK = "git-upload-pack";
+
+    private static final String TEMP_PREFIX = "response";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String STORED_SUFFIX = ".pack";
+
+    /**
+     * Upload-pack requests larger than this are passed through. Clones of repositories with
+     * many refs send a want line for each of them, hence the rather large default.
+     */
+    private static final int MAX_REQUEST_SIZE = 1024 * 1024;
+
+    /**
+     * Set to true to cache the responses to clone requests.
+     */
+    private static final boolean ENABLED =
+            SystemProperties.getBoolean(PackResponseCache.class.getName() + ".enabled", false);
+
+    private static volatile boolean enabled = ENABLED;
+
+    /**
+     * Number of seconds a request waits for an identical one to generate the response, before generating its own.
+     */
+    private static final int WAIT_TIMEOUT =
+            SystemProperties.getInteger(PackResponseCache.class.getName() + ".waitTimeout", 5);
+
+    /**
+     * Maximum total size of the stored responses, in megabytes.
+     */
+    private static final int MAX_SIZE_MB =
+            SystemProperties.getInteger(PackResponseCache.class.getName() + ".maxSize", 1024);
+
+    /**
+     * Lazily initialized, since it needs {@link Jenkins} to find its directory.
+     */
+    private static final class Holder {
+        static final PackResponseCache INSTANCE = new PackResponseCache(
+                Path.of(SystemProperties.getString(
+                        PackResponseCache.class.getName() + ".directory",
+                        Jenkins.get().getRootDir().toPath().resolve("caches/git-server/packs").toString())),
+                MAX_SIZE_MB * 1024L * 1024L);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PackResponseCache.class.getName());
+}
@@ -0,0 +1,334 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * How an {@link UploadPack} builds the packs it sends: how hard it searches for deltas, and how much it compresses.
+ *
+ * <p>
+ * JGit's defaults favor small packs. On a fast network, the CPU spent on finding deltas and deflating objects
+ * can be worth more than the bandwidth it saves, so this trades one for the other: the number of threads
+ * and the window of the delta search, the compression level, the size above which objects are sent as they are,
+ * and whether deltas and objects are copied from the existing packs or computed again.
+ *
+ * <p>
+ * By default, the tuning of a repository comes from its configuration, using the same keys as C Git,
+ * and otherwise from system properties, which default to what JGit does:
+ *
+ * <pre>
+ * [pack]
+ *     threads = 4
+ *     window = 10
+ *     compression = 1
+ *     reuseDeltas = true
+ *     reuseObjects = true
+ * [core]
+ *     bigFileThreshold = 50m
+ * </pre>
+ *
+ * <p>
+ * {@link HttpGitRepository#getPackTuning(Repository)} and {@link RepositoryResolver#getPackTuning(String, Repository)}
+ * can override that per repository. {@link ChannelTransport} sends the tuning along with each fetch, so that
+ * agents use the defaults of the controller.
+ */
+public final class PackTuning implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int threads;
+    private final int window;
+    private final int compressionLevel;
+    private final int bigFileThreshold;
+    private final boolean reuseDeltas;
+    private final boolean reuseObjects;
+
+    private PackTuning(
+            int threads,
+            int window,
+            int compressionLevel,
+            int bigFileThreshold,
+            boolean reuseDeltas,
+            boolean reuseObjects) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Number of threads can't be negative: " + threads);
+        }
+        if (window < 0) {
+            throw new IllegalArgumentException("Delta search window can't be negative: " + window);
+        }
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between -1 and 9: " + compressionLevel);
+        }
+        if (bigFileThreshold < 0) {
+            throw new IllegalArgumentException("Big file threshold can't be negative: " + bigFileThreshold);
+        }
+        this.threads = threads;
+        this.window = window;
+        this.compressionLevel = compressionLevel;
+        this.bigFileThreshold = bigFileThreshold;
+        this.reuseDeltas = reuseDeltas;
+        this.reuseObjects = reuseObjects;
+    }
+
+    /**
+     * Returns the system-wide defaults.
+     */
+    public static PackTuning getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Reads the tuning from the configuration of the given repository, falling back to the system-wide defaults.
+     */
+    public static PackTuning forRepository(Repository db) {
+        return DEFAULT.withConfig(db.getConfig());
+    }
+
+    /**
+     * Returns this tuning, except for what the given configuration sets.
+     *
+     * <p>
+     * Invalid values are logged and ignored, rather than failing every fetch from the repository.
+     */
+    public PackTuning withConfig(Config c) {
+        int min = Deflater.DEFAULT_COMPRESSION;
+        int max = Deflater.BEST_COMPRESSION;
+        int compression = getInt(c, "core", "compression", min, max, compressionLevel);
+        long threshold = getLong(c, "core", "bigfilethreshold", 0, Long.MAX_VALUE, bigFileThreshold);
+        return new PackTuning(
+                getInt(c, "pack", "threads", 0, Integer.MAX_VALUE, threads),
+                getInt(c, "pack", "window", 0, Integer.MAX_VALUE, window),
+                getInt(c, "pack", "compression", min, max, compression),
+                (int) Math.min(threshold, Integer.MAX_VALUE),
+                getBoolean(c, "pack", "reusedeltas", reuseDeltas),
+                getBoolean(c, "pack", "reuseobjects", reuseObjects));
+    }
+
+    private static int getInt(Config c, String section, String name, int min, int max, int defaultValue) {
+        return (int) getLong(c, section, name, min, max, defaultValue);
+    }
+
+    private static long getLong(Config c, String section, String name, long min, long max, long defaultValue) {
+        try {
+            // getLong also understands the k, m and g suffixes
+            return inRange(section + "." + name, c.getLong(section, null, name, defaultValue), min, max, defaultValue);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, () -> e.getMessage() + ", ignoring it");
+            return defaultValue;
+        }
+    }
+
+    private static boolean getBoolean(Config c, String section, String name, boolean defaultValue) {
+        try {
+            return c.getBoolean(section, name, defaultValue);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, () -> e.getMessage() + ", ignoring it");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the given value if it's between {@code min} and {@code max}, or else logs it and returns the default.
+     */
+    private static long inRange(String name, long value, long min, long max, long defaultValue) {
+        if (value < min || value > max) {
+            LOGGER.log(
+                    Level.WARNING,
+                    () -> "Ignoring " + name + " = " + value + ", which isn't between " + min + " and " + max);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    /**
+     * Number of threads searching for deltas, or 0 for one per processor.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public PackTuning withThreads(int threads) {
+        return new PackTuning(threads, window, compressionLevel, bigFileThreshold, reuseDeltas, reuseObjects);
+    }
+
+    /**
+     * Number of objects each object is compared with when searching for deltas. 0 turns the search off.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    public PackTuning withWindow(int window) {
+        return new PackTuning(threads, window, compressionLevel, bigFileThreshold, reuseDeltas, reuseObjects);
+    }
+
+    /**
+     * {@link Deflater} level of the objects that get compressed, from 0 for none to 9, or -1 for zlib's default.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public PackTuning withCompressionLevel(int compressionLevel) {
+        return new PackTuning(threads, window, compressionLevel, bigFileThreshold, reuseDeltas, reuseObjects);
+    }
+
+    /**
+     * Size in bytes above which objects are never searched for deltas.
+     */
+    public int getBigFileThreshold() {
+        return bigFileThreshold;
+    }
+
+    public PackTuning withBigFileThreshold(int bigFileThreshold) {
+        return new PackTuning(threads, window, compressionLevel, bigFileThreshold, reuseDeltas, reuseObjects);
+    }
+
+    /**
+     * Whether deltas found in the existing packs are sent as they are, rather than searched for again.
+     */
+    public boolean isReuseDeltas() {
+        return reuseDeltas;
+    }
+
+    public PackTuning withReuseDeltas(boolean reuseDeltas) {
+        return new PackTuning(threads, window, compressionLevel, bigFileThreshold, reuseDeltas, reuseObjects);
+    }
+
+    /**
+     * Whether objects in the existing packs are sent as they are, rather than compressed again.
+     */
+    public boolean isReuseObjects() {
+        return reuseObjects;
+    }
+
+    public PackTuning withReuseObjects(boolean reuseObjects) {
+        return new PackTuning(threads, window, compressionLevel, bigFileThreshold, reuseDeltas, reuseObjects);
+    }
+
+    /**
+     * Returns the {@link PackConfig} of the given repository, tuned as configured here.
+     */
+    public PackConfig toPackConfig(Repository db) {
+        PackConfig pc = new PackConfig(db);
+        pc.setThreads(threads);
+        pc.setDeltaSearchWindowSize(window);
+        pc.setCompressionLevel(compressionLevel);
+        pc.setBigFileThreshold(bigFileThreshold);
+        pc.setReuseDeltas(reuseDeltas);
+        pc.setReuseObjects(reuseObjects);
+        return pc;
+    }
+
+    /**
+     * Makes the given {@link UploadPack} build its packs as configured here.
+     *
+     * <p>
+     * This replaces the {@link PackConfig} that the {@link UploadPack} may already have, since it can't be read back,
+     * so anything else it configured is back to what the repository configuration says.
+     */
+    public UploadPack apply(UploadPack up) {
+        up.setPackConfig(toPackConfig(up.getRepository()));
+        APPLIED.put(up, this);
+        return up;
+    }
+
+    /**
+     * Returns the tuning last {@linkplain #apply(UploadPack) applied} to the given {@link UploadPack}, if any.
+     */
+    @CheckForNull
+    static PackTuning of(UploadPack up) {
+        return APPLIED.get(up);
+    }
+
+    /**
+     * Writes this tuning in the header of a {@link ChannelTransport.Session} operation.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(threads);
+        out.writeInt(window);
+        out.writeInt(compressionLevel);
+        out.writeInt(bigFileThreshold);
+        out.writeBoolean(reuseDeltas);
+        out.writeBoolean(reuseObjects);
+    }
+
+    static PackTuning read(DataInput in) throws IOException {
+        return new PackTuning(
+                in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readBoolean(), in.readBoolean());
+    }
+
+    @Override
+    public String toString() {
+        return "PackTuning[threads=" + threads + ",window=" + window + ",compressionLevel=" + compressionLevel
+                + ",bigFileThreshold=" + bigFileThreshold + ",reuseDeltas=" + reuseDeltas + ",reuseObjects="
+                + reuseObjects + "]";
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PackTuning.class.getName());
+
+    /**
+     * Reads a system property, ignoring it if it's out of range so that a typo doesn't break every fetch.
+     */
+    private static int getInteger(String name, int defaultValue, int min, int max) {
+        String key = PackTuning.class.getName() + "." + name;
+        return (int) inRange(key, SystemProperties.getInteger(key, defaultValue), min, max, defaultValue);
+    }
+
+    /**
+     * Default number of threads searching for deltas, 0 for one per processor.
+     */
+    private static final int THREADS = getInteger("threads", 0, 0, Integer.MAX_VALUE);
+
+    /**
+     * Default delta search window.
+     */
+    private static final int WINDOW =
+            getInteger("window", PackConfig.DEFAULT_DELTA_SEARCH_WINDOW_SIZE, 0, Integer.MAX_VALUE);
+
+    /**
+     * Default compression level, from 0 to 9, or -1 for zlib's default.
+     */
+    private static final int COMPRESSION_LEVEL = getInteger(
+            "compressionLevel", Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION);
+
+    /**
+     * Default size in bytes above which objects are never searched for deltas.
+     */
+    private static final int BIG_FILE_THRESHOLD =
+            getInteger("bigFileThreshold", PackConfig.DEFAULT_BIG_FILE_THRESHOLD, 0, Integer.MAX_VALUE);
+
+    /**
+     * Set to false to search for deltas again rather than reuse those of the existing packs.
+     */
+    private static final boolean REUSE_DELTAS = SystemProperties.getBoolean(
+            PackTuning.class.getName() + ".reuseDeltas", PackConfig.DEFAULT_REUSE_DELTAS);
+
+    /**
+     * Set to false to compress objects again rather than reuse those of the existing packs.
+     */
+    private static final boolean REUSE_OBJECTS = SystemProperties.getBoolean(
+            PackTuning.class.getName() + ".reuseObjects", PackConfig.DEFAULT_REUSE_OBJECTS);
+
+    /**
+     * What {@link #apply(UploadPack)} did, since {@link UploadPack} doesn't tell its {@link PackConfig},
+     * so that {@link AgentMirrors} can build the same packs on the agent.
+     */
+    private static final Map<UploadPack, PackTuning> APPLIED = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final PackTuning DEFAULT =
+            new PackTuning(THREADS, WINDOW, COMPRESSION_LEVEL, BIG_FILE_THRESHOLD, REUSE_DELTAS, REUSE_OBJECTS);
+}
@@ -0,0 +1,248 @@
+package org.jenkinsci.plugins.gitserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.AdvertiseRefsHook;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * Process-wide cache of the refs that {@link UploadPack} advertises, so that clients polling
+ * a repository that hasn't changed are answered without reading the ref database again.
+ *
+ * <p>
+ * Each cached set of refs (with annotated tags already peeled) is stamped with a cheap token:
+ * the timestamps of {@code packed-refs} and of the ref directories, plus a generation number
+ * that every push through this plugin bumps via {@link #getInvalidationHook()}. A cached set
+ * is only used as long as the token is unchanged and it isn't older than a few seconds, the latter
+ * to catch ref updates that happen behind our back deep in the ref hierarchy.
+ *
+ * <p>
+ * Only {@link UploadPack}s that use the default {@link AdvertiseRefsHook} are served from the cache,
+ * since a custom hook may advertise something else than what's in the ref database.
+ */
+public final class RefAdvertisementCache {
+    private static final class Entry {
+        final Token token;
+        final Map<String, Ref> refs;
+        final long created;
+        final long buildNanos;
+
+        Entry(Token token, Map<String, Ref> refs, long created, long buildNanos) {
+            this.token = token;
+            this.refs = refs;
+            this.created = created;
+            this.buildNanos = buildNanos;
+        }
+    }
+
+    /**
+     * Snapshot of what can change when refs are updated, cheap enough to compute on every request.
+     */
+    static final class Token {
+        private final long generation;
+        private final long[] stamps;
+
+        Token(long generation, long... stamps) {
+            this.generation = generation;
+            this.stamps = stamps;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Token)) {
+                return false;
+            }
+            Token that = (Token) o;
+            return generation == that.generation && Arrays.equals(stamps, that.stamps);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(generation) * 31 + Arrays.hashCode(stamps);
+        }
+    }
+
+    /**
+     * Access-ordered, so iteration starts from the least recently used entry.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Bumped on every push, keyed like {@link #entries}.
+     */
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder nanosSaved = new LongAdder();
+
+    private final PostReceiveHook invalidationHook = (rp, commands) -> invalidate(rp.getRepository());
+
+    RefAdvertisementCache(int maxSize, long ttl, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    public static RefAdvertisementCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Makes the given {@link UploadPack} advertise the cached refs of its repository, if it can.
+     *
+     * <p>
+     * If the refs can't be read, the {@link UploadPack} is left alone so that it reports the problem to the client.
+     */
+    public void apply(UploadPack up) {
+        if (up.getAdvertiseRefsHook() != AdvertiseRefsHook.DEFAULT) {
+            return;
+        }
+        try {
+            Map<String, Ref> refs = getRefs(up.getRepository());
+            if (refs != null) {
+                up.setAdvertisedRefs(refs);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to read the refs of " + up.getRepository());
+        }
+    }
+
+    /**
+     * Returns all the refs of the given repository, from the cache if it's still current.
+     *
+     * @return
+     *      null if this repository can't be cached, in which case the caller should read the refs itself.
+     */
+    Map<String, Ref> getRefs(Repository repo) throws IOException {
+        File dir = repo.getDirectory();
+        if (maxSize <= 0 || dir == null) {
+            return null;
+        }
+
+        String key = repo.getIdentifier();
+        // computed before reading the refs, so that a concurrent update makes the result look stale, not current
+        Token token = tokenOf(key, dir);
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            if (e != null && e.token.equals(token) && now - e.created < ttlNanos) {
+                hits.increment();
+                nanosSaved.add(e.buildNanos);
+                return e.refs;
+            }
+        }
+
+        misses.increment();
+        RefDatabase db = repo.getRefDatabase();
+        Map<String, Ref> refs = new HashMap<>();
+        for (Ref r : db.getRefs()) {
+            refs.put(r.getName(), r.isPeeled() ? r : db.peel(r));
+        }
+        refs = Collections.unmodifiableMap(refs);
+        long elapsed = System.nanoTime() - now;
+
+        synchronized (entries) {
+            entries.put(key, new Entry(token, refs, now, elapsed));
+            while (entries.size() > maxSize) {
+                Iterator<Entry> it = entries.values().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Forgets the cached refs of the given repository, typically because they were just updated.
+     */
+    public void invalidate(Repository repo) {
+        String key = repo.getIdentifier();
+        generations.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Hook that {@linkplain #invalidate(Repository) invalidates} the cache for the repository pushed to.
+     */
+    public PostReceiveHook getInvalidationHook() {
+        return invalidationHook;
+    }
+
+    private Token tokenOf(String key, File dir) {
+        AtomicLong g = generations.get(key);
+        File packedRefs = new File(dir, Constants.PACKED_REFS);
+        return new Token(
+                g == null ? 0 : g.get(),
+                packedRefs.lastModified(),
+                packedRefs.length(),
+                new File(dir, Constants.R_REFS).lastModified(),
+                new File(dir, Constants.R_HEADS).lastModified(),
+                new File(dir, Constants.R_TAGS).lastModified(),
+                new File(dir, "reftable/tables.list").lastModified());
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Number of ref advertisements served from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of ref advertisements that had to read the ref database.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Time it would have taken to read the ref database again for all the {@linkplain #getHits() hits}.
+     */
+    public long getTimeSaved(TimeUnit unit) {
+        return unit.convert(nanosSaved.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Maximum number of repositories whose refs are cached. 0 disables the cache.
+     */
+    private static final int MAX_SIZE =
+            SystemProperties.getInteger(RefAdvertisementCache.class.getName() + ".maxSize", 64);
+
+    /**
+     * Number of seconds cached refs are trusted without a push through this plugin invalidating them.
+     */
+    private static final int TTL = SystemProperties.getInteger(RefAdvertisementCache.class.getName() + ".ttl", 10);
+
+    private static final RefAdvertisementCache INSTANCE = new RefAdvertisementCache(MAX_SIZE, TTL, TimeUnit.SECONDS);
+
+    private static final Logger LOGGER = Logger.getLogger(RefAdvertisementCache.class.getName());
+}
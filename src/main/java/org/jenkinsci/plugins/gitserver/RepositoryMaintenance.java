@@ -0,0 +1,500 @@
+package org.jenkinsci.plugins.gitserver;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.pack.PackStatistics;
+import org.eclipse.jgit.transport.PostUploadHook;
+
+/**
+ * Keeps the repositories we serve in a shape that makes serving them cheap.
+ *
+ * <p>
+ * Without a pack bitmap index, {@code UploadPack} has to walk the history object by object to figure out
+ * what to send, and without a commit-graph every commit it looks at has to be inflated and parsed.
+ * On large repositories that dominates the time it takes to clone. This class makes sure both exist,
+ * by running a garbage collection with bitmaps and commit-graph enabled in the background.
+ *
+ * <p>
+ * Pushes also leave behind loose objects and small packs, which slowly degrade fetches if nobody
+ * compacts them. So the receive-pack path reports each push through {@link #recordPush(Repository)},
+ * and once a repository has received enough pushes, or has accumulated enough loose objects or packs,
+ * it is repacked, its refs packed and its unreachable objects pruned, again in the background.
+ * {@link #getStatus(Repository)} tells when that last happened and how long it took.
+ *
+ * <p>
+ * Whether {@code UploadPack} actually took advantage of them shows up in {@link PackStatistics},
+ * which we tally in {@link #getUploadsWithBitmaps()} and {@link #getUploadsWithoutBitmaps()}.
+ *
+ * <p>
+ * This changes the configuration of the repositories and runs garbage collections on them,
+ * so it only happens when enabled through the {@code org.jenkinsci.plugins.gitserver.RepositoryMaintenance.enabled}
+ * system property.
+ */
+public final class RepositoryMaintenance {
+    /**
+     * Repositories with a maintenance queued or in progress, keyed by {@link #keyOf(Repository)}.
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Access-ordered and bounded, so that this doesn't keep an entry for every repository ever served,
+     * without losing track of those that are served once in a while. Guarded by itself.
+     */
+    private final LinkedHashMap<String, Status> statuses;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            THREADS,
+            THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(QUEUE_SIZE),
+            new NamingThreadFactory(new DaemonThreadFactory(), "RepositoryMaintenance"));
+
+    private final LongAdder uploadsWithBitmaps = new LongAdder();
+    private final LongAdder uploadsWithoutBitmaps = new LongAdder();
+
+    private final boolean enabled;
+    private final int pushThreshold;
+    private final int looseObjectThreshold;
+    private final int packThreshold;
+    private final Duration minInterval;
+
+    RepositoryMaintenance(
+            boolean enabled, int pushThreshold, int looseObjectThreshold, int packThreshold, Duration minInterval) {
+        this(enabled, pushThreshold, looseObjectThreshold, packThreshold, minInterval, MAX_STATUSES);
+    }
+
+    RepositoryMaintenance(
+            boolean enabled,
+            int pushThreshold,
+            int looseObjectThreshold,
+            int packThreshold,
+            Duration minInterval,
+            int maxStatuses) {
+        this.statuses = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Status> eldest) {
+                return size() > maxStatuses && !pending.contains(eldest.getKey());
+            }
+        };
+        this.enabled = enabled;
+        this.pushThreshold = pushThreshold;
+        this.looseObjectThreshold = looseObjectThreshold;
+        this.packThreshold = packThreshold;
+        this.minInterval = minInterval;
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static RepositoryMaintenance get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Schedules a background garbage collection of the given repository if it lacks
+     * a pack bitmap index or a commit-graph.
+     *
+     * <p>
+     * This only looks at a few files, so it is cheap enough to be called whenever a repository is opened.
+     * A repository that was maintained recently isn't scheduled again, even if the garbage collection
+     * didn't produce the indexes, so that it doesn't run on every cache miss.
+     */
+    public void ensureReachabilityIndexes(Repository repo) {
+        if (enabled && !isRecentlyMaintained(repo) && !hasReachabilityIndexes(repo)) {
+            schedule(repo);
+        }
+    }
+
+    private boolean isRecentlyMaintained(Repository repo) {
+        Status s;
+        synchronized (statuses) {
+            s = statuses.get(keyOf(repo));
+        }
+        Instant last = s == null ? null : s.lastMaintained;
+        return last != null && last.plus(minInterval).isAfter(Instant.now());
+    }
+
+    /**
+     * Checks if the given repository has a commit-graph and at least one pack with a bitmap index.
+     *
+     * <p>
+     * Repositories that aren't stored on the local file system, or that don't have any branch yet,
+     * are considered fine as they are: garbage collections only build bitmaps for the history of branches.
+     */
+    public static boolean hasReachabilityIndexes(Repository repo) {
+        File dir = repo.getDirectory();
+        if (dir == null) {
+            return true;
+        }
+        try {
+            if (repo.getRefDatabase().getRefsByPrefix(Constants.R_HEADS).isEmpty()) {
+                return true;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to list refs of " + dir);
+            return true;
+        }
+        File objects = new File(dir, "objects");
+        File[] packs = new File(objects, "pack").listFiles((d, name) -> name.endsWith(".bitmap"));
+        return packs != null && packs.length > 0 && new File(objects, "info/commit-graph").isFile();
+    }
+
+    /**
+     * Called after the given repository received a push, to schedule a maintenance if it is due.
+     *
+     * <p>
+     * This never blocks on the maintenance itself, so it is safe to call from the request thread.
+     *
+     * @return
+     *      true if a maintenance was scheduled.
+     */
+    public boolean recordPush(Repository repo) {
+        if (!enabled) {
+            return false;
+        }
+        Status s = statusOf(repo);
+        int pushes = s.pushes.incrementAndGet();
+        if (isRecentlyMaintained(repo)) {
+            return false;
+        }
+        return (pushes >= pushThreshold || hasTooManyObjectFiles(repo)) && schedule(repo);
+    }
+
+    /**
+     * Checks the number of loose objects and packs against the thresholds,
+     * estimating the former from a single fan-out directory just like C Git does.
+     */
+    private boolean hasTooManyObjectFiles(Repository repo) {
+        File dir = repo.getDirectory();
+        if (dir == null) {
+            return false;
+        }
+        File objects = new File(dir, "objects");
+        String[] sample = new File(objects, "17").list();
+        if (sample != null && sample.length * 256L >= looseObjectThreshold) {
+            return true;
+        }
+        String[] packs = new File(objects, "pack").list((d, name) -> name.endsWith(".pack"));
+        return packs != null && packs.length >= packThreshold;
+    }
+
+    /**
+     * Schedules a background maintenance of the given repository, unless one is already queued.
+     *
+     * @return
+     *      true if the maintenance was scheduled.
+     */
+    public boolean schedule(Repository repo) {
+        String key = keyOf(repo);
+        if (!pending.add(key)) {
+            return false;
+        }
+
+        repo.incrementOpen(); // keep it open until the maintenance is over
+        try {
+            executor.execute(() -> {
+                try {
+                    maintain(repo);
+                } catch (IOException | GitAPIException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Failed to maintain " + key);
+                } finally {
+                    pending.remove(key);
+                    repo.close();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "Maintenance queue is full, skipping {0}", key);
+            pending.remove(key);
+            repo.close();
+            return false;
+        }
+    }
+
+    /**
+     * Runs the maintenance synchronously.
+     *
+     * <p>
+     * A garbage collection repacks the objects (writing the bitmap index and commit-graph along the way),
+     * packs the refs and prunes unreachable loose objects older than {@code gc.pruneExpire}.
+     */
+    void maintain(Repository repo) throws IOException, GitAPIException {
+        Status s = statusOf(repo);
+        s.pushes.set(0);
+        long start = System.nanoTime();
+        try {
+            enableReachabilityIndexes(repo);
+            Git.wrap(repo).gc().call();
+            s.lastFailure = null;
+        } catch (IOException | GitAPIException | RuntimeException e) {
+            s.lastFailure = e.toString();
+            throw e;
+        } finally {
+            s.lastDuration = Duration.ofNanos(System.nanoTime() - start);
+            s.lastMaintained = Instant.now();
+            s.count.incrementAndGet();
+        }
+        LOGGER.log(Level.FINE, "Maintained {0} in {1}ms", new Object[] {keyOf(repo), s.lastDuration.toMillis()});
+    }
+
+    /**
+     * Returns what we know about the maintenance of the given repository.
+     */
+    public Status getStatus(Repository repo) {
+        return statusOf(repo);
+    }
+
+    /**
+     * Returns what we know about the maintenance of the most recently seen repositories,
+     * keyed by their {@linkplain Repository#getIdentifier() identifier}.
+     *
+     * <p>
+     * This outlives the handles of the repositories, so that a repository pushed to once in a while still
+     * reaches the push threshold. Only the least recently seen ones are dropped once there are too many,
+     * and those that are {@linkplain #forget(Repository) forgotten}.
+     */
+    public Map<String, Status> getStatuses() {
+        synchronized (statuses) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(statuses));
+        }
+    }
+
+    /**
+     * Drops what we know about the given repository, unless it's being maintained.
+     *
+     * <p>
+     * Call this when the repository was deleted, so that whatever takes its place starts afresh.
+     */
+    public void forget(Repository repo) {
+        String key = keyOf(repo);
+        if (!pending.contains(key)) {
+            synchronized (statuses) {
+                statuses.remove(key);
+            }
+        }
+    }
+
+    private Status statusOf(Repository repo) {
+        synchronized (statuses) {
+            return statuses.computeIfAbsent(keyOf(repo), k -> new Status());
+        }
+    }
+
+    /**
+     * Maintenance history of one repository.
+     */
+    public static final class Status {
+        private final AtomicInteger pushes = new AtomicInteger();
+        private final AtomicInteger count = new AtomicInteger();
+        private volatile Instant lastMaintained;
+        private volatile Duration lastDuration;
+        private volatile String lastFailure;
+
+        /**
+         * Number of pushes received since the last maintenance started.
+         */
+        public int getPushesSinceMaintenance() {
+            return pushes.get();
+        }
+
+        /**
+         * Number of maintenances run since Jenkins started.
+         */
+        public int getMaintenanceCount() {
+            return count.get();
+        }
+
+        /**
+         * When the last maintenance finished, or null if it never ran.
+         */
+        public Instant getLastMaintained() {
+            return lastMaintained;
+        }
+
+        /**
+         * How long the last maintenance took, or null if it never ran.
+         */
+        public Duration getLastDuration() {
+            return lastDuration;
+        }
+
+        /**
+         * Why the last maintenance failed, or null if it succeeded.
+         */
+        public String getLastFailure() {
+            return lastFailure;
+        }
+    }
+
+    /**
+     * Turns on the configuration that makes garbage collections write bitmaps and commit-graphs,
+     * and that makes readers use the commit-graph.
+     */
+    public static void enableReachabilityIndexes(Repository repo) throws IOException {
+        StoredConfig config = repo.getConfig();
+        boolean dirty = false;
+        dirty |= setIfUnset(
+                config, ConfigConstants.CONFIG_CORE_SECTION, ConfigConstants.CONFIG_COMMIT_GRAPH, true);
+        dirty |= setIfUnset(
+                config, ConfigConstants.CONFIG_GC_SECTION, ConfigConstants.CONFIG_KEY_WRITE_COMMIT_GRAPH, true);
+        dirty |= setIfUnset(
+                config, ConfigConstants.CONFIG_PACK_SECTION, ConfigConstants.CONFIG_KEY_BUILD_BITMAPS, true);
+        if (dirty) {
+            config.save();
+        }
+    }
+
+    /**
+     * Checks if the refs of the given repository are stored in a reftable,
+     * as opposed to loose files and {@code packed-refs}.
+     */
+    public static boolean usesReftable(Repository repo) {
+        return ConfigConstants.CONFIG_REF_STORAGE_REFTABLE.equals(repo.getConfig()
+                .getString(ConfigConstants.CONFIG_EXTENSIONS_SECTION, null, ConfigConstants.CONFIG_KEY_REF_STORAGE));
+    }
+
+    /**
+     * Moves the refs of the given repository, reflogs included, from loose files and {@code packed-refs}
+     * into a reftable.
+     *
+     * <p>
+     * A reftable keeps all the refs sorted in a few binary files, so looking one up, listing them and
+     * updating many of them at once no longer depends on how many refs there are, which matters for
+     * repositories that get a ref per build. Older Git versions can't work on such a repository directly.
+     *
+     * @return
+     *      true if the refs were moved, false if they already were in a reftable,
+     *      or if the repository isn't stored on the local file system.
+     */
+    public static boolean convertToReftable(Repository repo) throws IOException {
+        if (!(repo instanceof FileRepository) || usesReftable(repo)) {
+            return false;
+        }
+        ((FileRepository) repo).convertRefStorage(ConfigConstants.CONFIG_REF_STORAGE_REFTABLE, true, false);
+        return true;
+    }
+
+    private static boolean setIfUnset(StoredConfig config, String section, String name, boolean value) {
+        if (config.getString(section, null, name) != null) {
+            return false; // respect what the administrator has chosen
+        }
+        config.setBoolean(section, null, name, value);
+        return true;
+    }
+
+    /**
+     * {@link PostUploadHook} that tallies whether each upload could use a bitmap index.
+     */
+    public PostUploadHook getUploadStatisticsHook() {
+        return this::recordUpload;
+    }
+
+    private void recordUpload(PackStatistics stats) {
+        if (stats.getBitmapIndexMisses() < 0) {
+            uploadsWithoutBitmaps.increment();
+        } else {
+            uploadsWithBitmaps.increment();
+        }
+        LOGGER.log(Level.FINER, "Sent {0} objects in {1}ms, bitmap index misses: {2}, reused packs: {3}", new Object[] {
+            stats.getTotalObjects(),
+            stats.getTimeTotal(),
+            stats.getBitmapIndexMisses(),
+            stats.getReusedPacks().size()
+        });
+    }
+
+    /**
+     * Number of packs sent for which the objects to send were found through a bitmap index.
+     */
+    public long getUploadsWithBitmaps() {
+        return uploadsWithBitmaps.sum();
+    }
+
+    /**
+     * Number of packs sent for which the history had to be walked object by object.
+     */
+    public long getUploadsWithoutBitmaps() {
+        return uploadsWithoutBitmaps.sum();
+    }
+
+    static String keyOf(Repository repo) {
+        return repo.getIdentifier();
+    }
+
+    /**
+     * Set to true to let this plugin configure and garbage collect the repositories it serves.
+     */
+    private static final boolean ENABLED =
+            SystemProperties.getBoolean(RepositoryMaintenance.class.getName() + ".enabled", false);
+
+    /**
+     * Number of pushes after which a repository gets maintained.
+     */
+    private static final int PUSH_THRESHOLD =
+            SystemProperties.getInteger(RepositoryMaintenance.class.getName() + ".pushThreshold", 100);
+
+    /**
+     * Approximate number of loose objects after which a repository gets maintained, like {@code gc.auto}.
+     */
+    private static final int LOOSE_OBJECT_THRESHOLD =
+            SystemProperties.getInteger(RepositoryMaintenance.class.getName() + ".looseObjectThreshold", 6700);
+
+    /**
+     * Number of packs after which a repository gets maintained, like {@code gc.autoPackLimit}.
+     */
+    private static final int PACK_THRESHOLD =
+            SystemProperties.getInteger(RepositoryMaintenance.class.getName() + ".packThreshold", 50);
+
+    /**
+     * Minimum number of seconds between two push-driven maintenances of the same repository.
+     */
+    private static final Duration MIN_INTERVAL = Duration.ofSeconds(
+            SystemProperties.getInteger(RepositoryMaintenance.class.getName() + ".minInterval", 300));
+
+    /**
+     * Number of repositories whose maintenance history is kept.
+     */
+    private static final int MAX_STATUSES =
+            Math.max(1, SystemProperties.getInteger(RepositoryMaintenance.class.getName() + ".maxStatuses", 10000));
+
+    /**
+     * Number of repositories maintained concurrently.
+     */
+    private static final int THREADS =
+            Math.max(1, SystemProperties.getInteger(RepositoryMaintenance.class.getName() + ".threads", 1));
+
+    /**
+     * Number of maintenance tasks that may be waiting for a thread.
+     */
+    private static final int QUEUE_SIZE =
+            Math.max(1, SystemProperties.getInteger(RepositoryMaintenance.class.getName() + ".queueSize", 100));
+
+    private static final RepositoryMaintenance INSTANCE = new RepositoryMaintenance(
+            ENABLED, PUSH_THRESHOLD, LOOSE_OBJECT_THRESHOLD, PACK_THRESHOLD, MIN_INTERVAL);
+
+    private static final Logger LOGGER = Logger.getLogger(RepositoryMaintenance.class.getName());
+}
@@ -4,8 +4,10 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.ExtensionList;
 import hudson.ExtensionPoint;
 import java.io.IOException;
+import java.util.Collection;
 import jenkins.model.Jenkins;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackConfig;
 import org.eclipse.jgit.transport.ReceivePack;
 import org.eclipse.jgit.transport.UploadPack;
 
@@ -33,6 +35,21 @@ import org.eclipse.jgit.transport.UploadPack;
  * Similarly, because of the difference in the way the leading '/' appears based on the protocol,
  * most implementations should support both "/acme/foo.git" and "acme/foo.git".
  *
+ * <h2>Repository handles</h2>
+ * <p>
+ * Neither {@link ReceivePack} nor {@link UploadPack} closes its repository. By default the repository
+ * of the returned ones is left alone, as it always was, since implementations may hand out repositories
+ * that they keep open themselves. Implementations that open a repository for every transfer, or better,
+ * borrow it from {@link SharedRepositoryCache}, should override {@link #isRepositoryClosedAfterTransfer()}
+ * so that it gets {@linkplain Repository#close() closed} once the transfer is over.
+ *
+ * <h2>Prefix routing</h2>
+ * <p>
+ * Git commands over SSH used to ask every {@link RepositoryResolver} in turn until one recognized the name.
+ * Implementations that own a known prefix should override {@link #getRepositoryNamePrefixes()},
+ * so that they only get asked about the names they can possibly recognize.
+ * See {@link RepositoryResolverIndex}.
+ *
  * @author Kohsuke Kawaguchi
  * @see HttpGitRepository
  */
@@ -65,6 +82,64 @@ public abstract class RepositoryResolver implements ExtensionPoint {
     @CheckForNull
     public abstract UploadPack createUploadPack(String fullRepositoryName) throws IOException, InterruptedException;
 
+    /**
+     * Whether the repository of the {@link ReceivePack} or {@link UploadPack} this returns is to be
+     * {@linkplain Repository#close() closed} once the transfer is over. See the class javadoc.
+     *
+     * @return
+     *      false by default, for the implementations that keep their repositories open.
+     */
+    public boolean isRepositoryClosedAfterTransfer() {
+        return false;
+    }
+
+    /**
+     * Returns the limits on partial and shallow clones of a repository returned by {@link #createUploadPack(String)}.
+     *
+     * <p>
+     * By default this comes from the repository configuration. See {@link UploadPackPolicy}.
+     *
+     * @param fullRepositoryName
+     *      The repository path name as given by git client.
+     * @param db
+     *      The repository of the {@link UploadPack} this resolver created.
+     */
+    public UploadPackPolicy getUploadPackPolicy(String fullRepositoryName, Repository db) {
+        return UploadPackPolicy.forRepository(db);
+    }
+
+    /**
+     * Returns how the packs sent by an {@link UploadPack} returned by {@link #createUploadPack(String)} are built.
+     *
+     * <p>
+     * By default this comes from the repository configuration. See {@link PackTuning}.
+     * It replaces any {@link PackConfig} that {@code createUploadPack} set, so tune the packs here instead.
+     *
+     * @param fullRepositoryName
+     *      The repository path name as given by git client.
+     * @param db
+     *      The repository of the {@link UploadPack} this resolver created.
+     */
+    public PackTuning getPackTuning(String fullRepositoryName, Repository db) {
+        return PackTuning.forRepository(db);
+    }
+
+    /**
+     * Declares the repository names this resolver may recognize.
+     *
+     * <p>
+     * If this method returns a non-null value, this resolver is only consulted for the repository names
+     * that start with one of the returned prefixes. Prefixes are matched against the name with its leading '/'
+     * removed, so "acme/" covers both "acme/foo.git" and "/acme/foo.git".
+     *
+     * @return
+     *      null, the default, to be consulted for every repository name.
+     */
+    @CheckForNull
+    public Collection<String> getRepositoryNamePrefixes() {
+        return null;
+    }
+
     public static ExtensionList<RepositoryResolver> all() throws IllegalStateException {
         return Jenkins.get().getExtensionList(RepositoryResolver.class);
     }
@@ -0,0 +1,265 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import jenkins.model.Jenkins;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * Dispatches a repository name to the {@link RepositoryResolver}s that may recognize it.
+ *
+ * <p>
+ * Resolvers that {@linkplain RepositoryResolver#getRepositoryNamePrefixes() declare their prefixes} are kept
+ * in a trie, so they are skipped for the names outside of their prefixes.
+ * The resolvers that remain, including those that don't declare anything, are asked in the usual extension order,
+ * as they always were.
+ *
+ * <p>
+ * The index is rebuilt whenever the extension list changes, or belongs to another {@link Jenkins} instance,
+ * such as after a restart within the same JVM.
+ *
+ * <p>
+ * Callers {@linkplain #release(UploadPack) release} what they got once the transfer is over, which closes
+ * the repository if the resolver {@linkplain RepositoryResolver#isRepositoryClosedAfterTransfer() asks for it}.
+ */
+public final class RepositoryResolverIndex {
+    private static final RepositoryResolverIndex INSTANCE = new RepositoryResolverIndex();
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * The extension list we listen to the changes of.
+     */
+    private ExtensionList<RepositoryResolver> listening;
+
+    private final LatencyRecorder resolutionLatency = new LatencyRecorder();
+
+    /**
+     * {@link UploadPack}s and {@link ReceivePack}s whose repository is to be closed once the transfer is over.
+     */
+    private final Set<Object> closeAfterTransfer =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    public static RepositoryResolverIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Finds the {@link UploadPack} for the given repository name.
+     *
+     * @return
+     *      null if no {@link RepositoryResolver} recognizes the name.
+     */
+    @CheckForNull
+    public UploadPack createUploadPack(String fullRepositoryName) throws IOException, InterruptedException {
+        return resolve(fullRepositoryName, this::createUploadPack);
+    }
+
+    /**
+     * Has the resolver create the {@link UploadPack}, then applies its policy and tuning.
+     */
+    @CheckForNull
+    UploadPack createUploadPack(RepositoryResolver rr, String fullRepositoryName)
+            throws IOException, InterruptedException {
+        UploadPack up = rr.createUploadPack(fullRepositoryName);
+        if (up == null) {
+            return null;
+        }
+        Repository db = up.getRepository();
+        try {
+            rr.getUploadPackPolicy(fullRepositoryName, db).apply(up);
+            rr.getPackTuning(fullRepositoryName, db).apply(up);
+        } catch (RuntimeException e) {
+            // the caller never gets to release it
+            if (rr.isRepositoryClosedAfterTransfer()) {
+                db.close();
+            }
+            throw e;
+        }
+        if (rr.isRepositoryClosedAfterTransfer()) {
+            closeAfterTransfer.add(up);
+        }
+        return up;
+    }
+
+    /**
+     * Finds the {@link ReceivePack} for the given repository name.
+     *
+     * @return
+     *      null if no {@link RepositoryResolver} recognizes the name.
+     */
+    @CheckForNull
+    public ReceivePack createReceivePack(String fullRepositoryName) throws IOException, InterruptedException {
+        return resolve(fullRepositoryName, (rr, name) -> {
+            ReceivePack rp = rr.createReceivePack(name);
+            if (rp != null && rr.isRepositoryClosedAfterTransfer()) {
+                closeAfterTransfer.add(rp);
+            }
+            return rp;
+        });
+    }
+
+    /**
+     * Call this once the transfer of an {@link UploadPack} that {@link #createUploadPack(String)} returned is over.
+     * Neither {@link UploadPack} nor {@link ReceivePack} closes its repository, so this does if the resolver
+     * {@linkplain RepositoryResolver#isRepositoryClosedAfterTransfer() leaves that to us}.
+     */
+    public void release(UploadPack up) {
+        release(up, up.getRepository());
+    }
+
+    /**
+     * Call this once the transfer of a {@link ReceivePack} that {@link #createReceivePack(String)} returned is over.
+     *
+     * @see #release(UploadPack)
+     */
+    public void release(ReceivePack rp) {
+        release(rp, rp.getRepository());
+    }
+
+    private void release(Object pack, Repository db) {
+        if (closeAfterTransfer.remove(pack)) {
+            db.close();
+        }
+    }
+
+    /**
+     * Time it took to find the repository for each name, whether it was found or not.
+     */
+    public LatencyRecorder getResolutionLatency() {
+        return resolutionLatency;
+    }
+
+    @FunctionalInterface
+    private interface Factory<T> {
+        T create(RepositoryResolver rr, String fullRepositoryName) throws IOException, InterruptedException;
+    }
+
+    private <T> T resolve(String fullRepositoryName, Factory<T> factory) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            for (RepositoryResolver rr : snapshot().candidates(fullRepositoryName)) {
+                T t = factory.create(rr, fullRepositoryName);
+                if (t != null) {
+                    return t;
+                }
+            }
+            return null;
+        } finally {
+            resolutionLatency.recordSince(start);
+        }
+    }
+
+    private Snapshot snapshot() {
+        ExtensionList<RepositoryResolver> all = RepositoryResolver.all();
+        Snapshot s = snapshot;
+        if (s == null || s.source != all) {
+            synchronized (this) {
+                s = snapshot;
+                if (s == null || s.source != all) {
+                    if (listening != all) {
+                        all.addListener(new ExtensionListListener() {
+                            @Override
+                            public void onChange() {
+                                snapshot = null;
+                            }
+                        });
+                        listening = all;
+                    }
+                    snapshot = s = new Snapshot(all);
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Strips the leading '/' that only some protocols put in front of the repository name.
+     */
+    static String normalize(String name) {
+        int i = 0;
+        while (i < name.length() && name.charAt(i) == '/') {
+            i++;
+        }
+        return name.substring(i);
+    }
+
+    private static final class Node {
+        final Map<Character, Node> children = new HashMap<>();
+
+        /**
+         * Positions in {@link Snapshot#resolvers} of the resolvers owning the prefix that ends here.
+         */
+        final BitSet owners = new BitSet();
+    }
+
+    /**
+     * Immutable view of the resolvers at some point in time.
+     */
+    static final class Snapshot {
+        /**
+         * What this was built from, to tell whether it's still current.
+         */
+        private final Object source;
+
+        private final List<RepositoryResolver> resolvers = new ArrayList<>();
+        private final Node root = new Node();
+
+        /**
+         * Positions in {@link #resolvers} of those that don't declare any prefix.
+         */
+        private final BitSet legacy = new BitSet();
+
+        Snapshot(Iterable<? extends RepositoryResolver> resolvers) {
+            this.source = resolvers;
+            for (RepositoryResolver rr : resolvers) {
+                int index = this.resolvers.size();
+                this.resolvers.add(rr);
+                Collection<String> prefixes = rr.getRepositoryNamePrefixes();
+                if (prefixes == null) {
+                    legacy.set(index);
+                    continue;
+                }
+                for (String prefix : prefixes) {
+                    Node n = root;
+                    for (char c : normalize(prefix).toCharArray()) {
+                        n = n.children.computeIfAbsent(c, k -> new Node());
+                    }
+                    n.owners.set(index);
+                }
+            }
+        }
+
+        /**
+         * Resolvers to try for the given name, in extension order.
+         */
+        Collection<RepositoryResolver> candidates(String fullRepositoryName) {
+            BitSet matches = (BitSet) legacy.clone();
+            Node n = root;
+            String name = normalize(fullRepositoryName);
+            for (int i = 0; n != null; i++) {
+                matches.or(n.owners);
+                n = i < name.length() ? n.children.get(name.charAt(i)) : null;
+            }
+
+            List<RepositoryResolver> r = new ArrayList<>(matches.cardinality());
+            for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+                r.add(resolvers.get(i));
+            }
+            return r;
+        }
+    }
+}
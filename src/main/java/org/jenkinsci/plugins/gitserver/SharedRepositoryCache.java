@@ -0,0 +1,259 @@
+package org.jenkinsci.plugins.gitserver;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Process-wide cache of open {@link Repository} handles, keyed by the directory they live in.
+ *
+ * <p>
+ * Building a {@link Repository} means re-reading its configuration, re-scanning the ref directory
+ * and re-opening pack indexes, which adds up quickly when polling clients hit the same repository
+ * thousands of times an hour. This cache lets all of them share one handle instead.
+ *
+ * <p>
+ * Handles are reference counted through {@link Repository#incrementOpen()} and {@link Repository#close()}:
+ * every {@link #borrow(Path, Opener)} hands out one reference that the caller closes as usual, while the cache
+ * holds on to one more. The cache gives up its own reference when the entry is evicted, either because it
+ * has not been borrowed for a while or because the cache grew beyond its size limit, so the repository
+ * is really closed once the last borrower is done with it.
+ */
+public final class SharedRepositoryCache {
+    /**
+     * Opens the repository on a cache miss.
+     */
+    @FunctionalInterface
+    public interface Opener {
+        Repository open() throws IOException;
+    }
+
+    private static final class Entry {
+        final Path key;
+        Repository repository;
+        long lastUsed;
+        boolean evicted;
+
+        Entry(Path key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Access-ordered, so iteration starts from the least recently used entry.
+     */
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    SharedRepositoryCache(int maxSize, long idleTimeout, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    public static SharedRepositoryCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the repository that lives in the given directory, opening it through
+     * the given {@link Opener} if it isn't cached yet.
+     *
+     * <p>
+     * The caller owns one reference to the returned repository and must {@link Repository#close() close}
+     * it when done, exactly as if it had opened the repository itself.
+     */
+    public Repository borrow(Path directory, Opener opener) throws IOException {
+        if (maxSize <= 0) {
+            misses.increment();
+            return opener.open();
+        }
+
+        Path key = directory.toAbsolutePath().normalize();
+        while (true) {
+            Entry e;
+            synchronized (entries) {
+                e = entries.computeIfAbsent(key, Entry::new);
+            }
+
+            Repository r;
+            synchronized (e) {
+                if (e.evicted) {
+                    continue; // lost the race against eviction; start over with a fresh entry
+                }
+                if (e.repository == null) {
+                    try {
+                        e.repository = opener.open();
+                    } catch (IOException | RuntimeException x) {
+                        e.evicted = true;
+                        synchronized (entries) {
+                            entries.remove(key, e);
+                        }
+                        throw x;
+                    }
+                    misses.increment();
+                } else {
+                    hits.increment();
+                }
+                r = e.repository;
+                r.incrementOpen();
+                e.lastUsed = System.nanoTime();
+            }
+
+            trimToSize();
+            return r;
+        }
+    }
+
+    /**
+     * Drops the cached handle of the given directory, if any, for example because the repository
+     * was deleted or recreated behind our back.
+     */
+    public void invalidate(Path directory) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.remove(directory.toAbsolutePath().normalize());
+        }
+        if (e != null) {
+            release(e);
+        }
+    }
+
+    /**
+     * Evicts all the entries that haven't been borrowed within the idle timeout.
+     *
+     * @return
+     *      number of entries evicted.
+     */
+    public int evictIdle() {
+        long now = System.nanoTime();
+        List<Entry> victims = new ArrayList<>();
+        synchronized (entries) {
+            for (Iterator<Entry> itr = entries.values().iterator(); itr.hasNext(); ) {
+                Entry e = itr.next();
+                if (now - e.lastUsed >= idleTimeoutNanos) {
+                    itr.remove();
+                    victims.add(e);
+                }
+            }
+        }
+        victims.forEach(this::release);
+        return victims.size();
+    }
+
+    /**
+     * Evicts everything.
+     */
+    public void clear() {
+        List<Entry> victims;
+        synchronized (entries) {
+            victims = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        victims.forEach(this::release);
+    }
+
+    private void trimToSize() {
+        List<Entry> victims = new ArrayList<>();
+        synchronized (entries) {
+            for (Iterator<Entry> itr = entries.values().iterator(); entries.size() > maxSize && itr.hasNext(); ) {
+                victims.add(itr.next());
+                itr.remove();
+            }
+        }
+        victims.forEach(this::release);
+    }
+
+    private void release(Entry e) {
+        Repository r;
+        synchronized (e) {
+            e.evicted = true;
+            r = e.repository;
+            e.repository = null;
+        }
+        if (r != null) {
+            evictions.increment();
+            LOGGER.log(Level.FINE, "Releasing cached repository {0}", e.key);
+            r.close();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Number of {@link #borrow(Path, Opener)} calls served from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of {@link #borrow(Path, Opener)} calls that had to open the repository.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of handles the cache has given up on, regardless of the reason.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Periodically closes repositories nobody has been using.
+     */
+    @Extension
+    public static final class IdleSweeper extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            int n = get().evictIdle();
+            if (n > 0) {
+                LOGGER.log(Level.FINE, "Evicted {0} idle repositories", n);
+            }
+        }
+    }
+
+    /**
+     * Maximum number of repositories kept open. 0 disables the cache.
+     */
+    private static final int MAX_SIZE =
+            SystemProperties.getInteger(SharedRepositoryCache.class.getName() + ".maxSize", 32);
+
+    /**
+     * Number of seconds a repository may stay unused before it is closed.
+     */
+    private static final int IDLE_TIMEOUT =
+            SystemProperties.getInteger(SharedRepositoryCache.class.getName() + ".idleTimeout", 300);
+
+    private static final SharedRepositoryCache INSTANCE =
+            new SharedRepositoryCache(MAX_SIZE, IDLE_TIMEOUT, TimeUnit.SECONDS);
+
+    private static final Logger LOGGER = Logger.getLogger(SharedRepositoryCache.class.getName());
+}
@@ -0,0 +1,204 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.FilterSpec;
+import org.eclipse.jgit.transport.PreUploadHook;
+import org.eclipse.jgit.transport.PreUploadHookChain;
+import org.eclipse.jgit.transport.ServiceMayNotContinueException;
+import org.eclipse.jgit.transport.TransferConfig;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * What partial and shallow clones an {@link UploadPack} accepts.
+ *
+ * <p>
+ * Object filters such as {@code --filter=blob:none} let agents that only need the latest tree of a large
+ * repository skip the blobs of the whole history, and shallow fetches let them skip the history itself.
+ * Both are on by default. Some of them are expensive for the server though, in particular {@code tree:<depth>}
+ * filters and very deep shallow fetches, which can't use the bitmap index, so they can be limited.
+ *
+ * <p>
+ * By default, the policy of a repository comes from its configuration, using the same keys as C Git
+ * where there is one:
+ *
+ * <pre>
+ * [uploadpack]
+ *     allowFilter = true
+ * [uploadpackfilter "tree"]
+ *     allow = true
+ *     maxDepth = 2
+ * [jenkins "uploadpack"]
+ *     maxDepth = 100
+ * </pre>
+ *
+ * <p>
+ * {@link HttpGitRepository#getUploadPackPolicy(Repository)} and
+ * {@link RepositoryResolver#getUploadPackPolicy(String, Repository)} can override that per repository.
+ */
+public final class UploadPackPolicy implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean allowFilter;
+    private final boolean allowTreeFilter;
+    private final long maxTreeDepth;
+    private final int maxDepth;
+
+    private UploadPackPolicy(boolean allowFilter, boolean allowTreeFilter, long maxTreeDepth, int maxDepth) {
+        this.allowFilter = allowFilter;
+        this.allowTreeFilter = allowTreeFilter;
+        this.maxTreeDepth = maxTreeDepth;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Reads the policy from the configuration of the given repository, falling back to the system-wide defaults.
+     */
+    public static UploadPackPolicy forRepository(Repository db) {
+        Config c = db.getConfig();
+        return new UploadPackPolicy(
+                c.getBoolean("uploadpack", null, "allowfilter", ALLOW_FILTER),
+                c.getBoolean("uploadpackfilter", "tree", "allow", true),
+                c.getLong("uploadpackfilter", "tree", "maxdepth", Long.MAX_VALUE),
+                c.getInt("jenkins", "uploadpack", "maxdepth", MAX_DEPTH));
+    }
+
+    /**
+     * Whether clients may ask for a partial clone with {@code --filter}.
+     */
+    public boolean isAllowFilter() {
+        return allowFilter;
+    }
+
+    public UploadPackPolicy withAllowFilter(boolean allowFilter) {
+        return new UploadPackPolicy(allowFilter, allowTreeFilter, maxTreeDepth, maxDepth);
+    }
+
+    /**
+     * Whether {@code tree:<depth>} filters are accepted, on top of the blob filters.
+     */
+    public boolean isAllowTreeFilter() {
+        return allowTreeFilter;
+    }
+
+    public UploadPackPolicy withAllowTreeFilter(boolean allowTreeFilter) {
+        return new UploadPackPolicy(allowFilter, allowTreeFilter, maxTreeDepth, maxDepth);
+    }
+
+    /**
+     * Largest depth accepted in {@code tree:<depth>} filters.
+     */
+    public long getMaxTreeDepth() {
+        return maxTreeDepth;
+    }
+
+    public UploadPackPolicy withMaxTreeDepth(long maxTreeDepth) {
+        return new UploadPackPolicy(allowFilter, allowTreeFilter, maxTreeDepth, maxDepth);
+    }
+
+    /**
+     * Largest depth accepted for shallow fetches, or 0 for no limit.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public UploadPackPolicy withMaxDepth(int maxDepth) {
+        return new UploadPackPolicy(allowFilter, allowTreeFilter, maxTreeDepth, maxDepth);
+    }
+
+    /**
+     * Makes the given {@link UploadPack} follow this policy.
+     *
+     * <p>
+     * Hooks and the request policy set by the implementation that created it are preserved.
+     */
+    public UploadPack apply(UploadPack up) {
+        // setTransferConfig resets the request policy from the configuration
+        UploadPack.RequestPolicy requestPolicy = up.getRequestPolicy();
+        Config c = new Config(up.getRepository().getConfig());
+        c.setBoolean("uploadpack", null, "allowfilter", allowFilter);
+        up.setTransferConfig(new TransferConfig(c));
+        up.setRequestPolicy(requestPolicy);
+
+        PreUploadHook existing = up.getPreUploadHook();
+        PreUploadHook check = new Check();
+        up.setPreUploadHook(
+                existing == null || existing == PreUploadHook.NULL
+                        ? check
+                        : PreUploadHookChain.newChain(List.of(check, existing)));
+        return up;
+    }
+
+    /**
+     * Returns the policy whose {@link #apply(UploadPack)} installed the given hook.
+     *
+     * @return
+     *      null if the hook is anything else, including a chain with other hooks.
+     */
+    @CheckForNull
+    static UploadPackPolicy of(PreUploadHook hook) {
+        return hook instanceof Check ? ((Check) hook).getPolicy() : null;
+    }
+
+    /**
+     * Rejects the requests that go beyond the limits, before any pack is computed.
+     */
+    private final class Check implements PreUploadHook {
+        UploadPackPolicy getPolicy() {
+            return UploadPackPolicy.this;
+        }
+
+        @Override
+        public void onBeginNegotiateRound(UploadPack up, Collection<? extends ObjectId> wants, int cntOffered)
+                throws ServiceMayNotContinueException {
+            check(up);
+        }
+
+        @Override
+        public void onEndNegotiateRound(
+                UploadPack up, Collection<? extends ObjectId> wants, int cntCommon, int cntNotFound, boolean ready) {}
+
+        @Override
+        public void onSendPack(
+                UploadPack up, Collection<? extends ObjectId> wants, Collection<? extends ObjectId> haves)
+                throws ServiceMayNotContinueException {
+            check(up);
+        }
+
+        private void check(UploadPack up) throws ServiceMayNotContinueException {
+            if (maxDepth > 0 && up.getDepth() > maxDepth) {
+                throw new ServiceMayNotContinueException(
+                        "Shallow fetches are limited to a depth of " + maxDepth + " on this server");
+            }
+            FilterSpec filter = up.getFilterSpec();
+            long treeDepth = filter.getTreeDepthLimit();
+            if (treeDepth >= 0) {
+                if (!allowTreeFilter) {
+                    throw new ServiceMayNotContinueException("Tree filters are not allowed on this server");
+                }
+                if (treeDepth > maxTreeDepth) {
+                    throw new ServiceMayNotContinueException(
+                            "Tree filters are limited to a depth of " + maxTreeDepth + " on this server");
+                }
+            }
+        }
+    }
+
+    /**
+     * Set to false to refuse partial clones unless the repository configuration allows them.
+     */
+    private static final boolean ALLOW_FILTER =
+            SystemProperties.getBoolean(UploadPackPolicy.class.getName() + ".allowFilter", true);
+
+    /**
+     * Default limit on the depth of shallow fetches, 0 for none.
+     */
+    private static final int MAX_DEPTH = SystemProperties.getInteger(UploadPackPolicy.class.getName() + ".maxDepth", 0);
+}
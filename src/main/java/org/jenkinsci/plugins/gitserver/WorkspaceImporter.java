@@ -0,0 +1,448 @@
+package org.jenkinsci.plugins.gitserver;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.ignore.IgnoreNode;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Commits the existing contents of a directory into a freshly created repository.
+ *
+ * <p>
+ * This does what {@code git add . && git commit} would, but the files are hashed and deflated
+ * in parallel, each directory being turned into a tree as soon as its children are done.
+ * The index is written at the end, with the size and timestamp of every file, so that
+ * {@code git status} and incremental checkouts see the workspace as clean without hashing it again.
+ *
+ * <p>
+ * {@code .gitignore} files are honored, along with {@code .git/info/exclude} and {@code core.excludesFile},
+ * and symlinks are recorded as such.
+ */
+final class WorkspaceImporter {
+    private final Repository repo;
+    private final Path root;
+    private final FS fs;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Index entries of the files imported so far, in no particular order.
+     */
+    private final Queue<DirCacheEntry> index = new ConcurrentLinkedQueue<>();
+
+    WorkspaceImporter(Repository repo, Path root) {
+        this.repo = repo;
+        this.root = root;
+        this.fs = repo.getFS();
+    }
+
+    /**
+     * Number of files imported so far.
+     */
+    long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * Number of bytes imported so far.
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Imports the directory, commits it on the current branch, and writes the index to match.
+     *
+     * @return the new commit.
+     */
+    ObjectId commit(PersonIdent author, String message, ProgressMonitor monitor) throws IOException {
+        ObjectId tree = importTree(monitor);
+        try (ObjectInserter ins = repo.newObjectInserter()) {
+            CommitBuilder c = new CommitBuilder();
+            c.setTreeId(tree);
+            c.setAuthor(author);
+            c.setCommitter(new PersonIdent(repo));
+            c.setMessage(message);
+            ObjectId commit = ins.insert(c);
+            ins.flush();
+
+            RefUpdate u = repo.updateRef(Constants.HEAD);
+            u.setNewObjectId(commit);
+            u.setExpectedOldObjectId(ObjectId.zeroId());
+            u.setRefLogMessage("commit (initial): " + message, false);
+            RefUpdate.Result r = u.update();
+            if (r != RefUpdate.Result.NEW) {
+                throw new IOException("Failed to update HEAD of " + repo + ": " + r);
+            }
+            writeIndex();
+            return commit;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        DirCache dc = repo.lockDirCache();
+        try {
+            DirCacheBuilder b = dc.builder();
+            for (DirCacheEntry e : index) {
+                b.add(e);
+            }
+            b.commit(); // sorts the entries
+        } finally {
+            dc.unlock();
+        }
+    }
+
+    /**
+     * Writes all the blobs and trees of the directory into the repository.
+     *
+     * @return the ID of the root tree.
+     */
+    ObjectId importTree(ProgressMonitor monitor) throws IOException {
+        Ignores global = readGlobalIgnores();
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            ForkJoinTask<ObjectId> task = pool.submit(new DirectoryTask(root, "", global));
+            monitor.beginTask("Importing " + root, ProgressMonitor.UNKNOWN);
+            long reported = 0;
+            long lastLog = System.nanoTime();
+            while (true) {
+                try {
+                    ObjectId tree = task.get(1, TimeUnit.SECONDS);
+                    monitor.update((int) (files.get() - reported));
+                    monitor.endTask();
+                    return tree;
+                } catch (TimeoutException e) {
+                    long now = files.get();
+                    monitor.update((int) (now - reported));
+                    reported = now;
+                    if (System.nanoTime() - lastLog > TimeUnit.SECONDS.toNanos(30)) {
+                        lastLog = System.nanoTime();
+                        LOGGER.log(Level.INFO, "Imported {0} files ({1} bytes) from {2} so far", new Object[] {
+                            now, bytes.get(), root
+                        });
+                    }
+                    if (monitor.isCancelled()) {
+                        task.cancel(true);
+                        throw new IOException("Import of " + root + " was cancelled");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing " + root, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Failed to import " + root, cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Rules that apply to the whole repository, in the order of precedence of
+     * {@link org.eclipse.jgit.treewalk.WorkingTreeIterator}: {@code .git/info/exclude}, then {@code core.excludesFile}.
+     */
+    @CheckForNull
+    private Ignores readGlobalIgnores() throws IOException {
+        Ignores ignores = null;
+        String excludesFile = repo.getConfig().get(CoreConfig.KEY).getExcludesFile();
+        if (excludesFile != null) {
+            File f = excludesFile.startsWith("~/")
+                    ? fs.resolve(fs.userHome(), excludesFile.substring(2))
+                    : fs.resolve(null, excludesFile);
+            ignores = readIgnores(f.toPath(), "", ignores);
+        }
+        return readIgnores(fs.resolve(repo.getDirectory(), Constants.INFO_EXCLUDE).toPath(), "", ignores);
+    }
+
+    /**
+     * Adds the rules of the given file, if it exists, in front of the others.
+     */
+    @CheckForNull
+    private static Ignores readIgnores(Path file, String base, @CheckForNull Ignores parent) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return parent;
+        }
+        IgnoreNode node = new IgnoreNode();
+        try (InputStream in = Files.newInputStream(file)) {
+            node.parse(file.toString(), in);
+        }
+        return new Ignores(node, base, parent);
+    }
+
+    /**
+     * Ignore rules in effect for a directory, innermost first.
+     */
+    private static final class Ignores {
+        final IgnoreNode node;
+        /**
+         * Path of the directory the rules apply to, relative to the root, with a trailing '/' unless empty.
+         */
+        final String base;
+
+        final Ignores parent;
+
+        Ignores(IgnoreNode node, String base, Ignores parent) {
+            this.node = node;
+            this.base = base;
+            this.parent = parent;
+        }
+
+        static boolean isIgnored(Ignores ignores, String path, boolean directory) {
+            for (Ignores i = ignores; i != null; i = i.parent) {
+                switch (i.node.isIgnored(path.substring(i.base.length()), directory)) {
+                    case IGNORED:
+                        return true;
+                    case NOT_IGNORED:
+                        return false;
+                    default:
+                        // defer to the parent directory
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An entry of a directory, along with what it will become in the tree.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final Path path;
+        final byte[] name;
+        final boolean directory;
+        final boolean symlink;
+        final long size;
+        final Instant lastModified;
+        FileMode mode;
+        ObjectId id;
+
+        Entry(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.name = Constants.encode(path.getFileName().toString());
+            this.directory = attrs.isDirectory();
+            this.symlink = attrs.isSymbolicLink();
+            this.size = attrs.size();
+            this.lastModified = attrs.lastModifiedTime().toInstant();
+        }
+
+        /**
+         * Git sorts directories as if their name ended with a '/'.
+         */
+        @Override
+        public int compareTo(Entry that) {
+            int n = Math.min(this.name.length, that.name.length);
+            for (int i = 0; i < n; i++) {
+                int c = (this.name[i] & 0xff) - (that.name[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return lastChar(this, n) - lastChar(that, n);
+        }
+
+        private static int lastChar(Entry e, int i) {
+            if (i < e.name.length) {
+                return e.name[i] & 0xff;
+            }
+            return e.directory ? '/' : 0;
+        }
+    }
+
+    /**
+     * Imports a directory, returning its tree, or null if there's nothing to commit in there.
+     */
+    private final class DirectoryTask extends RecursiveTask<ObjectId> {
+        private final Path dir;
+        private final String prefix;
+        private final Ignores parentIgnores;
+
+        DirectoryTask(Path dir, String prefix, Ignores parentIgnores) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.parentIgnores = parentIgnores;
+        }
+
+        @Override
+        protected ObjectId compute() {
+            try {
+                Ignores ignores = readIgnores();
+                List<Entry> entries = list(ignores);
+
+                List<Entry> dirs = new ArrayList<>();
+                List<ForkJoinTask<ObjectId>> dirTasks = new ArrayList<>();
+                List<ForkJoinTask<Void>> fileTasks = new ArrayList<>();
+                List<Entry> batch = new ArrayList<>();
+                for (Entry e : entries) {
+                    if (e.directory) {
+                        dirs.add(e);
+                        dirTasks.add(new DirectoryTask(e.path, prefix + e.path.getFileName() + "/", ignores).fork());
+                    } else {
+                        batch.add(e);
+                        if (batch.size() == BATCH_SIZE) {
+                            fileTasks.add(new FilesTask(prefix, batch).fork());
+                            batch = new ArrayList<>();
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    new FilesTask(prefix, batch).invoke();
+                }
+                for (ForkJoinTask<Void> t : fileTasks) {
+                    t.join();
+                }
+                for (int i = 0; i < dirs.size(); i++) {
+                    Entry e = dirs.get(i);
+                    e.mode = FileMode.TREE;
+                    e.id = dirTasks.get(i).join();
+                }
+
+                TreeFormatter tree = new TreeFormatter();
+                boolean empty = true;
+                for (Entry e : entries) {
+                    if (e.id != null) {
+                        tree.append(e.name, e.mode, e.id);
+                        empty = false;
+                    }
+                }
+                if (empty && !prefix.isEmpty()) {
+                    return null; // Git doesn't track empty directories
+                }
+                try (ObjectInserter ins = repo.newObjectInserter()) {
+                    ObjectId id = ins.insert(tree);
+                    ins.flush();
+                    return id;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Ignores readIgnores() throws IOException {
+            return WorkspaceImporter.readIgnores(dir.resolve(Constants.DOT_GIT_IGNORE), prefix, parentIgnores);
+        }
+
+        private List<Entry> list(Ignores ignores) throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    String name = p.getFileName().toString();
+                    if (name.equals(Constants.DOT_GIT)) {
+                        continue;
+                    }
+                    BasicFileAttributes attrs =
+                            Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (!attrs.isDirectory() && !attrs.isRegularFile() && !attrs.isSymbolicLink()) {
+                        continue; // sockets, pipes and the like
+                    }
+                    if (ignores != null && Ignores.isIgnored(ignores, prefix + name, attrs.isDirectory())) {
+                        continue;
+                    }
+                    entries.add(new Entry(p, attrs));
+                }
+            }
+            Entry[] sorted = entries.toArray(new Entry[0]);
+            Arrays.sort(sorted);
+            return Arrays.asList(sorted);
+        }
+    }
+
+    /**
+     * Writes the blobs of a batch of files from the same directory.
+     */
+    private final class FilesTask extends RecursiveTask<Void> {
+        private final String prefix;
+        private final List<Entry> entries;
+
+        FilesTask(String prefix, List<Entry> entries) {
+            this.prefix = prefix;
+            this.entries = entries;
+        }
+
+        @Override
+        protected Void compute() {
+            try (ObjectInserter ins = repo.newObjectInserter()) {
+                for (Entry e : entries) {
+                    if (e.symlink) {
+                        byte[] target = Constants.encode(fs.readSymLink(e.path.toFile()));
+                        e.id = ins.insert(Constants.OBJ_BLOB, target);
+                        e.mode = FileMode.SYMLINK;
+                    } else {
+                        try (InputStream in = Files.newInputStream(e.path)) {
+                            e.id = ins.insert(Constants.OBJ_BLOB, e.size, in);
+                        }
+                        e.mode = fs.supportsExecute() && fs.canExecute(e.path.toFile())
+                                ? FileMode.EXECUTABLE_FILE
+                                : FileMode.REGULAR_FILE;
+                        bytes.addAndGet(e.size);
+                    }
+                    DirCacheEntry ent = new DirCacheEntry(prefix + e.path.getFileName());
+                    ent.setFileMode(e.mode);
+                    ent.setObjectId(e.id);
+                    ent.setLength(e.size);
+                    ent.setLastModified(e.lastModified);
+                    index.add(ent);
+                    files.incrementAndGet();
+                }
+                ins.flush();
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Number of files hashed by a single task.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Number of threads importing files concurrently.
+     */
+    private static final int THREADS = SystemProperties.getInteger(
+            WorkspaceImporter.class.getName() + ".threads", Runtime.getRuntime().availableProcessors());
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceImporter.class.getName());
+}
@@ -1,9 +1,22 @@
 package org.jenkinsci.plugins.gitserver.ssh;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.AbortException;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.channel.ChannelSession;
 import org.apache.sshd.server.command.Command;
+import org.eclipse.jgit.transport.GitProtocolConstants;
 import org.jenkinsci.main.modules.sshd.AsynchronousCommand;
 import org.jenkinsci.main.modules.sshd.SshCommandFactory.CommandLine;
+import org.jenkinsci.plugins.gitserver.AdmissionController;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -18,10 +31,96 @@ abstract class AbstractGitCommand extends AsynchronousCommand {
     @Argument(index = 0, metaVar = "REPO", required = true, usage = "repository name")
     protected String repoName;
 
+    private Environment environment;
+    private ExitCallback exitCallback;
+
+    /**
+     * The command running on {@link SshCommandExecutor}, if it's enabled.
+     */
+    private volatile Future<?> task;
+
     AbstractGitCommand(CommandLine cmdLine) {
         super(cmdLine);
     }
 
+    @Override
+    public void setExitCallback(ExitCallback callback) {
+        this.exitCallback = callback;
+        super.setExitCallback(callback);
+    }
+
+    @Override
+    public void start(ChannelSession channel, Environment env) throws IOException {
+        this.environment = env;
+        SshCommandExecutor executor = SshCommandExecutor.get();
+        if (executor.isEnabled()) {
+            task = executor.submit(getCmdLine().getSingleLine(), this::run);
+        } else {
+            super.start(channel, env);
+        }
+    }
+
+    /**
+     * Does on {@link SshCommandExecutor} what {@link AsynchronousCommand} does on its own thread.
+     */
+    private void run() {
+        try {
+            int exitCode;
+            try (ACLContext ctx = ACL.as(getCurrentUser())) {
+                exitCode = runCommand();
+            }
+            getOutputStream().flush();
+            getErrorStream().flush();
+            exitCallback.onExit(exitCode);
+        } catch (Exception e) {
+            // report the cause of the death to the client
+            PrintWriter ps = new PrintWriter(new OutputStreamWriter(getErrorStream(), StandardCharsets.UTF_8));
+            e.printStackTrace(ps);
+            ps.flush();
+            exitCallback.onExit(255, e.getMessage());
+        }
+    }
+
+    @Override
+    public void destroy(ChannelSession channel) throws Exception {
+        Future<?> t = task;
+        if (t != null) {
+            t.cancel(true);
+        } else {
+            super.destroy(channel);
+        }
+    }
+
+    /**
+     * Value of {@code GIT_PROTOCOL} the client sent along with the command, such as "version=2",
+     * or null if it didn't send any.
+     */
+    @CheckForNull
+    protected String getGitProtocol() {
+        return environment == null
+                ? null
+                : environment.getEnv().get(GitProtocolConstants.PROTOCOL_ENVIRONMENT_VARIABLE);
+    }
+
+    /**
+     * Waits until {@link AdmissionController} lets this command work on {@link #repoName}.
+     *
+     * @return null if {@link AdmissionController} isn't enabled.
+     * @throws AbortException
+     *      if the server is too busy, which the client sees as an error message.
+     */
+    @CheckForNull
+    protected AdmissionController.Permit admit() throws AbortException, InterruptedException {
+        if (!AdmissionController.isEnabled()) {
+            return null;
+        }
+        try {
+            return AdmissionController.get().acquire(AdmissionController.repositoryKey(repoName));
+        } catch (AdmissionController.OverloadedException e) {
+            throw new AbortException(e.getMessage());
+        }
+    }
+
     @Override
     protected final int runCommand() throws Exception {
         try {
@@ -32,7 +131,13 @@ abstract class AbstractGitCommand extends AsynchronousCommand {
             throw new AbortException(e.getMessage());
         }
 
-        return doRun();
+        SshCommandExecutor executor = SshCommandExecutor.get();
+        executor.enter();
+        try {
+            return doRun();
+        } finally {
+            executor.exit();
+        }
     }
 
     protected abstract int doRun() throws Exception;
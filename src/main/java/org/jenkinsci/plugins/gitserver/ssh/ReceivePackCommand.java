@@ -2,9 +2,13 @@ package org.jenkinsci.plugins.gitserver.ssh;
 
 import hudson.AbortException;
 import java.io.IOException;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.ReceivePack;
 import org.jenkinsci.main.modules.sshd.SshCommandFactory.CommandLine;
-import org.jenkinsci.plugins.gitserver.RepositoryResolver;
+import org.jenkinsci.plugins.gitserver.AdmissionController;
+import org.jenkinsci.plugins.gitserver.GitServerMetrics;
+import org.jenkinsci.plugins.gitserver.GitServiceSupport;
+import org.jenkinsci.plugins.gitserver.RepositoryResolverIndex;
 
 /**
  * Implements "git-receive-pack" in Jenkins SSH that receives uploaded commits from clients.
@@ -18,12 +22,26 @@ public class ReceivePackCommand extends AbstractGitCommand {
 
     @Override
     protected int doRun() throws IOException, InterruptedException {
-        for (RepositoryResolver rr : RepositoryResolver.all()) {
-            ReceivePack rp = rr.createReceivePack(repoName);
-            if (rp != null) {
-                rp.receive(getInputStream(), getOutputStream(), getErrorStream());
-                return 0;
+        RepositoryResolverIndex index = RepositoryResolverIndex.get();
+        ReceivePack rp = index.createReceivePack(repoName);
+        if (rp != null) {
+            try (AdmissionController.Permit permit = admit()) {
+                Repository db = rp.getRepository();
+                GitServiceSupport.configure(rp);
+                GitServerMetrics.RepositoryMetrics metrics =
+                        GitServerMetrics.get().of(GitServerMetrics.Transport.SSH, db);
+                metrics.instrument(rp);
+                try {
+                    rp.receive(getInputStream(), getOutputStream(), getErrorStream());
+                } catch (IOException | RuntimeException e) {
+                    metrics.recordPushError();
+                    throw e;
+                }
+            } finally {
+                // ReceivePack doesn't close its repository, which the resolver may leave to us
+                index.release(rp);
             }
+            return 0;
         }
 
         throw new AbortException("No such repository exists:" + repoName);
@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.gitserver.ssh;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.gitserver.AdmissionController;
+
+/**
+ * Runs the SSH git commands, and keeps track of how many of them are running.
+ *
+ * <p>
+ * By default each command gets a new platform thread from the SSH module, which it blocks for the whole
+ * transfer, slow clients included. When {@linkplain #isEnabled() enabled}, the commands run here instead:
+ * on virtual threads if the JVM has them, so that thousands of idle or slow sessions only cost a bit of heap,
+ * and otherwise on a bounded pool of threads, where the commands beyond the limit wait for their turn.
+ */
+public final class SshCommandExecutor {
+    /**
+     * Null if not enabled.
+     */
+    private final ExecutorService executor;
+
+    private final boolean virtual;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder started = new LongAdder();
+
+    SshCommandExecutor(boolean enabled, int maxThreads) {
+        ExecutorService vt = enabled ? newVirtualThreadPerTaskExecutor() : null;
+        virtual = vt != null;
+        if (!enabled) {
+            executor = null;
+        } else if (virtual) {
+            executor = vt;
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    maxThreads,
+                    maxThreads,
+                    60,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "SSH git command"));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+    }
+
+    public static SshCommandExecutor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Whether the SSH git commands run here, rather than on a thread of their own.
+     */
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Whether the commands run on virtual threads, as opposed to the bounded pool.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Runs a command, in a thread named after it.
+     */
+    Future<?> submit(String name, Runnable command) {
+        return executor.submit(() -> {
+            Thread t = Thread.currentThread();
+            String oldName = t.getName();
+            t.setName("SSH command: " + name);
+            try {
+                command.run();
+            } finally {
+                t.setName(oldName);
+            }
+        });
+    }
+
+    /**
+     * Keeps count of a command from start to end, wherever it runs.
+     */
+    void enter() {
+        active.incrementAndGet();
+        started.increment();
+    }
+
+    void exit() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Number of SSH git commands running right now, including the ones waiting for {@link AdmissionController}.
+     */
+    public int getActiveSessions() {
+        return active.get();
+    }
+
+    /**
+     * Number of SSH git commands that ever started.
+     */
+    public long getStartedSessions() {
+        return started.sum();
+    }
+
+    /**
+     * Calls {@code Executors.newVirtualThreadPerTaskExecutor()}, which we can't link to as long as
+     * Java 17 is supported.
+     *
+     * @return null if the JVM has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService)
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Set to true to run SSH git commands on virtual threads, or on a bounded thread pool if unavailable.
+     */
+    private static final boolean ENABLED =
+            SystemProperties.getBoolean(SshCommandExecutor.class.getName() + ".enabled", false);
+
+    /**
+     * Number of threads of the pool used when there are no virtual threads.
+     */
+    private static final int MAX_THREADS =
+            SystemProperties.getInteger(SshCommandExecutor.class.getName() + ".maxThreads", 100);
+
+    private static final SshCommandExecutor INSTANCE = new SshCommandExecutor(ENABLED, MAX_THREADS);
+}
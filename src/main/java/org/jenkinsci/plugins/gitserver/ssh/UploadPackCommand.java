@@ -2,9 +2,14 @@ package org.jenkinsci.plugins.gitserver.ssh;
 
 import hudson.AbortException;
 import java.io.IOException;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.UploadPack;
 import org.jenkinsci.main.modules.sshd.SshCommandFactory.CommandLine;
-import org.jenkinsci.plugins.gitserver.RepositoryResolver;
+import org.jenkinsci.plugins.gitserver.AdmissionController;
+import org.jenkinsci.plugins.gitserver.AgentMirrors;
+import org.jenkinsci.plugins.gitserver.GitServerMetrics;
+import org.jenkinsci.plugins.gitserver.GitServiceSupport;
+import org.jenkinsci.plugins.gitserver.RepositoryResolverIndex;
 
 /**
  * Implements "git-upload-pack" in Jenkins SSH that lets clients
@@ -19,14 +24,28 @@ public class UploadPackCommand extends AbstractGitCommand {
 
     @Override
     protected int doRun() throws IOException, InterruptedException {
-        for (RepositoryResolver rr : RepositoryResolver.all()) {
-            UploadPack up = rr.createUploadPack(repoName);
-            if (up != null) {
-                try (up) {
-                    up.upload(getInputStream(), getOutputStream(), getErrorStream());
+        RepositoryResolverIndex index = RepositoryResolverIndex.get();
+        UploadPack up = index.createUploadPack(repoName);
+        if (up != null) {
+            try (up;
+                    AdmissionController.Permit permit = admit()) {
+                Repository db = up.getRepository();
+                GitServiceSupport.configure(up, getGitProtocol());
+                GitServerMetrics.RepositoryMetrics metrics =
+                        GitServerMetrics.get().of(GitServerMetrics.Transport.SSH, db);
+                metrics.instrument(up);
+                UploadPack served = AgentMirrors.get().route(up, getGitProtocol());
+                try {
+                    served.upload(getInputStream(), getOutputStream(), getErrorStream());
+                } catch (IOException | RuntimeException e) {
+                    metrics.recordUploadError();
+                    throw e;
                 }
-                return 0;
+            } finally {
+                // UploadPack doesn't close its repository, which the resolver may leave to us
+                index.release(up);
             }
+            return 0;
         }
 
         throw new AbortException("No such repository exists:" + repoName);
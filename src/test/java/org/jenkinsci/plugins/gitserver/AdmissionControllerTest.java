@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class AdmissionControllerTest {
+    @Test
+    void httpAndSshShareTheRepositoryKey() {
+        assertEquals("workflowLibs.git", AdmissionController.repositoryKey("/workflowLibs.git"));
+        assertEquals("workflowLibs.git", AdmissionController.repositoryKey("/workflowLibs.git/"));
+        assertEquals("workflowLibs.git", AdmissionController.repositoryKey("workflowLibs.git"));
+        assertEquals("", AdmissionController.repositoryKey("/"));
+    }
+
+    @Test
+    void repositoriesTakeTurns() throws Exception {
+        AdmissionController ac = new AdmissionController(1, 1, 10, 1, TimeUnit.MINUTES);
+        List<String> order = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            AdmissionController.Permit first = ac.acquire("a");
+            Future<?> a2 = executor.submit(() -> run(ac, "a", "a2", order));
+            awaitQueued(ac, 1);
+            Future<?> a3 = executor.submit(() -> run(ac, "a", "a3", order));
+            awaitQueued(ac, 2);
+            Future<?> b1 = executor.submit(() -> run(ac, "b", "b1", order));
+            awaitQueued(ac, 3);
+
+            first.close();
+            a2.get();
+            b1.get();
+            a3.get();
+            assertEquals(List.of("a2", "b1", "a3"), order);
+            assertEquals(0, ac.getRunning());
+            assertEquals(4, ac.getAdmitted());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void overload() throws Exception {
+        AdmissionController ac = new AdmissionController(1, 1, 0, 1, TimeUnit.MINUTES);
+        try (AdmissionController.Permit p = ac.acquire("a")) {
+            assertThrows(AdmissionController.OverloadedException.class, () -> ac.acquire("b"));
+        }
+
+        AdmissionController timeout = new AdmissionController(1, 1, 10, 10, TimeUnit.MILLISECONDS);
+        try (AdmissionController.Permit p = timeout.acquire("a")) {
+            assertThrows(AdmissionController.OverloadedException.class, () -> timeout.acquire("a"));
+            assertEquals(0, timeout.getQueued());
+        }
+        try (AdmissionController.Permit p = timeout.acquire("a")) {
+            assertEquals(1, timeout.getRunning());
+        }
+        assertEquals(1, timeout.getRejected());
+    }
+
+    private static Void run(AdmissionController ac, String repository, String name, List<String> order)
+            throws Exception {
+        try (AdmissionController.Permit p = ac.acquire(repository)) {
+            order.add(name);
+            // give the others a chance to barge in, which they shouldn't
+            Thread.sleep(50);
+        }
+        return null;
+    }
+
+    private static void awaitQueued(AdmissionController ac, int n) throws InterruptedException {
+        while (ac.getQueued() < n) {
+            Thread.sleep(1);
+        }
+    }
+}
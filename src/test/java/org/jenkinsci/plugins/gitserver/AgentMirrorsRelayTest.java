@@ -0,0 +1,90 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.Label;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.pack.PackStatistics;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class AgentMirrorsRelayTest {
+    private static final String LABEL = "git-mirror";
+
+    @TempDir
+    Path tmp;
+
+    @AfterEach
+    void tearDown() {
+        AgentMirrors.setLabel(null);
+    }
+
+    @Test
+    void relay(JenkinsRule j) throws Exception {
+        j.createOnlineSlave(Label.get(LABEL));
+        AgentMirrors.setLabel(LABEL);
+        AgentMirrors mirrors = AgentMirrors.get();
+
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Files.writeString(tmp.resolve("README"), "hello", StandardCharsets.UTF_8);
+            git.add().addFilepattern("README").call();
+            RevCommit head = git.commit().setMessage("first").call();
+            Repository repo = git.getRepository();
+            List<PackStatistics> statistics = new CopyOnWriteArrayList<>();
+
+            // no mirror is current yet, so the controller serves the first fetch and has the mirror made
+            try (UploadPack up = uploadPack(repo, statistics)) {
+                assertSame(up, mirrors.route(up, "version=2"));
+            }
+            long relayed = mirrors.getRelayed();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            UploadPack served;
+            while (true) {
+                UploadPack up = uploadPack(repo, statistics);
+                served = mirrors.route(up, "version=2");
+                if (served != up) {
+                    break;
+                }
+                up.close();
+                assertTrue(System.nanoTime() < deadline, "the mirror never became current");
+                Thread.sleep(100);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (UploadPack up = served) {
+                up.upload(new ByteArrayInputStream(AgentMirrorsTest.fetchRequest(head)), out, null);
+            }
+            assertEquals(relayed + 1, mirrors.getRelayed());
+            assertTrue(out.toString(StandardCharsets.ISO_8859_1).contains("packfile"));
+
+            // the hooks on the controller saw the pack that the agent sent
+            assertEquals(1, statistics.size());
+            assertEquals(3, statistics.get(0).getTotalObjects());
+            assertTrue(statistics.get(0).getTotalBytes() > 0);
+        }
+    }
+
+    private static UploadPack uploadPack(Repository repo, List<PackStatistics> statistics) {
+        UploadPack up = new UploadPack(repo);
+        up.setBiDirectionalPipe(false);
+        up.setPostUploadHook(statistics::add);
+        return up;
+    }
+}
@@ -0,0 +1,249 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.pack.PackStatistics;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.PreUploadHook;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AgentMirrorsTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void relayable() throws Exception {
+        try (Git git = Git.init().setBare(true).setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            assertTrue(AgentMirrors.isRelayable(new UploadPack(repo)));
+            assertTrue(AgentMirrors.isRelayable(UploadPackPolicy.forRepository(repo).apply(new UploadPack(repo))));
+
+            UploadPack filtered = new UploadPack(repo);
+            filtered.setRefFilter(refs -> refs);
+            assertFalse(AgentMirrors.isRelayable(filtered));
+
+            UploadPack hooked = new UploadPack(repo);
+            hooked.setPreUploadHook(PreUploadHook.NULL);
+            assertTrue(AgentMirrors.isRelayable(hooked));
+            hooked.setPreUploadHook(new PreUploadHook() {
+                @Override
+                public void onBeginNegotiateRound(
+                        UploadPack up, Collection<? extends ObjectId> wants, int cntOffered) {}
+
+                @Override
+                public void onEndNegotiateRound(
+                        UploadPack up,
+                        Collection<? extends ObjectId> wants,
+                        int cntCommon,
+                        int cntNotFound,
+                        boolean ready) {}
+
+                @Override
+                public void onSendPack(
+                        UploadPack up, Collection<? extends ObjectId> wants, Collection<? extends ObjectId> haves) {}
+            });
+            assertFalse(AgentMirrors.isRelayable(hooked));
+        }
+    }
+
+    @Test
+    void routeKeepsWhatCantBeRelayed() throws Exception {
+        try (Git git = Git.init().setBare(true).setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            UploadPack up = new UploadPack(repo);
+            assertSame(up, AgentMirrors.get().route(up, null));
+
+            AgentMirrors.setLabel("mirrors");
+            try {
+                UploadPack filtered = new UploadPack(repo);
+                filtered.setRefFilter(refs -> refs);
+                assertSame(filtered, AgentMirrors.get().route(filtered, null));
+            } finally {
+                AgentMirrors.setLabel(null);
+            }
+        }
+    }
+
+    /**
+     * The hooks of the controller get the statistics of a relayed fetch as JGit would give them.
+     */
+    @Test
+    void relayedStatistics() throws Exception {
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            RevCommit head = commit(git, "1");
+            PackStatistics original;
+            try (UploadPack up = new UploadPack(git.getRepository())) {
+                up.setBiDirectionalPipe(false);
+                up.setExtraParameters(List.of("version=2"));
+                up.upload(new ByteArrayInputStream(fetchRequest(head)), new ByteArrayOutputStream(), null);
+                original = up.getStatistics();
+            }
+            assertNotNull(original);
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(buf)) {
+                out.writeObject(new AgentMirrors.RelayedStatistics(original));
+            }
+            PackStatistics relayed;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf.toByteArray()))) {
+                relayed = ((AgentMirrors.RelayedStatistics) in.readObject()).toPackStatistics();
+            }
+            assertEquals(3, relayed.getTotalObjects());
+            assertEquals(original.getTotalObjects(), relayed.getTotalObjects());
+            assertEquals(original.getTotalBytes(), relayed.getTotalBytes());
+            assertEquals(original.getBitmapIndexMisses(), relayed.getBitmapIndexMisses());
+            assertEquals(original.getTimeTotal(), relayed.getTimeTotal());
+            assertTrue(relayed.getReusedPacks().isEmpty());
+        }
+    }
+
+    /**
+     * Clients that negotiate over a bidirectional pipe wait for the replies of the mirror with their end open,
+     * so the relay mustn't wait for more than what the mirror flushed.
+     */
+    @Test
+    void compressedRelay() throws Exception {
+        try (Git origin = Git.init().setDirectory(tmp.resolve("origin").toFile()).call()) {
+            commit(origin, "1");
+            try (Git client = Git.cloneRepository()
+                    .setURI(tmp.resolve("origin").toUri().toString())
+                    .setDirectory(tmp.resolve("client").toFile())
+                    .call()) {
+                // so that the client has something to negotiate with
+                RevCommit head = commit(origin, "2");
+                Repository mirror = origin.getRepository();
+                assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                    try (Transport t = new PipeTransport(
+                            client.getRepository(), false, (in, out) -> relay(mirror, in, out))) {
+                        t.fetch(NullProgressMonitor.INSTANCE, List.of(new RefSpec("+refs/heads/*:refs/remotes/m/*")));
+                    }
+                });
+                assertEquals(head, client.getRepository().resolve("refs/remotes/m/master"));
+            }
+        }
+    }
+
+    /**
+     * Copies between the client and the mirror as {@link AgentMirrors} does, with compression.
+     */
+    private static void relay(Repository mirror, InputStream in, OutputStream out) throws IOException {
+        PipeTransport.Ends agent =
+                PipeTransport.start(true, (ain, aout) -> new UploadPack(mirror).upload(ain, aout, null));
+        Thread requests = new Thread(() -> {
+            try {
+                AgentMirrors.copy(in, agent.out);
+            } catch (IOException e) {
+                // the client is gone
+            } finally {
+                IOUtils.closeQuietly(agent.out);
+            }
+        });
+        requests.setDaemon(true);
+        requests.start();
+        try {
+            AgentMirrors.copy(agent.in, out);
+        } finally {
+            agent.in.close();
+        }
+    }
+
+    @Test
+    void pushMakesTheMirrorIdentical() throws Exception {
+        Path mirror = tmp.resolve("mirror.git");
+        try (Git git = Git.init().setDirectory(tmp.resolve("repo").toFile()).call();
+                Git m = Git.init().setBare(true).setDirectory(mirror.toFile()).call()) {
+            Repository repo = git.getRepository();
+            commit(git, "1");
+            git.branchCreate().setName("topic").call();
+            git.tag().setName("v1").call();
+            sync(repo, mirror);
+            assertEquals(
+                    AgentMirrors.idsOf(repo.getRefDatabase().getRefs()),
+                    AgentMirrors.idsOf(m.getRepository().getRefDatabase().getRefs()));
+
+            // history rewritten, a branch deleted
+            git.branchDelete().setBranchNames("topic").call();
+            git.commit().setAmend(true).setMessage("amended").call();
+            sync(repo, mirror);
+            Map<String, ObjectId> refs = AgentMirrors.idsOf(m.getRepository().getRefDatabase().getRefs());
+            assertEquals(AgentMirrors.idsOf(repo.getRefDatabase().getRefs()), refs);
+            assertFalse(refs.containsKey("refs/heads/topic"));
+
+            // and everything deleted
+            try (Git empty = Git.init().setBare(true).setDirectory(tmp.resolve("empty.git").toFile()).call()) {
+                sync(empty.getRepository(), mirror);
+            }
+            assertTrue(m.getRepository().getRefDatabase().getRefs().isEmpty());
+        }
+    }
+
+    @Test
+    void copyFlushesAsItGoes() throws Exception {
+        byte[] data = new byte[ChannelTransport.BUFFER_SIZE * 2 + 1];
+        AtomicInteger flushes = new AtomicInteger();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushes.incrementAndGet();
+            }
+        };
+        assertEquals(data.length, AgentMirrors.copy(new ByteArrayInputStream(data), out));
+        assertEquals(data.length, out.size());
+        assertEquals(3, flushes.get());
+    }
+
+    private static void sync(Repository repo, Path mirror) throws Exception {
+        try (Transport t = Transport.open(repo, mirror.toUri().toString())) {
+            AgentMirrors.push(repo, t, AgentMirrors.idsOf(repo.getRefDatabase().getRefs()));
+        }
+    }
+
+    /**
+     * Protocol v2 request for everything reachable from the given commit.
+     */
+    static byte[] fetchRequest(ObjectId want) throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PacketLineOut pck = new PacketLineOut(buf);
+        pck.writeString("command=fetch\n");
+        pck.writeDelim();
+        pck.writeString("want " + want.name() + "\n");
+        pck.writeString("done\n");
+        pck.end();
+        return buf.toByteArray();
+    }
+
+    private static RevCommit commit(Git git, String content) throws Exception {
+        Files.writeString(git.getRepository().getWorkTree().toPath().resolve("file.txt"), content);
+        git.add().addFilepattern("file.txt").call();
+        return git.commit().setMessage(content).call();
+    }
+}
@@ -0,0 +1,196 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class AsyncPackServiceTest {
+    /**
+     * A client that only takes data when we say so.
+     */
+    private static final class SlowClient extends ServletOutputStream {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        volatile boolean ready;
+        WriteListener listener;
+
+        @Override
+        public synchronized void write(int b) {
+            received.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            received.write(b, off, len);
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            listener = writeListener;
+        }
+
+        synchronized int size() {
+            return received.size();
+        }
+    }
+
+    private static AsyncContext context(CountDownLatch completed) {
+        return (AsyncContext) Proxy.newProxyInstance(
+                AsyncContext.class.getClassLoader(), new Class<?>[] {AsyncContext.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("complete")) {
+                        completed.countDown();
+                    }
+                    return null;
+                });
+    }
+
+    @Test
+    void backpressure() throws Exception {
+        byte[] data = new byte[4 << 20];
+        new Random(0).nextBytes(data);
+        SlowClient client = new SlowClient();
+        CountDownLatch completed = new CountDownLatch(1);
+        AsyncPackService.NonBlockingOutput out = new AsyncPackService.NonBlockingOutput(context(completed), client);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < data.length; i += 1000) {
+                    out.write(data, i, Math.min(1000, data.length - i));
+                }
+                out.close();
+                return null;
+            });
+
+            // the writer can only get so far ahead of a client that takes nothing
+            Thread.sleep(500);
+            assertEquals(0, client.size());
+            assertTrue(!writer.isDone());
+
+            client.ready = true;
+            client.listener.onWritePossible();
+            writer.get(10, TimeUnit.SECONDS);
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+            assertArrayEquals(data, client.received.toByteArray());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void slowClientsDontHoldUpRequestsForever() throws Exception {
+        ThreadPoolExecutor pool = AsyncPackService.newPool(1, 1);
+        try {
+            PackResponseCache.Dispatcher big = (req, rsp) -> rsp.getOutputStream().write(new byte[16 << 20]);
+            Exchange slow = new Exchange();
+            AsyncPackService.service(pool, slow.request(), slow.response(), big);
+            // the only thread is stuck with a client that takes nothing
+            for (int i = 0; pool.getActiveCount() == 0; i++) {
+                assertTrue(i < 1000, "the pack generation didn't start");
+                Thread.sleep(10);
+            }
+            Exchange queued = new Exchange();
+            AsyncPackService.service(pool, queued.request(), queued.response(), big);
+
+            Exchange rejected = new Exchange();
+            AsyncPackService.service(pool, rejected.request(), rejected.response(), big);
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, rejected.status);
+            assertEquals("10", rejected.headers.get("Retry-After"));
+            assertTrue(rejected.completed.await(0, TimeUnit.SECONDS));
+
+            // once the slow client catches up, the queued request is served
+            for (Exchange e : List.of(slow, queued)) {
+                e.client.ready = true;
+                e.client.listener.onWritePossible();
+                assertTrue(e.completed.await(10, TimeUnit.SECONDS));
+                assertEquals(16 << 20, e.client.size());
+                assertEquals(0, e.status);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * An asynchronous request, whose response goes to a {@link SlowClient}.
+     */
+    private static final class Exchange {
+        final SlowClient client = new SlowClient();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final Map<String, String> headers = new ConcurrentHashMap<>();
+        volatile int status;
+
+        HttpServletRequest request() {
+            AsyncContext ctx = context(completed);
+            return (HttpServletRequest) Proxy.newProxyInstance(
+                    HttpServletRequest.class.getClassLoader(),
+                    new Class<?>[] {HttpServletRequest.class},
+                    (proxy, method, args) -> switch (method.getName()) {
+                        case "startAsync" -> ctx;
+                        case "getRequestURI" -> "/git/repo.git/git-upload-pack";
+                        default -> null;
+                    });
+        }
+
+        HttpServletResponse response() {
+            return (HttpServletResponse) Proxy.newProxyInstance(
+                    HttpServletResponse.class.getClassLoader(),
+                    new Class<?>[] {HttpServletResponse.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getOutputStream":
+                                return client;
+                            case "setHeader":
+                                headers.put((String) args[0], (String) args[1]);
+                                return null;
+                            case "sendError":
+                                status = (Integer) args[0];
+                                return null;
+                            case "isCommitted":
+                                return false;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+    }
+
+    @Test
+    void clientGoesAway() throws Exception {
+        SlowClient client = new SlowClient();
+        CountDownLatch completed = new CountDownLatch(1);
+        AsyncPackService.NonBlockingOutput out = new AsyncPackService.NonBlockingOutput(context(completed), client);
+        client.listener.onError(new IOException("connection reset"));
+        assertTrue(completed.await(0, TimeUnit.SECONDS));
+        assertThrows(IOException.class, () -> {
+            for (int i = 0; i < 100; i++) {
+                out.write(new byte[64 * 1024]);
+            }
+        });
+    }
+}
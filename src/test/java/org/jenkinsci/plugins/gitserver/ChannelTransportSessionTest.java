@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import hudson.FilePath;
+import hudson.model.Label;
+import hudson.model.Node;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ChannelTransportSessionTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void lostAgentDoesntHoldUpTheSession(JenkinsRule j) throws Exception {
+        Node agent = j.createOnlineSlave(Label.get("git"));
+        Path remote = tmp.resolve("remote");
+        Git.init().setDirectory(remote.toFile()).call().close();
+        FilePath workspace = agent.createPath(remote.toString());
+
+        try (Git git = Git.init().setDirectory(tmp.resolve("local").toFile()).call()) {
+            Repository local = git.getRepository();
+            ChannelTransport.Session session = ChannelTransport.openSession(workspace);
+            // an operation that never gets closed, and so holds the session
+            FetchConnection leaked = session.open(local).openFetch();
+            agent.toComputer().disconnect(null).get();
+
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                assertThrows(TransportException.class, () -> session.open(local).openFetch());
+                assertThrows(IOException.class, session::close);
+            });
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChannelTransportTest {
+    @TempDir
+    Path tmp;
+
+    /**
+     * The Git protocol waits for replies after flushing, so flushed data must get through
+     * even though the compressed stream isn't finished.
+     */
+    @Test
+    void compressedFlushGetsThrough() throws Exception {
+        PipedInputStream pipe = new PipedInputStream(64 * 1024);
+        OutputStream out = ChannelTransport.wrap(new PipedOutputStream(pipe), 1024, true);
+        InputStream in = ChannelTransport.wrap(pipe, 1024, true);
+
+        byte[] request = "0032want 0123456789012345678901234567890123456789\n".getBytes(StandardCharsets.US_ASCII);
+        out.write(request);
+        out.flush();
+        assertArrayEquals(request, in.readNBytes(request.length));
+
+        out.write(request);
+        out.close();
+        assertArrayEquals(request, in.readNBytes(request.length));
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    /**
+     * Operations of a session follow each other on the same stream, even when one side doesn't read everything.
+     */
+    @Test
+    void framedStreamsKeepOperationsApart() throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buf);
+        AtomicInteger closed = new AtomicInteger();
+        try (OutputStream out = ChannelTransport.wrap(
+                new ChannelTransport.FramedOutputStream(data, closed::incrementAndGet), 16, true)) {
+            out.write("first operation, with more than one buffer of data".getBytes(StandardCharsets.UTF_8));
+        }
+        try (OutputStream out = new ChannelTransport.FramedOutputStream(data, closed::incrementAndGet)) {
+            out.write("second".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(2, closed.get());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.toByteArray()));
+        try (InputStream first = ChannelTransport.wrap(
+                new ChannelTransport.FramedInputStream(in, closed::incrementAndGet), 16, true)) {
+            assertEquals("first", new String(first.readNBytes(5), StandardCharsets.UTF_8));
+        }
+        try (InputStream second = new ChannelTransport.FramedInputStream(in, closed::incrementAndGet)) {
+            assertEquals("second", new String(second.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals(4, closed.get());
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * A push waits for the report of the other side with its end still open, so reading compressed data
+     * mustn't wait for more than what was flushed.
+     */
+    @Test
+    void compressedPush() throws Exception {
+        try (Git client = Git.init().setDirectory(tmp.resolve("client").toFile()).call();
+                Git server = Git.init().setBare(true).setDirectory(tmp.resolve("server.git").toFile()).call()) {
+            Files.writeString(tmp.resolve("client/file.txt"), "hello", StandardCharsets.UTF_8);
+            client.add().addFilepattern("file.txt").call();
+            RevCommit commit = client.commit().setMessage("first").call();
+
+            PipeTransport.Server receivePack =
+                    (in, out) -> new ReceivePack(server.getRepository()).receive(in, out, null);
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                try (Transport t = new PipeTransport(client.getRepository(), true, receivePack)) {
+                    RemoteRefUpdate u = new RemoteRefUpdate(
+                            client.getRepository(), "refs/heads/master", "refs/heads/master", false, null, null);
+                    t.push(NullProgressMonitor.INSTANCE, List.of(u));
+                    assertEquals(RemoteRefUpdate.Status.OK, u.getStatus());
+                }
+            });
+            assertEquals(commit, server.getRepository().resolve("refs/heads/master"));
+        }
+    }
+}
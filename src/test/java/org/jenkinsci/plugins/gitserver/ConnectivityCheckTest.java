@@ -0,0 +1,244 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.UnpackException;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ConnectivityChecker;
+import org.eclipse.jgit.transport.ConnectivityChecker.ConnectivityCheckInfo;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.TestProtocol;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ConnectivityCheckTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void mode() throws Exception {
+        try (Git git = Git.init().setBare(true).setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            assertEquals(ConnectivityCheck.Mode.BITMAP, ConnectivityCheck.getMode(repo));
+            StoredConfig config = repo.getConfig();
+            config.setString("gitserver", null, "connectivityCheck", "walk");
+            assertEquals(ConnectivityCheck.Mode.WALK, ConnectivityCheck.getMode(repo));
+            config.setString("gitserver", null, "connectivityCheck", "nonsense");
+            assertEquals(ConnectivityCheck.Mode.BITMAP, ConnectivityCheck.getMode(repo));
+        }
+    }
+
+    @Test
+    void bitmapChecker() throws Exception {
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            RevCommit base = commit(git, "1");
+            AtomicBoolean fellBack = new AtomicBoolean();
+            ConnectivityChecker fallback = (info, haves, pm) -> fellBack.set(true);
+            ConnectivityCheck.BitmapChecker checker = new ConnectivityCheck.BitmapChecker(fallback);
+
+            RevCommit tip = commit(git, "2");
+            checker.checkConnectivity(info(repo, tip), Set.of(base), NullProgressMonitor.INSTANCE);
+            assertTrue(fellBack.get(), "no bitmaps yet");
+
+            RepositoryMaintenance.enableReachabilityIndexes(repo);
+            git.gc().call();
+            fellBack.set(false);
+            RevCommit next = commit(git, "3");
+            checker.checkConnectivity(info(repo, next), Set.of(tip), NullProgressMonitor.INSTANCE);
+            assertFalse(fellBack.get());
+
+            ObjectId broken = brokenCommit(repo, next);
+            assertThrows(
+                    MissingObjectException.class,
+                    () -> checker.checkConnectivity(info(repo, broken), Set.of(next), NullProgressMonitor.INSTANCE));
+            assertFalse(fellBack.get());
+        }
+    }
+
+    @Test
+    void bitmapModeNeedsBitmaps() throws Exception {
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            commit(git, "1");
+            // otherwise every push would walk the whole history
+            assertFalse(ConnectivityCheck.newReceivePack(repo).isCheckReferencedObjectsAreReachable());
+
+            RepositoryMaintenance.enableReachabilityIndexes(repo);
+            git.gc().call();
+            assertTrue(ConnectivityCheck.newReceivePack(repo).isCheckReferencedObjectsAreReachable());
+
+            repo.getConfig().setString("gitserver", null, "connectivityCheck", "off");
+            assertFalse(ConnectivityCheck.newReceivePack(repo).isCheckReferencedObjectsAreReachable());
+        }
+    }
+
+    @Test
+    void unadvertisedObjectsAreRejected() throws Exception {
+        Path server = tmp.resolve("server.git");
+        Path client = tmp.resolve("client");
+        try (Git s = Git.init().setBare(true).setDirectory(server.toFile()).call();
+                Git c = Git.init().setDirectory(client.toFile()).call()) {
+            Repository repo = s.getRepository();
+            RevCommit base = commit(c, "1");
+            c.push().setRemote(server.toUri().toString()).setRefSpecs(new RefSpec("master")).call();
+            RepositoryMaintenance.enableReachabilityIndexes(repo);
+            s.gc().call();
+
+            // an object the server has, but that the client can't have gotten from it
+            ObjectId secret;
+            try (ObjectInserter ins = repo.newObjectInserter()) {
+                secret = ins.insert(Constants.OBJ_BLOB, "secret".getBytes(StandardCharsets.UTF_8));
+                ins.flush();
+            }
+
+            // a push that refers to it without sending it
+            ObjectId commit;
+            ObjectId tree;
+            try (ObjectInserter ins = c.getRepository().newObjectInserter()) {
+                TreeFormatter tf = new TreeFormatter();
+                tf.append("secret.txt", FileMode.REGULAR_FILE, secret);
+                tree = ins.insert(tf);
+                CommitBuilder cb = new CommitBuilder();
+                cb.setTreeId(tree);
+                cb.setParentId(base);
+                PersonIdent ident = new PersonIdent("Jenkins", "noreply@jenkins-ci.org");
+                cb.setAuthor(ident);
+                cb.setCommitter(ident);
+                cb.setMessage("guess");
+                commit = ins.insert(cb);
+                ins.flush();
+            }
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            PacketLineOut pck = new PacketLineOut(request);
+            pck.writeString(base.name() + " " + commit.name() + " refs/heads/master\0 report-status\n");
+            pck.end();
+            try (PackWriter pw = new PackWriter(c.getRepository());
+                    RevWalk rw = new RevWalk(c.getRepository())) {
+                pw.preparePack(List.of(rw.parseAny(commit), rw.parseAny(tree)).iterator());
+                pw.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, request);
+            }
+
+            for (String mode : List.of("bitmap", "walk")) {
+                repo.getConfig().setString("gitserver", null, "connectivityCheck", mode);
+                ReceivePack rp = ConnectivityCheck.newReceivePack(repo);
+                rp.setBiDirectionalPipe(false);
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                assertThrows(
+                        UnpackException.class,
+                        () -> rp.receive(new ByteArrayInputStream(request.toByteArray()), response, null),
+                        mode);
+                assertEquals(base, repo.resolve("master"), mode);
+            }
+        }
+    }
+
+    @Test
+    void push() throws Exception {
+        Path server = tmp.resolve("server.git");
+        Path client = tmp.resolve("client");
+        try (Git s = Git.init().setBare(true).setDirectory(server.toFile()).call();
+                Git c = Git.init().setDirectory(client.toFile()).call()) {
+            commit(c, "1");
+            c.push().setRemote(server.toUri().toString()).setRefSpecs(new RefSpec("master")).call();
+            RepositoryMaintenance.enableReachabilityIndexes(s.getRepository());
+            s.gc().call();
+            commit(c, "2");
+
+            ReceivePack[] received = new ReceivePack[1];
+            TestProtocol<Object> protocol = new TestProtocol<>(null, (req, db) -> {
+                received[0] = ConnectivityCheck.newReceivePack(db);
+                return received[0];
+            });
+            Transport.register(protocol);
+            try {
+                URIish uri = protocol.register(new Object(), s.getRepository());
+                Iterable<PushResult> results = c.push()
+                        .setRemote(uri.toString())
+                        .setRefSpecs(new RefSpec("master"))
+                        .call();
+                for (PushResult r : results) {
+                    for (RemoteRefUpdate u : r.getRemoteUpdates()) {
+                        assertEquals(RemoteRefUpdate.Status.OK, u.getStatus());
+                    }
+                }
+            } finally {
+                Transport.unregister(protocol);
+            }
+            assertTrue(ConnectivityCheck.getNanos(received[0]) >= 0);
+        }
+    }
+
+    private static RevCommit commit(Git git, String content) throws Exception {
+        Files.writeString(git.getRepository().getWorkTree().toPath().resolve("file.txt"), content);
+        git.add().addFilepattern("file.txt").call();
+        return git.commit().setMessage(content).call();
+    }
+
+    /**
+     * Creates a commit on top of the given one, whose tree refers to a blob that doesn't exist.
+     */
+    private static ObjectId brokenCommit(Repository repo, ObjectId parent) throws Exception {
+        try (ObjectInserter ins = repo.newObjectInserter()) {
+            TreeFormatter tree = new TreeFormatter();
+            tree.append(
+                    "missing.txt",
+                    FileMode.REGULAR_FILE,
+                    ObjectId.fromString("0123456789012345678901234567890123456789"));
+            CommitBuilder c = new CommitBuilder();
+            c.setTreeId(ins.insert(tree));
+            c.setParentId(parent);
+            PersonIdent ident = new PersonIdent("Jenkins", "noreply@jenkins-ci.org");
+            c.setAuthor(ident);
+            c.setCommitter(ident);
+            c.setMessage("broken");
+            ObjectId id = ins.insert(c);
+            ins.flush();
+            return id;
+        }
+    }
+
+    /**
+     * What {@link ReceivePack} passes when it doesn't check the objects it received, like when only
+     * {@code receive.fsckObjects} is set. The other case is covered by {@link #unadvertisedObjectsAreRejected}.
+     */
+    private static ConnectivityCheckInfo info(Repository repo, ObjectId newId) {
+        ConnectivityCheckInfo info = new ConnectivityCheckInfo();
+        info.setRepository(repo);
+        info.setWalk(new RevWalk(repo));
+        info.setCommands(List.of(new ReceiveCommand(ObjectId.zeroId(), newId, Constants.R_HEADS + "topic")));
+        return info;
+    }
+}
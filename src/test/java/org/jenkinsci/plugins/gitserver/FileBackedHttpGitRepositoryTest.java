@@ -0,0 +1,236 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.TestProtocol;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileBackedHttpGitRepositoryTest {
+    @TempDir
+    Path tmp;
+
+    private static class Workspace extends FileBackedHttpGitRepository {
+        Workspace(Path workspace) {
+            super(workspace);
+        }
+
+        @Override
+        public Repository openRepository() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void checkPushPermission() {}
+    }
+
+    @Test
+    void updateWorkspace() throws Exception {
+        Path source = tmp.resolve("source");
+        Path workspace = tmp.resolve("workspace");
+        try (Git src = Git.init().setDirectory(source.toFile()).call()) {
+            ObjectId c1 = commit(src, "a.txt", "1");
+            try (Git ws = Git.cloneRepository()
+                    .setURI(source.toUri().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                Workspace w = new Workspace(workspace);
+                Repository repo = ws.getRepository();
+
+                ObjectId c2 = commit(src, "a.txt", "2");
+                w.updateWorkspace(repo, List.of(push(ws, c1, c2)));
+                assertEquals("2", Files.readString(workspace.resolve("a.txt")));
+                assertTrue(w.awaitWorkspace(repo, c1, 0, TimeUnit.SECONDS));
+                assertTrue(w.awaitWorkspace(repo, c2, 0, TimeUnit.SECONDS));
+
+                ObjectId c3 = commit(src, "b.txt", "3");
+                assertFalse(w.awaitWorkspace(repo, c3, 10, TimeUnit.MILLISECONDS));
+                w.updateWorkspace(repo, List.of(push(ws, c2, c3)));
+                assertEquals("3", Files.readString(workspace.resolve("b.txt")));
+                assertTrue(w.awaitWorkspace(repo, c3, 0, TimeUnit.SECONDS));
+                assertTrue(ws.status().call().isClean());
+            }
+        }
+    }
+
+    @Test
+    void firstUpdateAfterRestartIsIncremental() throws Exception {
+        Path source = tmp.resolve("source");
+        Path workspace = tmp.resolve("workspace");
+        try (Git src = Git.init().setDirectory(source.toFile()).call()) {
+            ObjectId c1 = commit(src, "a.txt", "1");
+            try (Git ws = Git.cloneRepository()
+                    .setURI(source.toUri().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                // a new instance doesn't know which commit the workspace is at
+                Workspace w = new Workspace(workspace);
+                Repository repo = ws.getRepository();
+                ObjectId c2 = commit(src, "a.txt", "2");
+                w.updateWorkspace(repo, List.of(push(ws, c1, c2)));
+                assertEquals("2", Files.readString(workspace.resolve("a.txt")));
+                assertEquals(0, w.getFullCheckouts());
+                assertTrue(ws.status().call().isClean());
+
+                // unless the index isn't where the push started from
+                w = new Workspace(workspace);
+                ObjectId c3 = commit(src, "a.txt", "3");
+                ObjectId c4 = commit(src, "a.txt", "4");
+                w.updateWorkspace(repo, List.of(push(ws, c2, c4)));
+                assertEquals("4", Files.readString(workspace.resolve("a.txt")));
+                w = new Workspace(workspace);
+                ReceiveCommand wrongBase = new ReceiveCommand(c3, c4, "refs/heads/master");
+                wrongBase.setResult(ReceiveCommand.Result.OK);
+                w.updateWorkspace(repo, List.of(wrongBase));
+                assertEquals(1, w.getFullCheckouts());
+                assertEquals("4", Files.readString(workspace.resolve("a.txt")));
+            }
+        }
+    }
+
+    @Test
+    void asyncUpdateWorkspace() throws Exception {
+        Path source = tmp.resolve("source");
+        Path workspace = tmp.resolve("workspace");
+        try (Git src = Git.init().setDirectory(source.toFile()).call()) {
+            commit(src, "a.txt", "1");
+            try (Git ws = Git.cloneRepository()
+                    .setURI(source.toUri().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                Workspace w = new Workspace(workspace);
+                w.setAsyncWorkspaceUpdate(true);
+
+                ObjectId c2 = commit(src, "a.txt", "2");
+                String messages = push(src, w, ws.getRepository());
+                assertTrue(messages.contains("Workspace update queued"), messages);
+                assertTrue(w.awaitWorkspace(ws.getRepository(), c2, 10, TimeUnit.SECONDS));
+                assertEquals("2", Files.readString(workspace.resolve("a.txt")));
+            }
+        }
+    }
+
+    @Test
+    void asyncUpdatesAreCoalesced() throws Exception {
+        Path source = tmp.resolve("source");
+        Path workspace = tmp.resolve("workspace");
+        try (Git src = Git.init().setDirectory(source.toFile()).call()) {
+            commit(src, "a.txt", "1");
+            try (Git ws = Git.cloneRepository()
+                    .setURI(source.toUri().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                CountDownLatch started = new CountDownLatch(1);
+                CountDownLatch release = new CountDownLatch(1);
+                AtomicInteger updates = new AtomicInteger();
+                Workspace w = new Workspace(workspace) {
+                    @Override
+                    protected void updateWorkspace(Repository repo) throws IOException, GitAPIException {
+                        updates.incrementAndGet();
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        super.updateWorkspace(repo);
+                    }
+                };
+                w.setAsyncWorkspaceUpdate(true);
+
+                commit(src, "a.txt", "2");
+                push(src, w, ws.getRepository());
+                assertTrue(started.await(10, TimeUnit.SECONDS));
+                commit(src, "a.txt", "3");
+                push(src, w, ws.getRepository());
+                ObjectId c4 = commit(src, "a.txt", "4");
+                push(src, w, ws.getRepository());
+                release.countDown();
+
+                // the workspace is known to be at master even though a subclass did the checkout
+                assertTrue(w.awaitWorkspace(ws.getRepository(), c4, 10, TimeUnit.SECONDS));
+                assertEquals("4", Files.readString(workspace.resolve("a.txt")));
+                assertEquals(2, updates.get(), "the last two pushes were checked out at once");
+            }
+        }
+    }
+
+    @Test
+    void atomicPushesWithReftable() throws Exception {
+        Path workspace = tmp.resolve("workspace");
+        try (Git ws = Git.init().setDirectory(workspace.toFile()).call()) {
+            Workspace w = new Workspace(workspace);
+            Repository repo = ws.getRepository();
+            assertFalse(w.createReceivePack(repo).isAtomic());
+            RepositoryMaintenance.convertToReftable(repo);
+            assertTrue(w.createReceivePack(repo).isAtomic());
+        }
+    }
+
+    private static ObjectId commit(Git git, String path, String content) throws Exception {
+        Files.writeString(git.getRepository().getWorkTree().toPath().resolve(path), content);
+        git.add().addFilepattern(path).call();
+        return git.commit().setMessage(path + "=" + content).call();
+    }
+
+    /**
+     * Pushes {@code master} to the workspace repository through {@link FileBackedHttpGitRepository#createReceivePack}.
+     *
+     * @return
+     *      the messages the client got.
+     */
+    private static String push(Git src, FileBackedHttpGitRepository w, Repository db) throws Exception {
+        TestProtocol<Object> protocol = new TestProtocol<>(null, (req, repo) -> w.createReceivePack(repo));
+        Transport.register(protocol);
+        try {
+            URIish uri = protocol.register(new Object(), db);
+            StringBuilder messages = new StringBuilder();
+            for (PushResult r : src.push()
+                    .setRemote(uri.toString())
+                    .setRefSpecs(new RefSpec("master"))
+                    .call()) {
+                for (RemoteRefUpdate u : r.getRemoteUpdates()) {
+                    assertEquals(RemoteRefUpdate.Status.OK, u.getStatus());
+                }
+                messages.append(r.getMessages());
+            }
+            return messages.toString();
+        } finally {
+            Transport.unregister(protocol);
+        }
+    }
+
+    /**
+     * Does what a push of {@code to} over {@code from} would do to the workspace repository.
+     */
+    private static ReceiveCommand push(Git ws, ObjectId from, ObjectId to) throws Exception {
+        ws.fetch().call();
+        RefUpdate u = ws.getRepository().updateRef("refs/heads/master");
+        u.setExpectedOldObjectId(from);
+        u.setNewObjectId(to);
+        assertEquals(RefUpdate.Result.FAST_FORWARD, u.update());
+        ReceiveCommand cmd = new ReceiveCommand(from, to, "refs/heads/master");
+        cmd.setResult(ReceiveCommand.Result.OK);
+        return cmd;
+    }
+}
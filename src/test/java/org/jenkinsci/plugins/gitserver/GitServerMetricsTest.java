@@ -0,0 +1,97 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitServerMetricsTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void histogram() {
+        Histogram h = Histogram.exponential(1, 100, 10);
+        assertEquals(3, h.getBucketCount());
+        assertEquals(100, h.getBound(2));
+        h.observe(0);
+        h.observe(5);
+        h.observe(10);
+        h.observe(1000);
+        assertEquals(1, h.getCumulativeCount(0));
+        assertEquals(3, h.getCumulativeCount(1));
+        assertEquals(3, h.getCumulativeCount(2));
+        assertEquals(4, h.getCount());
+        assertEquals(1015, h.getSum());
+    }
+
+    @Test
+    void upload() throws Exception {
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            ObjectId tip = git.commit().setMessage("first").call();
+
+            GitServerMetrics.RepositoryMetrics metrics = new GitServerMetrics()
+                    .of(GitServerMetrics.Transport.SSH, git.getRepository());
+            AtomicBoolean existing = new AtomicBoolean();
+            UploadPack up = new UploadPack(git.getRepository());
+            up.setPostUploadHook(stats -> existing.set(true));
+            metrics.instrument(up);
+
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            PacketLineOut pck = new PacketLineOut(request);
+            pck.writeString("command=fetch\n");
+            pck.writeDelim();
+            pck.writeString("want " + tip.name() + "\n");
+            pck.writeString("done\n");
+            pck.end();
+            up.setExtraParameters(List.of("version=2"));
+            up.setBiDirectionalPipe(false);
+            up.upload(new ByteArrayInputStream(request.toByteArray()), new ByteArrayOutputStream(), null);
+
+            assertTrue(existing.get(), "the hook that was already there still runs");
+            assertEquals(1, metrics.uploads.sum());
+            assertEquals(2, metrics.objects.sum()); // the commit and its empty tree
+            assertTrue(metrics.bytes.sum() > 0);
+            assertEquals(1, metrics.uploadBytes.getCount());
+        }
+    }
+
+    @Test
+    void tooManyRepositories() {
+        GitServerMetrics m = new GitServerMetrics();
+        GitServerMetrics.RepositoryMetrics first = null;
+        for (int i = 0; i < 1000; i++) {
+            GitServerMetrics.RepositoryMetrics r = m.of(GitServerMetrics.Transport.HTTP, repository("r" + i));
+            if (first == null) {
+                first = r;
+            }
+        }
+        assertSame(first, m.of(GitServerMetrics.Transport.HTTP, repository("r0")));
+        GitServerMetrics.RepositoryMetrics others = m.of(GitServerMetrics.Transport.HTTP, repository("more"));
+        assertSame(others, m.of(GitServerMetrics.Transport.HTTP, repository("and more")));
+        assertNotSame(others, m.of(GitServerMetrics.Transport.SSH, repository("more")));
+    }
+
+    @Test
+    void escape() {
+        assertEquals("a\\\"b\\\\c\\nd", GitServerMetrics.escape("a\"b\\c\nd"));
+    }
+
+    private static InMemoryRepository repository(String name) {
+        return new InMemoryRepository(new DfsRepositoryDescription(name));
+    }
+}
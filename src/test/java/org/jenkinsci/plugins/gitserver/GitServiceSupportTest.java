@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.RefAdvertiser;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitServiceSupportTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void protocolV2() throws Exception {
+        try (Repository repo = new FileRepositoryBuilder()
+                .setGitDir(tmp.resolve("repo.git").toFile())
+                .build()) {
+            repo.create(true);
+
+            String v2 = advertise(GitServiceSupport.configure(new UploadPack(repo), "version=2"));
+            assertTrue(v2.contains("version 2"), v2);
+            assertTrue(v2.contains("ls-refs"), v2);
+
+            String v0 = advertise(GitServiceSupport.configure(new UploadPack(repo), null));
+            assertFalse(v0.contains("version 2"), v0);
+        }
+    }
+
+    private static String advertise(UploadPack up) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        up.setBiDirectionalPipe(false);
+        up.sendAdvertisedRefs(new RefAdvertiser.PacketLineOutRefAdvertiser(new PacketLineOut(out)));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
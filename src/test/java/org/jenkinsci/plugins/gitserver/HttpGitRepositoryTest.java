@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import hudson.model.RootAction;
+import jakarta.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import jenkins.model.Jenkins;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
+import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class HttpGitRepositoryTest {
+    private static final String USER = "alice";
+
+    @TempDir
+    Path tmp;
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) throws Exception {
+        this.j = j;
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        Path workspace = TestRepository.workspace();
+        Files.createDirectories(workspace);
+        Files.writeString(workspace.resolve("README"), "hello", StandardCharsets.UTF_8);
+        TestRepository.user = null;
+        TestRepository.broken = false;
+        AsyncPackService.setEnabled(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        AsyncPackService.setEnabled(false);
+        PackResponseCache.setEnabled(false);
+    }
+
+    @Test
+    void asyncClone() throws Exception {
+        assertEquals("hello", Files.readString(clone("clone").resolve("README"), StandardCharsets.UTF_8));
+        // the pack was generated on the pool, as the user who asked for it
+        assertEquals(USER, TestRepository.user);
+    }
+
+    @Test
+    void asyncFailure() throws Exception {
+        TestRepository.broken = true;
+        assertThrows(TransportException.class, () -> clone("broken"));
+
+        // the pool is still fine
+        TestRepository.broken = false;
+        assertEquals("hello", Files.readString(clone("clone").resolve("README"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void asyncCachedClone() throws Exception {
+        PackResponseCache.setEnabled(true);
+        PackResponseCache cache = PackResponseCache.get();
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals("hello", Files.readString(clone("clone" + i).resolve("README"), StandardCharsets.UTF_8));
+        }
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(USER, TestRepository.user);
+    }
+
+    private Path clone(String name) throws Exception {
+        // credentials in the URL are sent right away, without waiting to be challenged
+        String url = j.getURL().toString().replace("://", "://" + USER + ":" + USER + "@") + "test.git";
+        Path dir = tmp.resolve(name);
+        Git.cloneRepository().setURI(url).setDirectory(dir.toFile()).call().close();
+        return dir;
+    }
+
+    @TestExtension
+    public static final class TestRepository extends FileBackedHttpGitRepository implements RootAction {
+        static volatile String user;
+        static volatile boolean broken;
+
+        public TestRepository() {
+            super(workspace());
+        }
+
+        static Path workspace() {
+            return Jenkins.get().getRootDir().toPath().resolve("test-repository");
+        }
+
+        @Override
+        protected void checkPushPermission() {}
+
+        @Override
+        public UploadPack createUploadPack(HttpServletRequest context, Repository db)
+                throws ServiceNotEnabledException, ServiceNotAuthorizedException {
+            // only POST requests go through AsyncPackService
+            if ("POST".equals(context.getMethod())) {
+                if (broken) {
+                    throw new IllegalStateException("broken on purpose");
+                }
+                user = Jenkins.getAuthentication2().getName();
+            }
+            return super.createUploadPack(context, db);
+        }
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return null;
+        }
+
+        @Override
+        public String getUrlName() {
+            return "test.git";
+        }
+    }
+}
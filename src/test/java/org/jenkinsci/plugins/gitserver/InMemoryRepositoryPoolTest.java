@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InMemoryRepositoryPoolTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void createOpenDelete() throws Exception {
+        InMemoryRepositoryPool pool = new InMemoryRepositoryPool(Long.MAX_VALUE, null, 0, TimeUnit.SECONDS);
+        try (Repository r = pool.create("a")) {
+            assertThrows(IllegalArgumentException.class, () -> pool.create("a"));
+            try (Repository again = pool.open("a")) {
+                assertSame(r, again);
+            }
+            assertEquals(Constants.R_HEADS + Constants.MASTER, r.getFullBranch());
+            assertNull(r.getDirectory());
+        }
+        assertNull(pool.open("b"));
+        assertEquals(Set.of("a"), pool.getNames());
+
+        assertTrue(pool.delete("a"));
+        assertFalse(pool.delete("a"));
+        assertNull(pool.open("a"));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    void spillsAndReadsBack() throws Exception {
+        Path spill = tmp.resolve("spill");
+        InMemoryRepositoryPool pool = new InMemoryRepositoryPool(1, spill, 0, TimeUnit.SECONDS);
+        ObjectId commit;
+        try (Repository a = pool.create("team/a")) {
+            commit = commit(a, "hello");
+        }
+        try (Repository b = pool.create("b")) {
+            commit(b, "world");
+            assertEquals(1, pool.getSpills());
+            assertTrue(Files.isDirectory(spill.resolve("team%2Fa.git")));
+            assertEquals(Set.of("b", "team/a"), pool.getNames());
+        }
+
+        try (Repository a = pool.open("team/a")) {
+            assertEquals(commit, a.resolve(Constants.HEAD));
+            assertEquals(Constants.R_HEADS + Constants.MASTER, a.getFullBranch());
+            byte[] content = a.open(a.resolve("HEAD:file.txt")).getBytes();
+            assertEquals("hello", new String(content, StandardCharsets.UTF_8));
+        }
+        // and it's 'b' that had to make room this time
+        assertFalse(Files.exists(spill.resolve("team%2Fa.git")));
+        assertTrue(Files.isDirectory(spill.resolve("b.git")));
+
+        assertTrue(pool.delete("b"));
+        assertFalse(Files.exists(spill.resolve("b.git")));
+    }
+
+    @Test
+    void dropsWithoutSpillDirectory() throws Exception {
+        InMemoryRepositoryPool pool = new InMemoryRepositoryPool(1, null, 0, TimeUnit.SECONDS);
+        try (Repository a = pool.create("a")) {
+            commit(a, "hello");
+        }
+        try (Repository b = pool.create("b")) {
+            commit(b, "world");
+        }
+        assertNull(pool.open("a"));
+        assertEquals(Set.of("b"), pool.getNames());
+        assertEquals(1, pool.getEvictions());
+    }
+
+    @Test
+    void keepsRepositoriesInUse() throws Exception {
+        InMemoryRepositoryPool pool = new InMemoryRepositoryPool(1, null, 0, TimeUnit.SECONDS);
+        try (Repository a = pool.create("a");
+                Repository b = pool.create("b")) {
+            commit(a, "hello");
+            commit(b, "world");
+            assertEquals(0, pool.trim());
+        }
+        assertEquals(2, pool.trim());
+        assertEquals(0, pool.size());
+
+        InMemoryRepositoryPool patient = new InMemoryRepositoryPool(1, null, 1, TimeUnit.HOURS);
+        try (Repository a = patient.create("a")) {
+            commit(a, "hello");
+        }
+        assertEquals(0, patient.trim());
+        assertEquals(1, patient.size());
+    }
+
+    @Test
+    void resolverKeepsRepositoriesUntilTheTransferIsOver() throws Exception {
+        InMemoryRepositoryPool pool = new InMemoryRepositoryPool(1, null, 0, TimeUnit.SECONDS);
+        try (Repository a = pool.create("a")) {
+            commit(a, "hello");
+        }
+        InMemoryRepositoryResolver resolver = new InMemoryRepositoryResolver(pool, "scratch/") {
+            @Override
+            protected void checkPushPermission(String name) {}
+        };
+
+        ReceivePack rp = resolver.createReceivePack("/scratch/a.git");
+        assertEquals(0, pool.trim());
+        // what the SSH command does once the transfer is over
+        rp.getRepository().close();
+        assertEquals(1, pool.trim());
+    }
+
+    @Test
+    void resolverNames() {
+        InMemoryRepositoryResolver resolver = new InMemoryRepositoryResolver(
+                new InMemoryRepositoryPool(Long.MAX_VALUE, null, 0, TimeUnit.SECONDS), "scratch/") {
+            @Override
+            protected void checkPushPermission(String name) {}
+        };
+        assertEquals("foo", resolver.toPoolName("scratch/foo.git"));
+        assertEquals("foo/bar", resolver.toPoolName("/scratch/foo/bar.git"));
+        assertEquals("foo", resolver.toPoolName("scratch/foo"));
+        assertNull(resolver.toPoolName("other/foo.git"));
+        assertNull(resolver.toPoolName("scratch/.git"));
+    }
+
+    /**
+     * Commits a single file to {@code master}.
+     */
+    private static ObjectId commit(Repository repo, String content) throws Exception {
+        try (ObjectInserter ins = repo.newObjectInserter()) {
+            TreeFormatter tree = new TreeFormatter();
+            tree.append(
+                    "file.txt",
+                    FileMode.REGULAR_FILE,
+                    ins.insert(Constants.OBJ_BLOB, content.getBytes(StandardCharsets.UTF_8)));
+            CommitBuilder c = new CommitBuilder();
+            c.setTreeId(ins.insert(tree));
+            PersonIdent ident = new PersonIdent("Jenkins", "noreply@jenkins-ci.org");
+            c.setAuthor(ident);
+            c.setCommitter(ident);
+            c.setMessage(content);
+            ObjectId id = ins.insert(c);
+            ins.flush();
+
+            RefUpdate u = repo.updateRef(Constants.R_HEADS + Constants.MASTER);
+            u.setNewObjectId(id);
+            u.update();
+            return id;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.AccessDeniedException3;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class InMemoryRepositoryResolverTest {
+    @Test
+    void pullNeedsReadByDefault(JenkinsRule j) throws Exception {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy());
+        InMemoryRepositoryPool pool = new InMemoryRepositoryPool(Long.MAX_VALUE, null, 0, TimeUnit.SECONDS);
+        pool.create("a").close();
+        InMemoryRepositoryResolver resolver = new InMemoryRepositoryResolver(pool, "scratch/") {
+            @Override
+            protected void checkPushPermission(String name) {}
+        };
+
+        // same as over HTTP, see HttpGitRepository.checkPullPermission
+        try (ACLContext ctx = ACL.as2(Jenkins.ANONYMOUS2)) {
+            assertThrows(AccessDeniedException3.class, () -> resolver.createUploadPack("scratch/a.git"));
+        }
+        try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+            UploadPack up = resolver.createUploadPack("scratch/a.git");
+            assertNotNull(up);
+            try (Repository db = up.getRepository()) {
+                assertNotNull(db);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IncrementalCheckoutTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void apply() throws Exception {
+        Path source = tmp.resolve("source");
+        Path workspace = tmp.resolve("workspace");
+        try (Git src = Git.init().setDirectory(source.toFile()).call()) {
+            write(source, "a.txt", "a");
+            write(source, "dir/b.txt", "b");
+            write(source, "gone/c.txt", "c");
+            src.add().addFilepattern(".").call();
+            ObjectId first = src.commit().setMessage("first").call();
+
+            try (Git ws = Git.cloneRepository()
+                    .setURI(source.toUri().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                write(source, "a.txt", "a2");
+                write(source, "dir/new.txt", "new");
+                Files.delete(source.resolve("gone/c.txt"));
+                src.add().addFilepattern(".").call();
+                src.rm().addFilepattern("gone/c.txt").call();
+                ObjectId second = src.commit().setMessage("second").call();
+                ws.fetch().call();
+
+                IncrementalCheckout checkout = new IncrementalCheckout(ws.getRepository(), workspace);
+                assertTrue(checkout.apply(first, second));
+                assertEquals(3, checkout.getChangedPaths());
+
+                assertEquals("a2", Files.readString(workspace.resolve("a.txt")));
+                assertEquals("b", Files.readString(workspace.resolve("dir/b.txt")));
+                assertEquals("new", Files.readString(workspace.resolve("dir/new.txt")));
+                assertFalse(Files.exists(workspace.resolve("gone")));
+
+                ws.reset().setMode(ResetType.SOFT).setRef(second.name()).call(); // the index should already match
+                Status status = ws.status().call();
+                assertTrue(status.isClean(), status.getUncommittedChanges().toString());
+            }
+        }
+    }
+
+    @Test
+    void attributesForceFallback() throws Exception {
+        Path source = tmp.resolve("source");
+        try (Git src = Git.init().setDirectory(source.toFile()).call()) {
+            write(source, "a.txt", "a");
+            src.add().addFilepattern(".").call();
+            ObjectId first = src.commit().setMessage("first").call();
+            write(source, ".gitattributes", "*.txt eol=crlf\n");
+            src.add().addFilepattern(".").call();
+            ObjectId second = src.commit().setMessage("second").call();
+
+            IncrementalCheckout checkout = new IncrementalCheckout(src.getRepository(), source);
+            assertFalse(checkout.apply(first, second));
+        }
+    }
+
+    @Test
+    void attributesAboveChangedPaths() throws Exception {
+        Path source = tmp.resolve("source");
+        Path workspace = tmp.resolve("workspace");
+        try (Git src = Git.init().setDirectory(source.toFile()).call()) {
+            write(source, "dir/.gitattributes", "*.txt eol=crlf\n");
+            write(source, "dir/sub/a.txt", "a");
+            write(source, "other/b.txt", "b");
+            src.add().addFilepattern(".").call();
+            ObjectId first = src.commit().setMessage("first").call();
+
+            try (Git ws = Git.cloneRepository()
+                    .setURI(source.toUri().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                write(source, "other/b.txt", "b2");
+                src.add().addFilepattern(".").call();
+                ObjectId second = src.commit().setMessage("second").call();
+                ws.fetch().call();
+                assertTrue(new IncrementalCheckout(ws.getRepository(), workspace).apply(first, second));
+
+                write(source, "dir/sub/a.txt", "a2");
+                src.add().addFilepattern(".").call();
+                ObjectId third = src.commit().setMessage("third").call();
+                ws.fetch().call();
+                assertFalse(new IncrementalCheckout(ws.getRepository(), workspace).apply(second, third));
+            }
+        }
+    }
+
+    @Test
+    void modificationsForceFallback() throws Exception {
+        Path source = tmp.resolve("source");
+        Path workspace = tmp.resolve("workspace");
+        try (Git src = Git.init().setDirectory(source.toFile()).call()) {
+            write(source, "a.txt", "a");
+            write(source, "b.txt", "b");
+            src.add().addFilepattern(".").call();
+            ObjectId first = src.commit().setMessage("first").call();
+
+            try (Git ws = Git.cloneRepository()
+                    .setURI(source.toUri().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                write(source, "a.txt", "a2");
+                src.add().addFilepattern(".").call();
+                ObjectId second = src.commit().setMessage("second").call();
+                ws.fetch().call();
+
+                // edits to the paths we don't touch survive
+                write(workspace, "b.txt", "edited");
+                assertTrue(new IncrementalCheckout(ws.getRepository(), workspace).apply(first, second));
+                assertEquals("a2", Files.readString(workspace.resolve("a.txt")));
+                assertEquals("edited", Files.readString(workspace.resolve("b.txt")));
+
+                // but those to the paths we would overwrite need a full checkout
+                write(workspace, "a.txt", "edited");
+                assertFalse(new IncrementalCheckout(ws.getRepository(), workspace).apply(second, first));
+                assertEquals("edited", Files.readString(workspace.resolve("a.txt")));
+            }
+        }
+    }
+
+    private static void write(Path dir, String path, String content) throws Exception {
+        Path f = dir.resolve(path);
+        Files.createDirectories(f.getParent());
+        Files.writeString(f, content, StandardCharsets.UTF_8);
+    }
+}
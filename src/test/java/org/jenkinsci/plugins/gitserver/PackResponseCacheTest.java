@@ -0,0 +1,365 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PackResponseCacheTest {
+    private static final String A = "0123456789012345678901234567890123456789";
+    private static final String B = "abcdefabcdefabcdefabcdefabcdefabcdefabcd";
+
+    @Test
+    void normalizeIgnoresAgentAndOrder() throws Exception {
+        String first = PackResponseCache.normalize(
+                body("want " + A + " ofs-delta side-band-64k agent=git/2.40\n", "want " + B + "\n", null, "done\n"));
+        String second = PackResponseCache.normalize(
+                body("want " + B + " agent=JGit/7 side-band-64k ofs-delta\n", "want " + A + "\n", null, "done\n"));
+        assertNotNull(first);
+        assertEquals(first, second);
+    }
+
+    @Test
+    void normalizeProtocolV2() throws Exception {
+        String first = PackResponseCache.normalize(body(
+                "command=fetch\n", "agent=git/2.40\n", "", "ofs-delta\n", "want " + A + "\n", "done\n", null));
+        String second = PackResponseCache.normalize(body(
+                "command=fetch\n", "agent=git/2.45\n", "session-id=42\n", "", "ofs-delta\n", "want " + A + "\n",
+                "done\n", null));
+        assertNotNull(first);
+        assertEquals(first, second);
+    }
+
+    @Test
+    void fetchesAreNotCached() throws Exception {
+        assertNull(PackResponseCache.normalize(body("want " + A + "\n", null, "have " + B + "\n", "done\n")));
+        assertNull(PackResponseCache.normalize(body("want " + A + "\n", null)));
+        assertNull(PackResponseCache.normalize("garbage".getBytes()));
+    }
+
+    @Test
+    void replay(@TempDir Path tmp) throws Exception {
+        PackResponseCache cache = new PackResponseCache(tmp, 1024);
+        AtomicInteger calls = new AtomicInteger();
+        Client first = new Client();
+        cache.service("k", request(), first.response, sending("PACK", calls));
+        Client second = new Client();
+        cache.service("k", request(), second.response, sending("PACK", calls));
+
+        assertEquals(1, calls.get());
+        assertEquals("PACK", first.received());
+        assertEquals("PACK", second.received());
+        assertEquals(CONTENT_TYPE, second.contentType);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getBytesServed());
+        assertEquals(4, cache.getSize());
+    }
+
+    @Test
+    void singleFlight(@TempDir Path tmp) throws Exception {
+        PackResponseCache cache = new PackResponseCache(tmp, 1024, 1, TimeUnit.MINUTES);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PackResponseCache.Dispatcher slow = (req, rsp) -> {
+            calls.incrementAndGet();
+            rsp.setContentType(CONTENT_TYPE);
+            OutputStream out = rsp.getOutputStream();
+            out.write("PA".getBytes(StandardCharsets.UTF_8));
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            out.write("CK".getBytes(StandardCharsets.UTF_8));
+        };
+
+        Client first = new Client();
+        FutureTask<Void> generating = new FutureTask<>(() -> {
+            cache.service("k", request(), first.response, slow);
+            return null;
+        });
+        new Thread(generating).start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the first client doesn't have to wait for the whole response to be on disk
+        assertEquals("PA", first.received());
+
+        Client second = new Client();
+        FutureTask<Void> waiting = new FutureTask<>(() -> {
+            cache.service("k", request(), second.response, slow);
+            return null;
+        });
+        Thread waiter = new Thread(waiting);
+        waiter.start();
+        for (int i = 0; waiter.getState() != Thread.State.TIMED_WAITING; i++) {
+            assertTrue(i < 1000, "the second request didn't wait for the first one");
+            Thread.sleep(10);
+        }
+
+        release.countDown();
+        generating.get(10, TimeUnit.SECONDS);
+        waiting.get(10, TimeUnit.SECONDS);
+        assertEquals(1, calls.get());
+        assertEquals("PACK", first.received());
+        assertEquals("PACK", second.received());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getSharedGenerations());
+    }
+
+    @Test
+    void slowGenerationsAreNotWaitedFor(@TempDir Path tmp) throws Exception {
+        PackResponseCache cache = new PackResponseCache(tmp, 1024, 100, TimeUnit.MILLISECONDS);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PackResponseCache.Dispatcher slowOnce = (req, rsp) -> {
+            rsp.setContentType(CONTENT_TYPE);
+            OutputStream out = rsp.getOutputStream();
+            out.write("PA".getBytes(StandardCharsets.UTF_8));
+            if (calls.incrementAndGet() == 1) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            out.write("CK".getBytes(StandardCharsets.UTF_8));
+        };
+
+        Client first = new Client();
+        FutureTask<Void> generating = new FutureTask<>(() -> {
+            cache.service("k", request(), first.response, slowOnce);
+            return null;
+        });
+        new Thread(generating).start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // the first client is stuck, which mustn't hold up the second one for longer than the timeout
+        Client second = new Client();
+        cache.service("k", request(), second.response, slowOnce);
+        assertEquals("PACK", second.received());
+        assertEquals(0, cache.getSharedGenerations());
+
+        release.countDown();
+        generating.get(10, TimeUnit.SECONDS);
+        assertEquals("PACK", first.received());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void onlyItsOwnFilesAreDeleted(@TempDir Path tmp) throws Exception {
+        Path stale = Files.writeString(tmp.resolve("0".repeat(64) + ".pack"), "old");
+        Path partial = Files.writeString(tmp.resolve("response123.tmp"), "old");
+        Path foreign = Files.writeString(tmp.resolve("notes.txt"), "mine");
+        Path sub = Files.createDirectory(tmp.resolve("sub"));
+        Files.writeString(sub.resolve("file"), "mine");
+
+        PackResponseCache cache = new PackResponseCache(tmp, 1024);
+        Client client = new Client();
+        cache.service("k", request(), client.response, sending("PACK", new AtomicInteger()));
+        assertEquals("PACK", client.received());
+        assertFalse(Files.exists(stale));
+        assertFalse(Files.exists(partial));
+        assertTrue(Files.exists(foreign));
+        assertTrue(Files.exists(sub.resolve("file")));
+    }
+
+    @Test
+    void unusableDirectory(@TempDir Path tmp) throws Exception {
+        Path file = Files.writeString(tmp.resolve("file"), "not a directory");
+        PackResponseCache cache = new PackResponseCache(file, 1024);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            Client client = new Client();
+            cache.service("k", request(), client.response, sending("PACK", calls));
+            assertEquals("PACK", client.received());
+        }
+        assertEquals(2, calls.get());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void eviction(@TempDir Path tmp) throws Exception {
+        PackResponseCache cache = new PackResponseCache(tmp, 10);
+        AtomicInteger a = new AtomicInteger();
+        AtomicInteger b = new AtomicInteger();
+        cache.service("a", request(), new Client().response, sending("123456", a));
+        cache.service("b", request(), new Client().response, sending("abcdef", b));
+        assertEquals(6, cache.getSize());
+        try (var files = Files.list(tmp)) {
+            assertEquals(1, files.count());
+        }
+
+        // "a" made room for "b", so it has to be generated again, which evicts "b" in turn
+        Client client = new Client();
+        cache.service("a", request(), client.response, sending("123456", a));
+        assertEquals("123456", client.received());
+        assertEquals(2, a.get());
+        cache.service("b", request(), new Client().response, sending("abcdef", b));
+        assertEquals(2, b.get());
+        assertEquals(6, cache.getSize());
+    }
+
+    @Test
+    void errorsAreNotCached(@TempDir Path tmp) throws Exception {
+        PackResponseCache cache = new PackResponseCache(tmp, 1024);
+        AtomicInteger calls = new AtomicInteger();
+        PackResponseCache.Dispatcher forbidden = (req, rsp) -> {
+            calls.incrementAndGet();
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "no");
+        };
+        for (int i = 0; i < 2; i++) {
+            Client client = new Client();
+            cache.service("k", request(), client.response, forbidden);
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, client.status);
+        }
+        assertEquals(2, calls.get());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void onlyUploadPacksWithoutRestrictionsAreShared(@TempDir Path tmp) throws Exception {
+        try (Git git = Git.init().setBare(true).setDirectory(tmp.toFile()).call()) {
+            Repository db = git.getRepository();
+            assertTrue(PackResponseCache.isShareable(new UploadPack(db)));
+            assertTrue(PackResponseCache.isShareable(UploadPackPolicy.forRepository(db)
+                    .withMaxDepth(1)
+                    .apply(new UploadPack(db))));
+
+            UploadPack filtered = new UploadPack(db);
+            filtered.setRefFilter(refs -> refs);
+            assertFalse(PackResponseCache.isShareable(filtered));
+
+            UploadPack any = new UploadPack(db);
+            any.setRequestPolicy(UploadPack.RequestPolicy.ANY);
+            assertFalse(PackResponseCache.isShareable(any));
+        }
+    }
+
+    private static PackResponseCache.Dispatcher sending(String content, AtomicInteger calls) {
+        return (req, rsp) -> {
+            calls.incrementAndGet();
+            rsp.setContentType(CONTENT_TYPE);
+            rsp.getOutputStream().write(content.getBytes(StandardCharsets.UTF_8));
+        };
+    }
+
+    private static HttpServletRequest request() {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                (proxy, method, args) -> defaultValue(method));
+    }
+
+    private static Object defaultValue(Method method) {
+        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+    }
+
+    /**
+     * What a client received.
+     */
+    private static final class Client {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        volatile int status = HttpServletResponse.SC_OK;
+        volatile String contentType;
+
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                synchronized (body) {
+                    body.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (body) {
+                    body.write(b, off, len);
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOutputStream":
+                            return out;
+                        case "setStatus":
+                        case "sendError":
+                            status = (Integer) args[0];
+                            return null;
+                        case "getStatus":
+                            return status;
+                        case "setContentType":
+                            contentType = (String) args[0];
+                            return null;
+                        default:
+                            return defaultValue(method);
+                    }
+                });
+
+        String received() {
+            synchronized (body) {
+                return body.toString(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static final String CONTENT_TYPE = "application/x-git-upload-pack-result";
+
+    /**
+     * Encodes lines as pkt-lines; null is a flush packet, and the empty string a delimiter.
+     */
+    private static byte[] body(String... lines) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketLineOut pck = new PacketLineOut(out);
+        for (String l : lines) {
+            if (l == null) {
+                pck.end();
+            } else if (l.isEmpty()) {
+                pck.writeDelim();
+            } else {
+                pck.writeString(l);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,127 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Path;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PackTuningTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void config() throws Exception {
+        try (Git git = Git.init().setBare(true).setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            PackTuning defaults = PackTuning.forRepository(repo);
+            assertEquals(0, defaults.getThreads());
+            assertEquals(PackConfig.DEFAULT_DELTA_SEARCH_WINDOW_SIZE, defaults.getWindow());
+            assertEquals(-1, defaults.getCompressionLevel());
+            assertEquals(PackConfig.DEFAULT_BIG_FILE_THRESHOLD, defaults.getBigFileThreshold());
+            assertTrue(defaults.isReuseDeltas());
+            assertTrue(defaults.isReuseObjects());
+
+            StoredConfig config = repo.getConfig();
+            config.setInt("pack", null, "threads", 2);
+            config.setInt("core", null, "compression", 3);
+            config.setString("core", null, "bigFileThreshold", "1m");
+            config.setBoolean("pack", null, "reuseDeltas", false);
+            PackTuning tuning = PackTuning.forRepository(repo);
+            assertEquals(2, tuning.getThreads());
+            assertEquals(3, tuning.getCompressionLevel());
+            assertEquals(1024 * 1024, tuning.getBigFileThreshold());
+            assertFalse(tuning.isReuseDeltas());
+            assertTrue(tuning.isReuseObjects());
+
+            config.setInt("pack", null, "compression", 9);
+            assertEquals(9, PackTuning.forRepository(repo).getCompressionLevel());
+
+            // what the repository configures wins over what the code asks for
+            assertEquals(2, defaults.withThreads(4).withConfig(config).getThreads());
+            assertEquals(4, defaults.withWindow(4).withConfig(config).getWindow());
+        }
+    }
+
+    @Test
+    void invalid() {
+        PackTuning tuning = PackTuning.getDefault();
+        assertThrows(IllegalArgumentException.class, () -> tuning.withThreads(-1));
+        assertThrows(IllegalArgumentException.class, () -> tuning.withWindow(-1));
+        assertThrows(IllegalArgumentException.class, () -> tuning.withCompressionLevel(10));
+        assertThrows(IllegalArgumentException.class, () -> tuning.withCompressionLevel(-2));
+        assertThrows(IllegalArgumentException.class, () -> tuning.withBigFileThreshold(-1));
+    }
+
+    /**
+     * A mistake in the configuration of a repository shouldn't break every fetch from it.
+     */
+    @Test
+    void invalidConfigIsIgnored() throws Exception {
+        try (Git git = Git.init().setBare(true).setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            StoredConfig config = repo.getConfig();
+            config.setInt("pack", null, "threads", -1);
+            config.setInt("pack", null, "window", -5);
+            config.setInt("pack", null, "compression", 10);
+            config.setInt("core", null, "compression", 3);
+            config.setString("core", null, "bigFileThreshold", "big");
+            config.setString("pack", null, "reuseDeltas", "sometimes");
+            PackTuning tuning = PackTuning.forRepository(repo);
+            PackTuning defaults = PackTuning.getDefault();
+            assertEquals(defaults.getThreads(), tuning.getThreads());
+            assertEquals(defaults.getWindow(), tuning.getWindow());
+            // the valid setting it overrides still applies
+            assertEquals(3, tuning.getCompressionLevel());
+            assertEquals(defaults.getBigFileThreshold(), tuning.getBigFileThreshold());
+            assertEquals(defaults.isReuseDeltas(), tuning.isReuseDeltas());
+        }
+    }
+
+    @Test
+    void packConfig() throws Exception {
+        try (Git git = Git.init().setBare(true).setDirectory(tmp.toFile()).call()) {
+            PackTuning tuning = PackTuning.getDefault()
+                    .withThreads(3)
+                    .withWindow(20)
+                    .withCompressionLevel(1)
+                    .withBigFileThreshold(4096)
+                    .withReuseDeltas(false)
+                    .withReuseObjects(false);
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            tuning.write(new DataOutputStream(buf));
+            PackTuning read = PackTuning.read(new DataInputStream(new ByteArrayInputStream(buf.toByteArray())));
+            assertEquals(tuning.toString(), read.toString());
+
+            try (UploadPack up = new UploadPack(git.getRepository())) {
+                assertNull(PackTuning.of(up));
+                tuning.apply(up);
+                // so that the mirrors build the same packs
+                assertSame(tuning, PackTuning.of(up));
+            }
+
+            PackConfig pc = read.toPackConfig(git.getRepository());
+            assertEquals(3, pc.getThreads());
+            assertEquals(20, pc.getDeltaSearchWindowSize());
+            assertEquals(1, pc.getCompressionLevel());
+            assertEquals(4096, pc.getBigFileThreshold());
+            assertFalse(pc.isReuseDeltas());
+            assertFalse(pc.isReuseObjects());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.gitserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URISyntaxException;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.BasePackFetchConnection;
+import org.eclipse.jgit.transport.BasePackPushConnection;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PackTransport;
+import org.eclipse.jgit.transport.PushConnection;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * {@link Transport} to a server running in a thread of its own, over pipes wrapped as {@link ChannelTransport} does.
+ *
+ * <p>
+ * Like a real client, it keeps its end open while it waits for the replies of the server.
+ */
+final class PipeTransport extends Transport implements PackTransport {
+    @FunctionalInterface
+    interface Server {
+        void serve(InputStream in, OutputStream out) throws IOException;
+    }
+
+    /**
+     * The ends of the pipes on the client side.
+     */
+    static final class Ends {
+        final InputStream in;
+        final OutputStream out;
+
+        Ends(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    private final boolean compression;
+    private final Server server;
+
+    PipeTransport(Repository local, boolean compression, Server server) throws URISyntaxException {
+        super(local, new URIish("pipe:server"));
+        this.compression = compression;
+        this.server = server;
+    }
+
+    @Override
+    public FetchConnection openFetch() throws NotSupportedException, TransportException {
+        Ends c = connect();
+        return new BasePackFetchConnection(this) {
+            {
+                init(c.in, c.out);
+                readAdvertisedRefs();
+            }
+        };
+    }
+
+    @Override
+    public PushConnection openPush() throws NotSupportedException, TransportException {
+        Ends c = connect();
+        return new BasePackPushConnection(this) {
+            {
+                init(c.in, c.out);
+                readAdvertisedRefs();
+            }
+        };
+    }
+
+    private Ends connect() throws TransportException {
+        try {
+            return start(compression, server);
+        } catch (IOException e) {
+            throw new TransportException("Failed to start the server", e);
+        }
+    }
+
+    @Override
+    public void close() {}
+
+    /**
+     * Runs the server in a thread of its own, and returns the ends of the client.
+     */
+    static Ends start(boolean compression, Server server) throws IOException {
+        PipedInputStream serverIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+        PipedInputStream clientIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+        Thread t = new Thread(
+                () -> {
+                    InputStream in = ChannelTransport.wrap(serverIn, ChannelTransport.BUFFER_SIZE, compression);
+                    OutputStream out = ChannelTransport.wrap(serverOut, ChannelTransport.BUFFER_SIZE, compression);
+                    try {
+                        server.serve(in, out);
+                    } catch (IOException e) {
+                        // the client finds out through the Git protocol
+                    } finally {
+                        IOUtils.closeQuietly(out);
+                        IOUtils.closeQuietly(in);
+                    }
+                },
+                "PipeTransport server");
+        t.setDaemon(true);
+        t.start();
+        return new Ends(
+                ChannelTransport.wrap(clientIn, ChannelTransport.BUFFER_SIZE, compression),
+                ChannelTransport.wrap(clientOut, ChannelTransport.BUFFER_SIZE, compression));
+    }
+
+    private static final int PIPE_SIZE = 1024 * 1024;
+}
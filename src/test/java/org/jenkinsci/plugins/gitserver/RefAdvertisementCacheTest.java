@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.AbstractAdvertiseRefsHook;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RefAdvertisementCacheTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void cacheUntilInvalidated() throws Exception {
+        RefAdvertisementCache cache = new RefAdvertisementCache(4, 1, TimeUnit.HOURS);
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            git.commit().setMessage("first").call();
+            Map<String, Ref> refs = cache.getRefs(repo);
+            assertEquals(repo.resolve(Constants.MASTER), refs.get(Constants.R_HEADS + Constants.MASTER).getObjectId());
+            assertSame(refs, cache.getRefs(repo));
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getMisses());
+
+            ObjectId tip = git.commit().setMessage("second").call();
+            cache.invalidate(repo);
+            Map<String, Ref> updated = cache.getRefs(repo);
+            assertNotSame(refs, updated);
+            assertEquals(tip, updated.get(Constants.R_HEADS + Constants.MASTER).getObjectId());
+            assertEquals(2, cache.getMisses());
+        }
+    }
+
+    @Test
+    void expires() throws Exception {
+        RefAdvertisementCache cache = new RefAdvertisementCache(4, 0, TimeUnit.SECONDS);
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            git.commit().setMessage("first").call();
+            cache.getRefs(git.getRepository());
+            cache.getRefs(git.getRepository());
+            assertEquals(0, cache.getHits());
+            assertEquals(2, cache.getMisses());
+        }
+    }
+
+    @Test
+    void customHookIsLeftAlone() throws Exception {
+        RefAdvertisementCache cache = new RefAdvertisementCache(4, 1, TimeUnit.HOURS);
+        try (Repository repo = new FileRepositoryBuilder()
+                .setGitDir(tmp.resolve("repo.git").toFile())
+                .build()) {
+            repo.create(true);
+            UploadPack up = new UploadPack(repo);
+            up.setAdvertiseRefsHook(new AbstractAdvertiseRefsHook() {
+                @Override
+                protected Map<String, Ref> getAdvertisedRefs(Repository r, RevWalk revWalk) {
+                    return Map.of();
+                }
+            });
+            cache.apply(up);
+            assertEquals(0, cache.size());
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RepositoryMaintenanceTest {
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    @Test
+    void maintainBuildsReachabilityIndexes(@TempDir Path tmp) throws Exception {
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            assertTrue(
+                    RepositoryMaintenance.hasReachabilityIndexes(git.getRepository()), "empty repositories are fine");
+
+            for (int i = 0; i < 3; i++) {
+                Files.writeString(tmp.resolve("file.txt"), "revision " + i);
+                git.add().addFilepattern("file.txt").call();
+                git.commit().setMessage("commit " + i).call();
+            }
+            assertFalse(RepositoryMaintenance.hasReachabilityIndexes(git.getRepository()));
+
+            RepositoryMaintenance m = RepositoryMaintenance.get();
+            m.maintain(git.getRepository());
+
+            assertTrue(RepositoryMaintenance.hasReachabilityIndexes(git.getRepository()));
+            RepositoryMaintenance.Status s = m.getStatus(git.getRepository());
+            assertEquals(1, s.getMaintenanceCount());
+            assertEquals(0, s.getPushesSinceMaintenance());
+            assertNotNull(s.getLastMaintained());
+            assertNotNull(s.getLastDuration());
+            assertNull(s.getLastFailure());
+        }
+    }
+
+    @Test
+    void pushThreshold(@TempDir Path tmp) throws Exception {
+        RepositoryMaintenance m = new RepositoryMaintenance(true, 3, Integer.MAX_VALUE, Integer.MAX_VALUE, HOUR);
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            git.commit().setMessage("commit").call();
+            assertFalse(m.recordPush(repo));
+            assertFalse(m.recordPush(repo));
+            assertTrue(m.recordPush(repo));
+            awaitMaintenances(m, repo, 1);
+
+            // too soon
+            for (int i = 0; i < 5; i++) {
+                assertFalse(m.recordPush(repo));
+            }
+            assertEquals(5, m.getStatus(repo).getPushesSinceMaintenance());
+        }
+    }
+
+    /**
+     * What we know about a repository outlives its handles, and only goes once too many others came after it.
+     */
+    @Test
+    void statusesAreBounded(@TempDir Path tmp) throws Exception {
+        RepositoryMaintenance m =
+                new RepositoryMaintenance(true, 3, Integer.MAX_VALUE, Integer.MAX_VALUE, HOUR, 2);
+        try (Repository a = new FileRepositoryBuilder().setGitDir(tmp.resolve("a.git").toFile()).build();
+                Repository b = new FileRepositoryBuilder().setGitDir(tmp.resolve("b.git").toFile()).build();
+                Repository c = new FileRepositoryBuilder().setGitDir(tmp.resolve("c.git").toFile()).build()) {
+            m.recordPush(a);
+            m.recordPush(a);
+            m.recordPush(b);
+            assertEquals(2, m.getStatus(a).getPushesSinceMaintenance());
+
+            // a was seen more recently than b
+            m.recordPush(c);
+            assertEquals(Set.of(a.getIdentifier(), c.getIdentifier()), m.getStatuses().keySet());
+
+            m.forget(a);
+            assertEquals(Set.of(c.getIdentifier()), m.getStatuses().keySet());
+        }
+    }
+
+    @Test
+    void minInterval(@TempDir Path tmp) throws Exception {
+        RepositoryMaintenance m =
+                new RepositoryMaintenance(true, 1, Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.ZERO);
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            git.commit().setMessage("commit").call();
+            m.maintain(repo);
+            assertTrue(m.recordPush(repo), "no need to wait");
+            awaitMaintenances(m, repo, 2);
+        }
+    }
+
+    @Test
+    void looseObjectThreshold(@TempDir Path tmp) throws Exception {
+        RepositoryMaintenance m = new RepositoryMaintenance(true, Integer.MAX_VALUE, 256, Integer.MAX_VALUE, HOUR);
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            assertFalse(m.recordPush(repo));
+
+            // the count of loose objects is estimated from the "17" fan-out directory
+            try (ObjectInserter ins = repo.newObjectInserter()) {
+                ObjectInserter.Formatter f = new ObjectInserter.Formatter();
+                for (int i = 0; ; i++) {
+                    byte[] content = ("blob " + i).getBytes(StandardCharsets.UTF_8);
+                    if (f.idFor(Constants.OBJ_BLOB, content).name().startsWith("17")) {
+                        ins.insert(Constants.OBJ_BLOB, content);
+                        ins.flush();
+                        break;
+                    }
+                }
+            }
+            git.commit().setMessage("commit").call();
+            assertTrue(m.recordPush(repo));
+            awaitMaintenances(m, repo, 1);
+        }
+    }
+
+    @Test
+    void packThreshold(@TempDir Path tmp) throws Exception {
+        RepositoryMaintenance m = new RepositoryMaintenance(true, Integer.MAX_VALUE, Integer.MAX_VALUE, 1, HOUR);
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            git.commit().setMessage("commit").call();
+            assertFalse(m.recordPush(repo), "no pack yet");
+
+            git.gc().call();
+            assertTrue(m.recordPush(repo));
+            awaitMaintenances(m, repo, 1);
+        }
+    }
+
+    @Test
+    void disabled(@TempDir Path tmp) throws Exception {
+        RepositoryMaintenance m = new RepositoryMaintenance(false, 1, 0, 0, Duration.ZERO);
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            git.commit().setMessage("commit").call();
+            assertFalse(m.recordPush(git.getRepository()));
+            m.ensureReachabilityIndexes(git.getRepository());
+            assertTrue(m.getStatuses().isEmpty());
+        }
+    }
+
+    @Test
+    void repositoriesWithoutBranchesAreFine(@TempDir Path tmp) throws Exception {
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            ObjectId commit = git.commit().setMessage("commit").call();
+            git.tag().setName("only").setAnnotated(false).call();
+            git.checkout().setName(commit.name()).call();
+            git.branchDelete().setBranchNames("master").setForce(true).call();
+
+            // a garbage collection wouldn't build any bitmap here, so there's no point in running one
+            assertTrue(RepositoryMaintenance.hasReachabilityIndexes(git.getRepository()));
+        }
+    }
+
+    private static void awaitMaintenances(RepositoryMaintenance m, Repository repo, int count) throws Exception {
+        for (int i = 0; m.getStatus(repo).getMaintenanceCount() < count; i++) {
+            assertTrue(i < 1000, "maintenance didn't happen");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void convertToReftable(@TempDir Path tmp) throws Exception {
+        ObjectId head;
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Files.writeString(tmp.resolve("file.txt"), "content");
+            git.add().addFilepattern("file.txt").call();
+            head = git.commit().setMessage("commit").call();
+            for (int i = 0; i < 100; i++) {
+                git.tag().setName("build-" + i).setAnnotated(false).call();
+            }
+
+            Repository repo = git.getRepository();
+            assertFalse(RepositoryMaintenance.usesReftable(repo));
+            assertTrue(RepositoryMaintenance.convertToReftable(repo));
+            assertTrue(RepositoryMaintenance.usesReftable(repo));
+            assertFalse(RepositoryMaintenance.convertToReftable(repo), "already done");
+            assertTrue(Files.isDirectory(tmp.resolve(".git/reftable")));
+        }
+
+        try (Repository repo = new FileRepositoryBuilder().setWorkTree(tmp.toFile()).build()) {
+            assertTrue(RepositoryMaintenance.usesReftable(repo));
+            assertEquals(head, repo.resolve("HEAD"));
+            assertEquals(head, repo.resolve("refs/tags/build-99"));
+            assertEquals(100, repo.getRefDatabase().getRefsByPrefix("refs/tags/").size());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+
+class RepositoryResolverIndexTest {
+    private static class Resolver extends RepositoryResolver {
+        private final List<String> prefixes;
+
+        Resolver(String... prefixes) {
+            this.prefixes = prefixes.length == 0 ? null : List.of(prefixes);
+        }
+
+        @Override
+        public Collection<String> getRepositoryNamePrefixes() {
+            return prefixes;
+        }
+
+        @Override
+        public ReceivePack createReceivePack(String fullRepositoryName) {
+            return null;
+        }
+
+        @Override
+        public UploadPack createUploadPack(String fullRepositoryName) {
+            return null;
+        }
+    }
+
+    /**
+     * A resolver of a single repository, which counts how many times it gets closed.
+     */
+    private static class Closing extends Resolver {
+        final AtomicInteger closed = new AtomicInteger();
+        final Repository db = new InMemoryRepository(new DfsRepositoryDescription("closing")) {
+            @Override
+            public void close() {
+                closed.incrementAndGet();
+                super.close();
+            }
+        };
+        private final boolean closedAfterTransfer;
+
+        Closing(boolean closedAfterTransfer) {
+            this.closedAfterTransfer = closedAfterTransfer;
+        }
+
+        @Override
+        public UploadPack createUploadPack(String fullRepositoryName) {
+            return new UploadPack(db);
+        }
+
+        @Override
+        public boolean isRepositoryClosedAfterTransfer() {
+            return closedAfterTransfer;
+        }
+    }
+
+    @Test
+    void repositoriesAreOnlyClosedWhenResolversAskForIt() throws Exception {
+        RepositoryResolverIndex index = RepositoryResolverIndex.get();
+        Closing keeps = new Closing(false);
+        index.release(index.createUploadPack(keeps, "closing.git"));
+        assertEquals(0, keeps.closed.get());
+
+        Closing borrows = new Closing(true);
+        UploadPack up = index.createUploadPack(borrows, "closing.git");
+        index.release(up);
+        assertEquals(1, borrows.closed.get());
+        index.release(up);
+        assertEquals(1, borrows.closed.get());
+    }
+
+    @Test
+    void failedSetupClosesTheRepository() throws Exception {
+        Closing broken = new Closing(true) {
+            @Override
+            public UploadPackPolicy getUploadPackPolicy(String fullRepositoryName, Repository db) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        assertThrows(
+                IllegalStateException.class,
+                () -> RepositoryResolverIndex.get().createUploadPack(broken, "broken.git"));
+        assertEquals(1, broken.closed.get());
+    }
+
+    @Test
+    void candidates() {
+        Resolver legacy = new Resolver();
+        Resolver acme = new Resolver("acme/");
+        Resolver acmeFoo = new Resolver("/acme/foo/");
+        Resolver zot = new Resolver("zot/", "zot.git");
+
+        RepositoryResolverIndex.Snapshot s =
+                new RepositoryResolverIndex.Snapshot(List.of(acme, legacy, acmeFoo, zot));
+
+        // prefixes only rule resolvers out, they don't change the extension order
+        assertEquals(List.of(acme, legacy), new ArrayList<>(s.candidates("acme/bar.git")));
+        assertEquals(List.of(acme, legacy, acmeFoo), new ArrayList<>(s.candidates("/acme/foo/bar.git")));
+        assertEquals(List.of(legacy, zot), new ArrayList<>(s.candidates("zot.git")));
+        assertEquals(List.of(legacy), new ArrayList<>(s.candidates("/acme.git")));
+        assertEquals(List.of(legacy), new ArrayList<>(s.candidates("")));
+    }
+}
@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SharedRepositoryCacheTest {
+    @TempDir
+    Path tmp;
+
+    private static Repository open(Path dir) throws IOException {
+        Repository r = new FileRepositoryBuilder().setWorkTree(dir.toFile()).build();
+        if (!r.getObjectDatabase().exists()) {
+            r.create();
+        }
+        return r;
+    }
+
+    @Test
+    void sharesHandles() throws Exception {
+        SharedRepositoryCache cache = new SharedRepositoryCache(4, 1, TimeUnit.HOURS);
+        Path ws = tmp.resolve("a");
+
+        try (Repository r1 = cache.borrow(ws, () -> open(ws));
+                Repository r2 = cache.borrow(ws.resolve("../a"), () -> open(ws))) {
+            assertSame(r1, r2);
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+        cache.clear();
+    }
+
+    @Test
+    void keepsMaintenanceStatus() throws Exception {
+        SharedRepositoryCache cache = new SharedRepositoryCache(4, 1, TimeUnit.HOURS);
+        Path ws = tmp.resolve("a");
+        RepositoryMaintenance maintenance = RepositoryMaintenance.get();
+
+        try (Repository r = cache.borrow(ws, () -> open(ws))) {
+            maintenance.getStatus(r);
+            cache.invalidate(ws);
+            // the next push still counts towards the same maintenance
+            assertTrue(maintenance.getStatuses().containsKey(r.getIdentifier()));
+            maintenance.forget(r);
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws Exception {
+        SharedRepositoryCache cache = new SharedRepositoryCache(2, 1, TimeUnit.HOURS);
+        Path a = tmp.resolve("a");
+        Path b = tmp.resolve("b");
+        Path c = tmp.resolve("c");
+
+        Repository ra = cache.borrow(a, () -> open(a));
+        ra.close();
+        cache.borrow(b, () -> open(b)).close();
+        cache.borrow(a, () -> open(a)).close();
+        cache.borrow(c, () -> open(c)).close();
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        // 'b' was the least recently used one
+        cache.borrow(a, () -> open(a)).close();
+        assertEquals(2, cache.getHits());
+        cache.clear();
+    }
+
+    @Test
+    void evictsIdleEntries() throws Exception {
+        SharedRepositoryCache cache = new SharedRepositoryCache(4, 0, TimeUnit.SECONDS);
+        Path a = tmp.resolve("a");
+
+        Repository r1 = cache.borrow(a, () -> open(a));
+        r1.close();
+        assertEquals(1, cache.evictIdle());
+        assertEquals(0, cache.size());
+
+        try (Repository r2 = cache.borrow(a, () -> open(a))) {
+            assertNotSame(r1, r2);
+        }
+        assertEquals(2, cache.getMisses());
+        cache.clear();
+    }
+
+    @Test
+    void failedOpenIsNotCached() {
+        SharedRepositoryCache cache = new SharedRepositoryCache(4, 1, TimeUnit.HOURS);
+        Path a = tmp.resolve("a");
+
+        assertThrows(IOException.class, () -> cache.borrow(a, () -> {
+            throw new IOException("boom");
+        }));
+        assertEquals(0, cache.size());
+    }
+}
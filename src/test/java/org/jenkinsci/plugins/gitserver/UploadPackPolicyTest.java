@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.ServiceMayNotContinueException;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UploadPackPolicyTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void limits() throws Exception {
+        try (Git git = Git.init().setDirectory(tmp.toFile()).call()) {
+            Repository repo = git.getRepository();
+            ObjectId tip = git.commit().setMessage("first").call();
+            git.commit().setMessage("second").call();
+
+            UploadPackPolicy policy = UploadPackPolicy.forRepository(repo);
+            assertTrue(policy.isAllowFilter());
+            fetch(policy, repo, tip, "filter blob:none");
+            fetch(policy, repo, tip, "deepen 5");
+
+            assertThrows(
+                    ServiceMayNotContinueException.class,
+                    () -> fetch(policy.withMaxDepth(1), repo, tip, "deepen 5"));
+            assertThrows(
+                    ServiceMayNotContinueException.class,
+                    () -> fetch(policy.withAllowTreeFilter(false), repo, tip, "filter tree:0"));
+            assertThrows(
+                    ServiceMayNotContinueException.class,
+                    () -> fetch(policy.withMaxTreeDepth(1), repo, tip, "filter tree:2"));
+            fetch(policy.withMaxTreeDepth(1), repo, tip, "filter tree:1");
+            assertThrows(Exception.class, () -> fetch(policy.withAllowFilter(false), repo, tip, "filter blob:none"));
+
+            StoredConfig config = repo.getConfig();
+            config.setBoolean("uploadpack", null, "allowFilter", false);
+            config.setInt("jenkins", "uploadpack", "maxDepth", 3);
+            config.save();
+            UploadPackPolicy configured = UploadPackPolicy.forRepository(repo);
+            assertFalse(configured.isAllowFilter());
+            assertEquals(3, configured.getMaxDepth());
+        }
+    }
+
+    /**
+     * Runs a stateless protocol v2 fetch of the given commit, with the given extra argument.
+     */
+    private static void fetch(UploadPackPolicy policy, Repository repo, ObjectId want, String argument)
+            throws Exception {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        PacketLineOut pck = new PacketLineOut(request);
+        pck.writeString("command=fetch\n");
+        pck.writeDelim();
+        pck.writeString("want " + want.name() + "\n");
+        pck.writeString(argument + "\n");
+        pck.writeString("done\n");
+        pck.end();
+
+        UploadPack up = policy.apply(new UploadPack(repo));
+        up.setExtraParameters(List.of("version=2"));
+        up.setBiDirectionalPipe(false);
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        up.upload(new ByteArrayInputStream(request.toByteArray()), response, null);
+        String s = response.toString(StandardCharsets.ISO_8859_1);
+        assertTrue(s.contains("packfile"), s);
+    }
+}
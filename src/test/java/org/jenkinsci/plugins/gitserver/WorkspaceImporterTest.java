@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WorkspaceImporterTest {
+    @TempDir
+    Path tmp;
+
+    /**
+     * The import should produce exactly the same tree as "git add . &amp;&amp; git commit".
+     */
+    @Test
+    void sameTreeAsPorcelain() throws Exception {
+        Path parallel = tmp.resolve("parallel");
+        Path porcelain = tmp.resolve("porcelain");
+        populate(parallel);
+        populate(porcelain);
+
+        ObjectId expected;
+        try (Git git = Git.init().setDirectory(porcelain.toFile()).call()) {
+            git.add().addFilepattern(".").call();
+            expected = git.commit().setMessage("porcelain").call().getTree();
+        }
+
+        try (Repository r = new FileRepositoryBuilder().setWorkTree(parallel.toFile()).build()) {
+            r.create();
+            WorkspaceImporter importer = new WorkspaceImporter(r, parallel);
+            ObjectId commit = importer.commit(
+                    new PersonIdent("Jenkins", "noreply@jenkins-ci.org"), "parallel", NullProgressMonitor.INSTANCE);
+
+            assertEquals(commit, r.resolve(Constants.R_HEADS + Constants.MASTER));
+            RevCommit c = r.parseCommit(commit);
+            assertEquals(0, c.getParentCount());
+            assertEquals(expected, c.getTree().copy());
+            assertEquals(203, importer.getFiles());
+        }
+    }
+
+    @Test
+    void indexAndRepositoryWideIgnores() throws Exception {
+        Path dir = tmp.resolve("workspace");
+        populate(dir);
+        write(dir, "excluded.txt", "no");
+        write(dir, "sub/scratch.tmp", "no");
+        Path excludesFile = tmp.resolve("global-ignore");
+        Files.writeString(excludesFile, "*.tmp\n");
+
+        try (Repository r = new FileRepositoryBuilder().setWorkTree(dir.toFile()).build()) {
+            r.create();
+            write(r.getDirectory().toPath(), Constants.INFO_EXCLUDE, "/excluded.txt\n");
+            StoredConfig config = r.getConfig();
+            config.setString(
+                    ConfigConstants.CONFIG_CORE_SECTION,
+                    null,
+                    ConfigConstants.CONFIG_KEY_EXCLUDESFILE,
+                    excludesFile.toString());
+            config.save();
+
+            WorkspaceImporter importer = new WorkspaceImporter(r, dir);
+            ObjectId commit = importer.commit(
+                    new PersonIdent("Jenkins", "noreply@jenkins-ci.org"), "parallel", NullProgressMonitor.INSTANCE);
+            RevCommit c = r.parseCommit(commit);
+            assertNull(TreeWalk.forPath(r, "excluded.txt", c.getTree()));
+            assertNull(TreeWalk.forPath(r, "sub/scratch.tmp", c.getTree()));
+            assertEquals(203, importer.getFiles());
+
+            // the index matches, so the workspace is clean from the start
+            assertEquals(203, r.readDirCache().getEntryCount());
+            Status status = Git.wrap(r).status().call();
+            assertTrue(status.isClean(), status.getUncommittedChanges() + " " + status.getUntracked());
+        }
+    }
+
+    private static void populate(Path dir) throws Exception {
+        write(dir, "a=", "a=");
+        write(dir, "a.b", "a.b");
+        write(dir, "a0", "a0");
+        write(dir, "a/b/c.txt", "c");
+        write(dir, "a-b/c.txt", "c");
+        write(dir, ".gitignore", "*.log\nbuild/\n");
+        write(dir, "ignored.log", "no");
+        write(dir, "build/out.txt", "no");
+        write(dir, "sub/.gitignore", "!keep.log\n");
+        write(dir, "sub/keep.log", "yes");
+        for (int i = 0; i < 195; i++) {
+            write(dir, "many/file" + i, "content " + i);
+        }
+        Files.createDirectories(dir.resolve("empty/nested"));
+    }
+
+    private static void write(Path dir, String path, String content) throws Exception {
+        Path f = dir.resolve(path);
+        Files.createDirectories(f.getParent());
+        Files.writeString(f, content);
+    }
+}
@@ -0,0 +1,32 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this plugin.
+ *
+ * <p>
+ * This isn't part of the regular test run. Use {@code mvn test -Dtest=BenchmarkRunner},
+ * optionally with {@code -Dbenchmark.include=<regexp>} to only run some of the benchmarks.
+ * Results are written to {@code target/jmh-report.json}, so that runs on different versions can be compared.
+ */
+class BenchmarkRunner {
+    @Test
+    void runJmhBenchmarks() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(System.getProperty(
+                        "benchmark.include", BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark"))
+                .timeUnit(TimeUnit.MILLISECONDS)
+                .forks(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json");
+        new Runner(options.build()).run();
+    }
+}
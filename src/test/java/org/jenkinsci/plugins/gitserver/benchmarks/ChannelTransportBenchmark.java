@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import hudson.FilePath;
+import hudson.remoting.Channel;
+import hudson.remoting.ChannelBuilder;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.util.FileUtils;
+import org.jenkinsci.plugins.gitserver.ChannelTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to fetch a repository from an agent through {@link ChannelTransport}, with the buffer size
+ * it used to have, with the current default, and with compression on top of that.
+ *
+ * <p>
+ * The agent is a remoting channel within the same JVM, so this measures the overhead of the
+ * transport itself rather than that of the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ChannelTransportBenchmark {
+    @Param({"1000", "10000", "30000"})
+    public int commits;
+
+    @Param({"legacy", "buffered", "compressed"})
+    public String mode;
+
+    private Path tmp;
+    private ExecutorService executors;
+    private Channel controller;
+    private Channel agent;
+    private FilePath remote;
+    private Repository local;
+
+    @Setup(Level.Trial)
+    public void createAgent() throws Exception {
+        tmp = Files.createTempDirectory("channel-transport");
+        GeneratedRepository.create(tmp.resolve("agent/.git"), commits).close();
+
+        executors = Executors.newCachedThreadPool();
+        FastPipedInputStream in1 = new FastPipedInputStream();
+        FastPipedInputStream in2 = new FastPipedInputStream();
+        FastPipedOutputStream out1 = new FastPipedOutputStream(in1);
+        FastPipedOutputStream out2 = new FastPipedOutputStream(in2);
+        Future<Channel> c = executors.submit(
+                () -> new ChannelBuilder("controller", executors).withMode(Channel.Mode.BINARY).build(in1, out2));
+        Future<Channel> a = executors.submit(
+                () -> new ChannelBuilder("agent", executors).withMode(Channel.Mode.BINARY).build(in2, out1));
+        controller = c.get();
+        agent = a.get();
+        remote = new FilePath(controller, tmp.resolve("agent").toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAgent() throws Exception {
+        controller.close();
+        agent.close();
+        controller.join();
+        agent.join();
+        executors.shutdownNow();
+        FileUtils.delete(tmp.toFile(), FileUtils.RECURSIVE);
+    }
+
+    @Setup(Level.Iteration)
+    public void createLocal() throws Exception {
+        File dir = Files.createTempDirectory(tmp, "local").toFile();
+        local = new FileRepositoryBuilder().setGitDir(dir).build();
+        local.create(true);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteLocal() throws Exception {
+        local.close();
+        FileUtils.delete(local.getDirectory(), FileUtils.RECURSIVE);
+    }
+
+    @Benchmark
+    public void fetch() throws Exception {
+        try (ChannelTransport t = new ChannelTransport(local, remote)) {
+            switch (mode) {
+                case "legacy":
+                    t.setBufferSize(8192);
+                    t.setCompression(false);
+                    break;
+                case "compressed":
+                    t.setCompression(true);
+                    break;
+                default:
+                    t.setCompression(false);
+            }
+            t.fetch(NullProgressMonitor.INSTANCE, List.of(new RefSpec("+refs/heads/*:refs/heads/*")));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.util.FileUtils;
+import org.jenkinsci.plugins.gitserver.FileBackedHttpGitRepository;
+import org.jenkinsci.plugins.gitserver.RepositoryMaintenance;
+import org.jenkinsci.plugins.gitserver.SharedRepositoryCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time {@link FileBackedHttpGitRepository} takes to open its repository when it isn't cached yet,
+ * and to update its workspace after a push of {@value #PUSHED} commits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class FileBackedRepositoryBenchmark {
+    private static final int PUSHED = 100;
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Path tmp;
+    private Path workspace;
+    private Workspace w;
+    private Repository repo;
+    private ObjectId base;
+    private ObjectId tip;
+
+    private static final class Workspace extends FileBackedHttpGitRepository {
+        Workspace(Path workspace) {
+            super(workspace);
+        }
+
+        void update(Repository r, ObjectId from, ObjectId to) throws IOException, GitAPIException {
+            ReceiveCommand c = new ReceiveCommand(from, to, "refs/heads/master");
+            c.setResult(ReceiveCommand.Result.OK);
+            updateWorkspace(r, List.of(c));
+        }
+
+        @Override
+        public void checkPullPermission() {}
+
+        @Override
+        protected void checkPushPermission() {}
+    }
+
+    @Setup(Level.Trial)
+    public void createWorkspace() throws Exception {
+        tmp = Files.createTempDirectory("workspace");
+        workspace = tmp.resolve("workspace");
+        try (Repository source =
+                GeneratedRepository.create(tmp.resolve("source.git"), GeneratedRepository.commits(size))) {
+            base = source.resolve("master");
+            tip = GeneratedRepository.appendCommits(source, PUSHED);
+            try (Git git = Git.cloneRepository()
+                    .setURI(source.getDirectory().toURI().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                // as it would be once RepositoryMaintenance has been through it
+                RepositoryMaintenance.enableReachabilityIndexes(git.getRepository());
+                git.gc().call();
+            }
+        }
+        w = new Workspace(workspace);
+        repo = w.openRepository();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkspace() throws Exception {
+        repo.close();
+        SharedRepositoryCache.get().invalidate(workspace);
+        FileUtils.delete(tmp.toFile(), FileUtils.RECURSIVE);
+    }
+
+    @Setup(Level.Invocation)
+    public void rewindWorkspace() throws Exception {
+        w.update(repo, tip, base);
+    }
+
+    @TearDown(Level.Invocation)
+    public void evictRepository() {
+        // the handle of the benchmark keeps it open, but the next openRepository() has to start over
+        SharedRepositoryCache.get().invalidate(workspace);
+    }
+
+    @Benchmark
+    @Measurement(iterations = 20)
+    public boolean openRepository() throws Exception {
+        try (Repository r = w.openRepository()) {
+            return r.getObjectDatabase().has(tip);
+        }
+    }
+
+    @Benchmark
+    public void updateWorkspace() throws Exception {
+        w.update(repo, base, tip);
+    }
+}
@@ -0,0 +1,142 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * Generates repositories with a synthetic, linear history for the benchmarks.
+ *
+ * <p>
+ * The tree has {@code DIRS} directories of {@code FILES_PER_DIR} files each, and every commit
+ * rewrites one of those files, so the generated history has realistic deltas to find.
+ */
+final class GeneratedRepository {
+    private static final int DIRS = 16;
+    private static final int FILES_PER_DIR = 16;
+
+    private GeneratedRepository() {}
+
+    /**
+     * Number of commits of the repositories of the given size, so that the benchmarks agree on what
+     * "small", "medium" and "large" mean, and their results can be compared.
+     */
+    static int commits(String size) {
+        switch (size) {
+            case "small":
+                return 100;
+            case "medium":
+                return 3000;
+            case "large":
+                return 30000;
+            default:
+                throw new IllegalArgumentException(size);
+        }
+    }
+
+    /**
+     * Creates a bare repository in the given directory with the given number of commits on {@code master}.
+     */
+    static Repository create(Path dir, int commits) throws IOException {
+        Repository repo = new FileRepositoryBuilder().setGitDir(dir.toFile()).build();
+        repo.create(true);
+        appendCommits(repo, commits);
+        return repo;
+    }
+
+    /**
+     * Adds the given number of commits on top of {@code master}.
+     *
+     * @return the new tip.
+     */
+    static ObjectId appendCommits(Repository repo, int commits) throws IOException {
+        ObjectId[][] blobs = new ObjectId[DIRS][FILES_PER_DIR];
+        ObjectId[] dirs = new ObjectId[DIRS];
+        ObjectId parent = repo.resolve(Constants.MASTER);
+        long offset = parent == null ? 0 : System.nanoTime();
+        PersonIdent ident = new PersonIdent("Jenkins", "noreply@jenkins-ci.org");
+
+        try (ObjectInserter ins = repo.newObjectInserter()) {
+            for (int d = 0; d < DIRS; d++) {
+                for (int f = 0; f < FILES_PER_DIR; f++) {
+                    blobs[d][f] = ins.insert(Constants.OBJ_BLOB, content(d, f, offset));
+                }
+                dirs[d] = insertDir(ins, blobs[d]);
+            }
+
+            for (int i = 0; i < commits; i++) {
+                int d = i % DIRS;
+                int f = (i / DIRS) % FILES_PER_DIR;
+                blobs[d][f] = ins.insert(Constants.OBJ_BLOB, content(d, f, offset + i));
+                dirs[d] = insertDir(ins, blobs[d]);
+
+                TreeFormatter root = new TreeFormatter();
+                for (int j = 0; j < DIRS; j++) {
+                    root.append(String.format("dir%02d", j), FileMode.TREE, dirs[j]);
+                }
+
+                CommitBuilder c = new CommitBuilder();
+                c.setTreeId(ins.insert(root));
+                if (parent != null) {
+                    c.setParentId(parent);
+                }
+                c.setAuthor(ident);
+                c.setCommitter(ident);
+                c.setMessage("Commit " + i + "\n");
+                parent = ins.insert(c);
+            }
+            ins.flush();
+        }
+
+        RefUpdate u = repo.updateRef(Constants.R_HEADS + Constants.MASTER);
+        u.setNewObjectId(parent);
+        u.setForceUpdate(true);
+        u.update();
+        return parent;
+    }
+
+    /**
+     * Copies a repository, or any directory, so that each invocation of a benchmark can start from the same state.
+     */
+    static void copy(Path source, Path target) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                Path t = target.resolve(source.relativize(p).toString());
+                if (Files.isDirectory(p)) {
+                    Files.createDirectories(t);
+                } else {
+                    Files.copy(p, t);
+                }
+            }
+        }
+    }
+
+    private static ObjectId insertDir(ObjectInserter ins, ObjectId[] files) throws IOException {
+        TreeFormatter t = new TreeFormatter();
+        for (int f = 0; f < files.length; f++) {
+            t.append(String.format("file%02d.txt", f), FileMode.REGULAR_FILE, files[f]);
+        }
+        return ins.insert(t);
+    }
+
+    private static byte[] content(int dir, int file, long revision) {
+        StringBuilder b = new StringBuilder();
+        for (int line = 0; line < 64; line++) {
+            b.append("dir ").append(dir).append(" file ").append(file).append(" line ").append(line);
+            b.append(line == revision % 64 ? " revision " + revision : "").append('\n');
+        }
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
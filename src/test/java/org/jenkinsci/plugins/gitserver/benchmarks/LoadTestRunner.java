@@ -0,0 +1,432 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.RootAction;
+import hudson.model.User;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import jenkins.model.Jenkins;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.TransportCommand;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.transport.sshd.ServerKeyDatabase;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.eclipse.jgit.util.FileUtils;
+import org.jenkinsci.main.modules.cli.auth.ssh.PublicKeySignatureWriter;
+import org.jenkinsci.main.modules.cli.auth.ssh.UserPropertyImpl;
+import org.jenkinsci.main.modules.sshd.SSHD;
+import org.jenkinsci.plugins.gitserver.FileBackedHttpGitRepository;
+import org.jenkinsci.plugins.gitserver.RepositoryMaintenance;
+import org.jenkinsci.plugins.gitserver.RepositoryResolver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ * Drives a mix of clones, fetches, ls-remotes and pushes from many concurrent clients
+ * at a {@link FileBackedHttpGitRepository} in a local Jenkins, over HTTP and SSH,
+ * and reports the throughput, latency percentiles and error rate of each kind of operation.
+ *
+ * <p>
+ * Like {@link BenchmarkRunner}, this isn't part of the regular test run. Use {@code mvn test -Dtest=LoadTestRunner}
+ * with the following system properties to shape the load:
+ *
+ * <dl>
+ * <dt>{@code loadtest.clients}</dt><dd>number of concurrent clients, 50 by default</dd>
+ * <dt>{@code loadtest.duration}</dt><dd>number of seconds to run, 60 by default</dd>
+ * <dt>{@code loadtest.transports}</dt><dd>comma-separated transports the clients are spread over, "http,ssh"</dd>
+ * <dt>{@code loadtest.size}</dt><dd>size of the repository, as in the benchmarks, "medium" by default</dd>
+ * <dt>{@code loadtest.mix}</dt><dd>relative weights of the operations, "clone=1,fetch=6,ls-remote=2,push=1"</dd>
+ * <dt>{@code loadtest.seed}</dt><dd>seed of the random choices of the clients, so that runs can be reproduced</dd>
+ * </dl>
+ *
+ * <p>
+ * Runs longer than the default test timeout also need {@code -Djenkins.test.timeout=0}.
+ * The report is printed and written to {@code target/load-test-report.txt}.
+ */
+@WithJenkins
+class LoadTestRunner {
+    private static final String USER = "loadtest";
+
+    private static final int CLIENTS = Integer.getInteger("loadtest.clients", 50);
+    private static final int DURATION = Integer.getInteger("loadtest.duration", 60);
+    private static final List<String> TRANSPORTS =
+            Arrays.asList(System.getProperty("loadtest.transports", "http,ssh").split(","));
+    private static final String SIZE = System.getProperty("loadtest.size", "medium");
+    private static final String MIX = System.getProperty("loadtest.mix", "clone=1,fetch=6,ls-remote=2,push=1");
+    private static final long SEED = Long.getLong("loadtest.seed", 42);
+
+    @TempDir
+    Path tmp;
+
+    /**
+     * The repository under load, over HTTP.
+     */
+    @TestExtension
+    public static final class LoadTestRepository extends FileBackedHttpGitRepository implements RootAction {
+        public LoadTestRepository() {
+            super(Jenkins.get().getRootDir().toPath().resolve("load-test"));
+        }
+
+        @Override
+        protected void checkPushPermission() {}
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return null;
+        }
+
+        @Override
+        public String getUrlName() {
+            return "load-test.git";
+        }
+    }
+
+    /**
+     * The same repository over SSH.
+     */
+    @TestExtension
+    public static final class LoadTestResolver extends RepositoryResolver {
+        private static LoadTestRepository repository(String fullRepositoryName) {
+            return fullRepositoryName.equals("/load-test.git") || fullRepositoryName.equals("load-test.git")
+                    ? Jenkins.get().getExtensionList(RootAction.class).get(LoadTestRepository.class)
+                    : null;
+        }
+
+        @Override
+        public boolean isRepositoryClosedAfterTransfer() {
+            return true; // openRepository() borrows from SharedRepositoryCache
+        }
+
+        @Override
+        public ReceivePack createReceivePack(String fullRepositoryName) throws IOException {
+            LoadTestRepository r = repository(fullRepositoryName);
+            return r == null ? null : r.createReceivePack(r.openRepository());
+        }
+
+        @Override
+        public UploadPack createUploadPack(String fullRepositoryName) throws IOException {
+            LoadTestRepository r = repository(fullRepositoryName);
+            return r == null ? null : new UploadPack(r.openRepository());
+        }
+    }
+
+    /**
+     * What happened to one kind of operation over one transport.
+     */
+    private static final class Stats {
+        final List<Long> latencies = new ArrayList<>();
+        final LongAdder errors = new LongAdder();
+
+        synchronized void record(long nanos) {
+            latencies.add(nanos);
+        }
+
+        synchronized long[] sorted() {
+            long[] a = latencies.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(a);
+            return a;
+        }
+    }
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private SshdSessionFactory ssh;
+    private int sshPort;
+    private String httpUrl;
+    private String seedUrl;
+
+    @Test
+    void runLoadTest(JenkinsRule j) throws Exception {
+        // the Git clients don't send crumbs; CSRFExclusionImpl is only about pushes
+        j.jenkins.setCrumbIssuer(null);
+        Path workspace = j.jenkins.getRootDir().toPath().resolve("load-test");
+        try (Repository source =
+                GeneratedRepository.create(tmp.resolve("source.git"), GeneratedRepository.commits(SIZE))) {
+            try (Git git = Git.cloneRepository()
+                    .setURI(source.getDirectory().toURI().toString())
+                    .setDirectory(workspace.toFile())
+                    .call()) {
+                RepositoryMaintenance.enableReachabilityIndexes(git.getRepository());
+                git.gc().call();
+            }
+        }
+        seedUrl = workspace.resolve(Constants.DOT_GIT).toUri().toString();
+        httpUrl = j.getURL() + "load-test.git";
+
+        if (TRANSPORTS.contains("ssh")) {
+            KeyPair keyPair = generateKeys(User.getOrCreateByIdOrFullName(USER));
+            SSHD server = SSHD.get();
+            server.setPort(0);
+            server.start();
+            sshPort = server.getActualPort();
+            ssh = new SshdSessionFactory() {
+                @Override
+                protected Iterable<KeyPair> getDefaultKeys(File sshDir) {
+                    return List.of(keyPair);
+                }
+
+                @Override
+                protected ServerKeyDatabase getServerKeyDatabase(File homeDir, File sshDir) {
+                    return new AcceptAll();
+                }
+            };
+        }
+
+        List<String> operations = new ArrayList<>();
+        for (String weighted : MIX.split(",")) {
+            String[] kv = weighted.split("=");
+            for (int i = 0; i < Integer.parseInt(kv[1]); i++) {
+                operations.add(kv[0]);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(DURATION);
+        try {
+            List<Future<?>> clients = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                int client = i;
+                clients.add(executor.submit(() -> {
+                    runClient(client, TRANSPORTS.get(client % TRANSPORTS.size()), operations, deadline);
+                    return null;
+                }));
+            }
+            for (Future<?> f : clients) {
+                f.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            if (ssh != null) {
+                ssh.close();
+            }
+        }
+
+        String report = report(System.nanoTime() - start);
+        System.out.println(report);
+        Files.createDirectories(Paths.get("target"));
+        Files.writeString(Paths.get("target/load-test-report.txt"), report, StandardCharsets.UTF_8);
+        assertTrue(stats.values().stream().anyMatch(s -> s.sorted().length > 0), "no operation completed");
+    }
+
+    /**
+     * One client, doing random operations over one transport until the deadline.
+     */
+    private void runClient(int client, String transport, List<String> operations, long deadline) throws Exception {
+        Random random = new Random(SEED + client);
+        Path dir = Files.createTempDirectory(tmp, "client" + client);
+        // each client has its own clone to fetch into and push from
+        Path local = dir.resolve("local.git");
+        Git.cloneRepository()
+                .setURI(seedUrl)
+                .setBare(true)
+                .setDirectory(local.toFile())
+                .call()
+                .close();
+        String uri = transport.equals("ssh") ? "ssh://" + USER + "@localhost:" + sshPort + "/load-test.git" : httpUrl;
+
+        for (int n = 0; System.nanoTime() < deadline; n++) {
+            String op = operations.get(random.nextInt(operations.size()));
+            Stats s = stats.computeIfAbsent(op + " " + transport, k -> new Stats());
+            long begin = System.nanoTime();
+            try {
+                switch (op) {
+                    case "clone":
+                        Path clone = dir.resolve("clone" + n);
+                        configure(Git.cloneRepository())
+                                .setURI(uri)
+                                .setBare(true)
+                                .setDirectory(clone.toFile())
+                                .call()
+                                .close();
+                        s.record(System.nanoTime() - begin);
+                        FileUtils.delete(clone.toFile(), FileUtils.RECURSIVE);
+                        break;
+                    case "fetch":
+                        try (Git git = Git.open(local.toFile())) {
+                            configure(git.fetch())
+                                    .setRemote(uri)
+                                    .setRefSpecs(new RefSpec("+refs/heads/*:refs/remotes/origin/*"))
+                                    .call();
+                        }
+                        s.record(System.nanoTime() - begin);
+                        break;
+                    case "ls-remote":
+                        configure(Git.lsRemoteRepository()).setRemote(uri).call();
+                        s.record(System.nanoTime() - begin);
+                        break;
+                    case "push":
+                        try (Git git = Git.open(local.toFile())) {
+                            commit(git.getRepository(), "Push " + n + " of client " + client);
+                            begin = System.nanoTime();
+                            configure(git.push())
+                                    .setRemote(uri)
+                                    .setRefSpecs(new RefSpec("+refs/heads/load:refs/heads/load/client" + client))
+                                    .call();
+                        }
+                        s.record(System.nanoTime() - begin);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown operation " + op);
+                }
+            } catch (Exception e) {
+                s.errors.increment();
+            }
+        }
+    }
+
+    private <C extends TransportCommand<C, ?>> C configure(C command) {
+        if (ssh != null) {
+            command.setTransportConfigCallback(t -> {
+                if (t instanceof SshTransport) {
+                    ((SshTransport) t).setSshSessionFactory(ssh);
+                }
+            });
+        }
+        return command;
+    }
+
+    /**
+     * Points {@code load} at a new commit on top of {@code master}, with the same tree, for a push to carry.
+     */
+    private static void commit(Repository repo, String message) throws IOException {
+        try (RevWalk rw = new RevWalk(repo);
+                ObjectInserter ins = repo.newObjectInserter()) {
+            RevCommit master = rw.parseCommit(repo.resolve(Constants.R_HEADS + Constants.MASTER));
+            PersonIdent ident = new PersonIdent("Jenkins", "noreply@jenkins-ci.org");
+            CommitBuilder c = new CommitBuilder();
+            c.setTreeId(master.getTree());
+            c.setParentId(master);
+            c.setAuthor(ident);
+            c.setCommitter(ident);
+            c.setMessage(message + "\n");
+            ObjectId id = ins.insert(c);
+            ins.flush();
+
+            RefUpdate u = repo.updateRef(Constants.R_HEADS + "load");
+            u.setNewObjectId(id);
+            u.setForceUpdate(true);
+            u.update();
+        }
+    }
+
+    private String report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        StringWriter sw = new StringWriter();
+        PrintWriter w = new PrintWriter(sw);
+        w.printf(
+                Locale.ENGLISH,
+                "%d clients for %.1fs on a %s repository (mix %s)%n",
+                CLIENTS,
+                seconds,
+                SIZE,
+                MIX);
+        w.printf(
+                Locale.ENGLISH,
+                "%-18s %8s %8s %8s %10s %10s %10s%n",
+                "operation",
+                "count",
+                "errors",
+                "ops/s",
+                "p50 ms",
+                "p95 ms",
+                "p99 ms");
+        new TreeMap<>(stats).forEach((op, s) -> {
+            long[] l = s.sorted();
+            long errors = s.errors.sum();
+            w.printf(
+                    Locale.ENGLISH,
+                    "%-18s %8d %7.1f%% %8.1f %10.1f %10.1f %10.1f%n",
+                    op,
+                    l.length,
+                    100.0 * errors / Math.max(1, l.length + errors),
+                    l.length / seconds,
+                    percentile(l, 50),
+                    percentile(l, 95),
+                    percentile(l, 99));
+        });
+        w.flush();
+        return sw.toString();
+    }
+
+    /**
+     * Nearest-rank percentile of sorted latencies, in milliseconds.
+     */
+    private static double percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private static final class AcceptAll implements ServerKeyDatabase {
+        @Override
+        public List<PublicKey> lookup(String connectAddress, InetSocketAddress remoteAddress, Configuration config) {
+            return List.of();
+        }
+
+        @Override
+        public boolean accept(
+                String connectAddress,
+                InetSocketAddress remoteAddress,
+                PublicKey serverKey,
+                Configuration config,
+                CredentialsProvider provider) {
+            return true;
+        }
+    }
+
+    private static KeyPair generateKeys(User user) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String encodedPublicKey = "ssh-rsa " + new PublicKeySignatureWriter().asString(keyPair.getPublic());
+        user.addProperty(new UserPropertyImpl(encodedPublicKey));
+        return keyPair;
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import com.sun.management.OperatingSystemMXBean;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.util.FileUtils;
+import org.jenkinsci.plugins.gitserver.PackTuning;
+import org.jenkinsci.plugins.gitserver.RepositoryMaintenance;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time, CPU and bytes it takes to serve a full clone with various {@link PackTuning}s.
+ *
+ * <p>
+ * The CPU time is that of the whole process, so that it includes the threads searching for deltas.
+ * Not reusing deltas and objects is what a repository that was never repacked costs,
+ * and shows what the compression level and the threads trade against the size of the pack.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PackTuningBenchmark {
+    @Param({"-1", "1", "9"})
+    public int compressionLevel;
+
+    @Param({"1", "0"})
+    public int threads;
+
+    @Param({"true", "false"})
+    public boolean reuse;
+
+    private Path tmp;
+    private Repository source;
+    private PackTuning tuning;
+    private byte[] body;
+
+    /**
+     * Reported next to the time, as {@code bytes} and {@code cpuMillis}.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Transferred {
+        public long bytes;
+        public long cpuMillis;
+    }
+
+    @Setup(Level.Trial)
+    public void createRepository() throws Exception {
+        tmp = Files.createTempDirectory("pack-tuning");
+        source = GeneratedRepository.create(tmp.resolve("source.git"), 10000);
+        RepositoryMaintenance.enableReachabilityIndexes(source);
+        Git.wrap(source).gc().call();
+        tuning = PackTuning.getDefault()
+                .withCompressionLevel(compressionLevel)
+                .withThreads(threads)
+                .withReuseDeltas(reuse)
+                .withReuseObjects(reuse);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PacketLineOut pck = new PacketLineOut(buf);
+        pck.writeString("command=fetch\n");
+        pck.writeDelim();
+        pck.writeString("ofs-delta\n");
+        pck.writeString("want " + source.resolve(Constants.MASTER).name() + "\n");
+        pck.writeString("done\n");
+        pck.end();
+        body = buf.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository() throws Exception {
+        source.close();
+        FileUtils.delete(tmp.toFile(), FileUtils.RECURSIVE);
+    }
+
+    @Benchmark
+    public void fetch(Transferred transferred) throws Exception {
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpu = os.getProcessCpuTime();
+        try (UploadPack up = tuning.apply(new UploadPack(source))) {
+            up.setExtraParameters(List.of("version=2"));
+            up.setBiDirectionalPipe(false);
+            CountingOutputStream out = new CountingOutputStream();
+            up.upload(new ByteArrayInputStream(body), out, null);
+            transferred.bytes += out.count;
+        }
+        transferred.cpuMillis += TimeUnit.NANOSECONDS.toMillis(os.getProcessCpuTime() - cpu);
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
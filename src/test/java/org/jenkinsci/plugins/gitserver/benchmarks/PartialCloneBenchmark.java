@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.util.FileUtils;
+import org.jenkinsci.plugins.gitserver.RepositoryMaintenance;
+import org.jenkinsci.plugins.gitserver.UploadPackPolicy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and bytes it takes to serve a clone of the tip of a repository with a long history,
+ * in full, as a partial clone, and as a shallow clone.
+ *
+ * <p>
+ * This drives {@link UploadPack} directly with a protocol v2 fetch, as {@link UploadPackPolicy} sets it up,
+ * so it measures what the server does regardless of what the client supports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PartialCloneBenchmark {
+    @Param({"10000", "30000"})
+    public int commits;
+
+    @Param({"full", "filter blob:none", "filter tree:0", "deepen 1"})
+    public String request;
+
+    private Path tmp;
+    private Repository source;
+    private byte[] body;
+
+    /**
+     * Reported next to the time, as {@code bytes}.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Transferred {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void createRepository() throws Exception {
+        tmp = Files.createTempDirectory("partial-clone");
+        source = GeneratedRepository.create(tmp.resolve("source.git"), commits);
+        RepositoryMaintenance.enableReachabilityIndexes(source);
+        Git.wrap(source).gc().call();
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PacketLineOut pck = new PacketLineOut(buf);
+        pck.writeString("command=fetch\n");
+        pck.writeDelim();
+        pck.writeString("ofs-delta\n");
+        pck.writeString("want " + source.resolve(Constants.MASTER).name() + "\n");
+        if (!request.equals("full")) {
+            pck.writeString(request + "\n");
+        }
+        pck.writeString("done\n");
+        pck.end();
+        body = buf.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository() throws Exception {
+        source.close();
+        FileUtils.delete(tmp.toFile(), FileUtils.RECURSIVE);
+    }
+
+    @Benchmark
+    public void fetch(Transferred transferred) throws Exception {
+        try (UploadPack up = UploadPackPolicy.forRepository(source).apply(new UploadPack(source))) {
+            up.setExtraParameters(List.of("version=2"));
+            up.setBiDirectionalPipe(false);
+            CountingOutputStream out = new CountingOutputStream();
+            up.upload(new ByteArrayInputStream(body), out, null);
+            transferred.bytes += out.count;
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.util.FileUtils;
+import org.jenkinsci.plugins.gitserver.RepositoryMaintenance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Clone time of a repository with a long history, with and without the bitmap index and commit-graph
+ * that {@link RepositoryMaintenance} builds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ReachabilityIndexBenchmark {
+    @Param({"10000", "30000"})
+    public int commits;
+
+    @Param({"false", "true"})
+    public boolean reachabilityIndexes;
+
+    private Path tmp;
+    private Repository source;
+    private File clone;
+
+    @Setup(Level.Trial)
+    public void createRepository() throws Exception {
+        tmp = Files.createTempDirectory("reachability");
+        source = GeneratedRepository.create(tmp.resolve("source.git"), commits);
+        if (reachabilityIndexes) {
+            RepositoryMaintenance.enableReachabilityIndexes(source);
+        } else {
+            StoredConfig config = source.getConfig();
+            config.setBoolean(
+                    ConfigConstants.CONFIG_PACK_SECTION, null, ConfigConstants.CONFIG_KEY_BUILD_BITMAPS, false);
+            config.save();
+        }
+        Git.wrap(source).gc().call();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository() throws Exception {
+        source.close();
+        FileUtils.delete(tmp.toFile(), FileUtils.RECURSIVE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteClone() throws Exception {
+        FileUtils.delete(clone, FileUtils.RECURSIVE);
+    }
+
+    @Benchmark
+    public void cloneRepository() throws Exception {
+        clone = Files.createTempDirectory(tmp, "clone").toFile();
+        Git.cloneRepository()
+                .setURI(source.getDirectory().toURI().toString())
+                .setBare(true)
+                .setDirectory(clone)
+                .call()
+                .close();
+    }
+}
@@ -0,0 +1,177 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RefAdvertiser;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.TestProtocol;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.util.FileUtils;
+import org.eclipse.jgit.util.io.NullOutputStream;
+import org.jenkinsci.plugins.gitserver.FileBackedHttpGitRepository;
+import org.jenkinsci.plugins.gitserver.RepositoryMaintenance;
+import org.jenkinsci.plugins.gitserver.SharedRepositoryCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ref advertisement and push latency of a {@link FileBackedHttpGitRepository} with one tag per build,
+ * with the refs in loose files and {@code packed-refs}, or in a reftable.
+ *
+ * <p>
+ * Each push adds a commit to {@code master} and a tag for it, going through the {@code ReceivePack}
+ * of {@link FileBackedHttpGitRepository} in-process, so the client side of the protocol is measured too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+public class RefStorageBenchmark {
+    private static final int BATCH = 100_000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int refs;
+
+    @Param({"files", "reftable"})
+    public String storage;
+
+    private Path tmp;
+    private Path workspace;
+    private Repository repo;
+    private Repository client;
+    private TestProtocol<Object> protocol;
+    private URIish uri;
+    private int pushes;
+
+    private static final class Workspace extends FileBackedHttpGitRepository {
+        Workspace(Path workspace) {
+            super(workspace);
+        }
+
+        @Override
+        public void checkPullPermission() {}
+
+        @Override
+        protected void checkPushPermission() {}
+    }
+
+    @Setup(Level.Trial)
+    public void createRepository() throws Exception {
+        tmp = Files.createTempDirectory("refs");
+        workspace = tmp.resolve("workspace");
+        Path gitDir = workspace.resolve(".git");
+        try (Repository r = GeneratedRepository.create(gitDir, 10)) {
+            StoredConfig config = r.getConfig();
+            config.setBoolean("core", null, "bare", false);
+            config.save();
+            GeneratedRepository.copy(gitDir, tmp.resolve("client.git"));
+            createTags(r, r.resolve("master"));
+            if (storage.equals("reftable")) {
+                RepositoryMaintenance.convertToReftable(r);
+            }
+            // as it would be once RepositoryMaintenance has been through it
+            RepositoryMaintenance.enableReachabilityIndexes(r);
+            Git.wrap(r).gc().call();
+        }
+
+        Workspace w = new Workspace(workspace);
+        repo = w.openRepository();
+        client = new FileRepositoryBuilder()
+                .setGitDir(tmp.resolve("client.git").toFile())
+                .setMustExist(true)
+                .build();
+        protocol = new TestProtocol<>(null, (req, db) -> w.createReceivePack(db));
+        Transport.register(protocol);
+        uri = protocol.register(new Object(), repo);
+    }
+
+    /**
+     * Tags the given commit {@link #refs} times, a batch at a time so that this doesn't take forever.
+     */
+    private void createTags(Repository r, ObjectId commit) throws IOException {
+        try (RevWalk rw = new RevWalk(r)) {
+            for (int start = 0; start < refs; start += BATCH) {
+                List<ReceiveCommand> commands = new ArrayList<>();
+                for (int i = start; i < Math.min(refs, start + BATCH); i++) {
+                    commands.add(new ReceiveCommand(ObjectId.zeroId(), commit, "refs/tags/build-" + i));
+                }
+                BatchRefUpdate u = r.getRefDatabase().newBatchUpdate();
+                u.setAtomic(true); // straight into packed-refs
+                u.disableRefLog();
+                u.addCommand(commands);
+                u.execute(rw, NullProgressMonitor.INSTANCE);
+                for (ReceiveCommand c : commands) {
+                    if (c.getResult() != ReceiveCommand.Result.OK) {
+                        throw new IOException(c.getRefName() + ": " + c.getResult());
+                    }
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository() throws Exception {
+        Transport.unregister(protocol);
+        client.close();
+        repo.close();
+        SharedRepositoryCache.get().invalidate(workspace);
+        FileUtils.delete(tmp.toFile(), FileUtils.RECURSIVE);
+    }
+
+    @Setup(Level.Invocation)
+    public void commit() throws Exception {
+        GeneratedRepository.appendCommits(client, 1);
+    }
+
+    @Benchmark
+    public void advertise() throws Exception {
+        new UploadPack(repo)
+                .sendAdvertisedRefs(new RefAdvertiser.PacketLineOutRefAdvertiser(
+                        new PacketLineOut(NullOutputStream.INSTANCE)));
+    }
+
+    @Benchmark
+    public void push() throws Exception {
+        pushes++;
+        Iterable<PushResult> results = Git.wrap(client)
+                .push()
+                .setRemote(uri.toString())
+                .setRefSpecs(
+                        new RefSpec("refs/heads/master:refs/heads/master"),
+                        new RefSpec("refs/heads/master:refs/tags/push-" + pushes))
+                .call();
+        for (PushResult r : results) {
+            for (RemoteRefUpdate u : r.getRemoteUpdates()) {
+                if (u.getStatus() != RemoteRefUpdate.Status.OK) {
+                    throw new IOException(u.getRemoteName() + ": " + u.getStatus());
+                }
+            }
+        }
+    }
+}
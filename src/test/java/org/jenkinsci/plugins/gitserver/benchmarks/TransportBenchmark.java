@@ -0,0 +1,319 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import hudson.ExtensionList;
+import hudson.model.RootAction;
+import hudson.model.User;
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.List;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.TransportCommand;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.transport.sshd.ServerKeyDatabase;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.eclipse.jgit.util.FileUtils;
+import org.jenkinsci.main.modules.cli.auth.ssh.PublicKeySignatureWriter;
+import org.jenkinsci.main.modules.cli.auth.ssh.UserPropertyImpl;
+import org.jenkinsci.main.modules.sshd.SSHD;
+import org.jenkinsci.plugins.gitserver.HttpGitRepository;
+import org.jenkinsci.plugins.gitserver.RepositoryMaintenance;
+import org.jenkinsci.plugins.gitserver.RepositoryResolver;
+import org.jenkinsci.plugins.gitserver.SharedRepositoryCache;
+import org.jenkinsci.plugins.gitserver.ssh.ReceivePackCommand;
+import org.jenkinsci.plugins.gitserver.ssh.UploadPackCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Clone, fetch and push through a real Jenkins, either over HTTP to {@link HttpGitRepository}
+ * or over SSH to {@link UploadPackCommand} and {@link ReceivePackCommand}.
+ *
+ * <p>
+ * The fetches and pushes transfer the last {@value #PUSHED} commits of the repository.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class TransportBenchmark {
+    private static final int PUSHED = 100;
+    private static final String USER = "benchmark";
+
+    public static class JenkinsState extends JmhBenchmarkState {
+        @Param({"small", "medium", "large"})
+        public String size;
+
+        @Param({"http", "ssh"})
+        public String transport;
+
+        private Path tmp;
+
+        /**
+         * Bare clone of {@code source.git} before the last commits, to start the fetches and pushes from.
+         */
+        private Path base;
+
+        /**
+         * Bare clone of all of {@code source.git}, to push from.
+         */
+        private Path full;
+
+        /**
+         * Where each invocation clones to, or fetches into.
+         */
+        private Path work;
+
+        private SshdSessionFactory ssh;
+
+        @Override
+        public void setup() throws Exception {
+            tmp = Files.createTempDirectory("transport");
+            try (Repository source = GeneratedRepository.create(
+                    tmp.resolve("source.git"), GeneratedRepository.commits(size))) {
+                RepositoryMaintenance.enableReachabilityIndexes(source);
+                Git.wrap(source).gc().call();
+                base = tmp.resolve("base.git");
+                cloneBare(source.getDirectory().toURI().toString(), base);
+                GeneratedRepository.appendCommits(source, PUSHED);
+                full = tmp.resolve("full.git");
+                cloneBare(source.getDirectory().toURI().toString(), full);
+            }
+
+            ServedRepository served = new ServedRepository(tmp.resolve("source.git"));
+            ServedRepository target = new ServedRepository(tmp.resolve("target.git"));
+            // the Git clients don't send crumbs; CSRFExclusionImpl is only about pushes
+            getJenkins().setCrumbIssuer(null);
+            getJenkins().getActions().add(served);
+            getJenkins().getActions().add(target);
+            ExtensionList.lookup(RepositoryResolver.class).add(new Resolver(List.of(served, target)));
+
+            if (transport.equals("ssh")) {
+                KeyPair keyPair = generateKeys(User.getOrCreateByIdOrFullName(USER));
+                SSHD server = SSHD.get();
+                server.setPort(0);
+                server.start();
+                ssh = new SshdSessionFactory() {
+                    @Override
+                    protected Iterable<KeyPair> getDefaultKeys(File sshDir) {
+                        return List.of(keyPair);
+                    }
+
+                    @Override
+                    protected ServerKeyDatabase getServerKeyDatabase(File homeDir, File sshDir) {
+                        return new AcceptAll();
+                    }
+                };
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            if (ssh != null) {
+                ssh.close();
+            }
+            SharedRepositoryCache.get().clear();
+            try {
+                FileUtils.delete(tmp.toFile(), FileUtils.RECURSIVE);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void prepare() throws Exception {
+            work = Files.createTempDirectory(tmp, "work");
+            // the fetches start from what the client had before, the pushes from what the server had
+            GeneratedRepository.copy(base, work.resolve("fetch.git"));
+            Path target = tmp.resolve("target.git");
+            SharedRepositoryCache.get().invalidate(target);
+            FileUtils.delete(target.toFile(), FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+            GeneratedRepository.copy(base, target);
+        }
+
+        @TearDown(Level.Invocation)
+        public void cleanUp() throws Exception {
+            FileUtils.delete(work.toFile(), FileUtils.RECURSIVE);
+        }
+
+        String uri(String repository) throws IOException {
+            if (transport.equals("ssh")) {
+                return "ssh://" + USER + "@localhost:" + SSHD.get().getActualPort() + "/" + repository;
+            }
+            return getJenkinsURL() + repository;
+        }
+
+        <C extends TransportCommand<C, ?>> C configure(C command) {
+            if (ssh != null) {
+                command.setTransportConfigCallback(t -> ((SshTransport) t).setSshSessionFactory(ssh));
+            }
+            return command;
+        }
+
+        private static void cloneBare(String uri, Path dir) throws Exception {
+            Git.cloneRepository()
+                    .setURI(uri)
+                    .setBare(true)
+                    .setDirectory(dir.toFile())
+                    .call()
+                    .close();
+        }
+    }
+
+    /**
+     * Serves one repository at the top of Jenkins, the way git-userContent does.
+     */
+    public static final class ServedRepository extends HttpGitRepository implements RootAction {
+        private final Path dir;
+
+        ServedRepository(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public Repository openRepository() throws IOException {
+            return SharedRepositoryCache.get()
+                    .borrow(dir, () -> new FileRepositoryBuilder()
+                            .setGitDir(dir.toFile())
+                            .setMustExist(true)
+                            .build());
+        }
+
+        @Override
+        public UploadPack createUploadPack(HttpServletRequest context, Repository db) {
+            return new UploadPack(db);
+        }
+
+        @Override
+        public ReceivePack createReceivePack(HttpServletRequest context, Repository db) {
+            return new ReceivePack(db);
+        }
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return null;
+        }
+
+        @Override
+        public String getUrlName() {
+            return dir.getFileName().toString();
+        }
+    }
+
+    /**
+     * Serves the same repositories over SSH.
+     */
+    private static final class Resolver extends RepositoryResolver {
+        private final List<ServedRepository> repositories;
+
+        Resolver(List<ServedRepository> repositories) {
+            this.repositories = repositories;
+        }
+
+        private ServedRepository find(String fullRepositoryName) {
+            for (ServedRepository r : repositories) {
+                if (fullRepositoryName.equals(r.getUrlName()) || fullRepositoryName.equals("/" + r.getUrlName())) {
+                    return r;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean isRepositoryClosedAfterTransfer() {
+            return true; // openRepository() borrows from SharedRepositoryCache
+        }
+
+        @Override
+        public ReceivePack createReceivePack(String fullRepositoryName) throws IOException {
+            ServedRepository r = find(fullRepositoryName);
+            return r == null ? null : new ReceivePack(r.openRepository());
+        }
+
+        @Override
+        public UploadPack createUploadPack(String fullRepositoryName) throws IOException {
+            ServedRepository r = find(fullRepositoryName);
+            return r == null ? null : new UploadPack(r.openRepository());
+        }
+    }
+
+    private static final class AcceptAll implements ServerKeyDatabase {
+        @Override
+        public List<PublicKey> lookup(String connectAddress, InetSocketAddress remoteAddress, Configuration config) {
+            return List.of();
+        }
+
+        @Override
+        public boolean accept(
+                String connectAddress,
+                InetSocketAddress remoteAddress,
+                PublicKey serverKey,
+                Configuration config,
+                CredentialsProvider provider) {
+            return true;
+        }
+    }
+
+    private static KeyPair generateKeys(User user) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String encodedPublicKey = "ssh-rsa " + new PublicKeySignatureWriter().asString(keyPair.getPublic());
+        user.addProperty(new UserPropertyImpl(encodedPublicKey));
+        return keyPair;
+    }
+
+    @Benchmark
+    public void cloneRepository(JenkinsState state) throws Exception {
+        state.configure(Git.cloneRepository())
+                .setURI(state.uri("source.git"))
+                .setBare(true)
+                .setDirectory(state.work.resolve("clone.git").toFile())
+                .call()
+                .close();
+    }
+
+    @Benchmark
+    public void fetch(JenkinsState state) throws Exception {
+        try (Git git = Git.open(state.work.resolve("fetch.git").toFile())) {
+            state.configure(git.fetch())
+                    .setRemote(state.uri("source.git"))
+                    .setRefSpecs(new RefSpec("+refs/heads/*:refs/remotes/origin/*"))
+                    .call();
+        }
+    }
+
+    @Benchmark
+    public void push(JenkinsState state) throws Exception {
+        try (Git git = Git.open(state.full.toFile())) {
+            state.configure(git.push())
+                    .setRemote(state.uri("target.git"))
+                    .setRefSpecs(new RefSpec("refs/heads/master:refs/heads/master"))
+                    .call();
+        }
+    }
+}
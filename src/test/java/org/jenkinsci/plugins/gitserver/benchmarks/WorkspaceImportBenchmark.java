@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.gitserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.FileUtils;
+import org.jenkinsci.plugins.gitserver.FileBackedHttpGitRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to import an existing directory into a new repository, as the first
+ * {@link FileBackedHttpGitRepository#openRepository()} on it does, compared to {@code git add . && git commit}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class WorkspaceImportBenchmark {
+    @Param({"100000"})
+    public int files;
+
+    @Param({"porcelain", "parallel"})
+    public String importer;
+
+    private Path tmp;
+    private Path workspace;
+
+    private static final class Workspace extends FileBackedHttpGitRepository {
+        Workspace(Path workspace) {
+            super(workspace);
+        }
+
+        void importContents(Repository r) throws IOException {
+            createInitialRepository(r);
+        }
+
+        @Override
+        protected void checkPushPermission() {}
+    }
+
+    @Setup(Level.Trial)
+    public void createWorkspace() throws Exception {
+        tmp = Files.createTempDirectory("import");
+        workspace = tmp.resolve("workspace");
+        int perDir = 1000;
+        for (int i = 0; i < files; i++) {
+            Path dir = workspace.resolve(String.format("dir%03d/sub%d", i / perDir, i % 10));
+            if (i % perDir < 10) {
+                Files.createDirectories(dir);
+            }
+            StringBuilder b = new StringBuilder();
+            for (int line = 0; line < 16; line++) {
+                b.append("file ").append(i).append(" line ").append(line).append(" of some generated content\n");
+            }
+            Files.writeString(dir.resolve("file" + i + ".txt"), b);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkspace() throws Exception {
+        FileUtils.delete(tmp.toFile(), FileUtils.RECURSIVE);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteRepository() throws Exception {
+        FileUtils.delete(workspace.resolve(Constants.DOT_GIT).toFile(), FileUtils.RECURSIVE);
+    }
+
+    @Benchmark
+    public void importWorkspace() throws Exception {
+        try (Repository r = new FileRepositoryBuilder().setWorkTree(workspace.toFile()).build()) {
+            if (importer.equals("parallel")) {
+                new Workspace(workspace).importContents(r);
+            } else {
+                r.create();
+                Git git = Git.wrap(r);
+                git.add().addFilepattern(".").call();
+                git.commit().setAuthor("Jenkins", "noreply@jenkins-ci.org").setMessage("Import").call();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.jenkinsci.plugins.gitserver.ssh;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class SshCommandExecutorTest {
+    @Test
+    void disabled() {
+        SshCommandExecutor e = new SshCommandExecutor(false, 1);
+        assertFalse(e.isEnabled());
+        assertFalse(e.isVirtual());
+    }
+
+    @Test
+    void runsCommands() throws Exception {
+        SshCommandExecutor e = new SshCommandExecutor(true, 1);
+        assertTrue(e.isEnabled());
+        assertEquals(Runtime.version().feature() >= 21, e.isVirtual());
+
+        // more commands than threads still all run, the pool just takes them in turn
+        String[] names = new String[1];
+        for (int i = 0; i < 3; i++) {
+            Future<?> f = e.submit("git-upload-pack foo.git", () -> {
+                names[0] = Thread.currentThread().getName();
+            });
+            f.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals("SSH command: git-upload-pack foo.git", names[0]);
+    }
+
+    @Test
+    void countsSessions() {
+        SshCommandExecutor e = new SshCommandExecutor(false, 1);
+        e.enter();
+        e.enter();
+        e.exit();
+        assertEquals(1, e.getActiveSessions());
+        assertEquals(2, e.getStartedSessions());
+    }
+}
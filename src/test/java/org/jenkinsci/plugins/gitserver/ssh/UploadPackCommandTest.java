@@ -0,0 +1,143 @@
+package org.jenkinsci.plugins.gitserver.ssh;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.User;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.transport.sshd.ServerKeyDatabase;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.jenkinsci.main.modules.cli.auth.ssh.PublicKeySignatureWriter;
+import org.jenkinsci.main.modules.cli.auth.ssh.UserPropertyImpl;
+import org.jenkinsci.main.modules.sshd.SSHD;
+import org.jenkinsci.plugins.gitserver.RepositoryResolver;
+import org.jenkinsci.plugins.gitserver.SharedRepositoryCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class UploadPackCommandTest {
+    private static final String USER = "tester";
+
+    @Test
+    void repositoryIsReleasedAfterFetch(@TempDir Path tmp, JenkinsRule j) throws Exception {
+        try (Git git = Git.init().setDirectory(tmp.resolve("source").toFile()).call()) {
+            git.commit().setMessage("first").call();
+            CountingResolver.dir = git.getRepository().getDirectory();
+        }
+        KeyPair keyPair = generateKeys(User.getOrCreateByIdOrFullName(USER));
+        SSHD server = SSHD.get();
+        server.setPort(0);
+        SshSessionFactory.setInstance(sessionFactory(keyPair));
+        try {
+            for (int i = 0; i < 3; i++) {
+                Git.cloneRepository()
+                        .setURI("ssh://" + USER + "@localhost:" + server.getActualPort() + "/counting.git")
+                        .setDirectory(tmp.resolve("clone" + i).toFile())
+                        .call()
+                        .close();
+            }
+        } finally {
+            SshSessionFactory.setInstance(null);
+        }
+
+        // once the cache gives up its own reference, nobody else should be holding on to the repository
+        SharedRepositoryCache.get().invalidate(CountingResolver.dir.toPath());
+        assertTrue(CountingResolver.repository.closed.await(10, TimeUnit.SECONDS), "repository was leaked");
+    }
+
+    private static final class CountingRepository extends FileRepository {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        CountingRepository(File gitDir) throws IOException {
+            super(gitDir);
+        }
+
+        @Override
+        protected void doClose() {
+            super.doClose();
+            closed.countDown();
+        }
+    }
+
+    @TestExtension("repositoryIsReleasedAfterFetch")
+    public static class CountingResolver extends RepositoryResolver {
+        static File dir;
+        static CountingRepository repository;
+
+        @Override
+        public ReceivePack createReceivePack(String fullRepositoryName) {
+            return null;
+        }
+
+        @Override
+        public boolean isRepositoryClosedAfterTransfer() {
+            return true;
+        }
+
+        @Override
+        public UploadPack createUploadPack(String fullRepositoryName) throws IOException {
+            if (!fullRepositoryName.endsWith("counting.git")) {
+                return null;
+            }
+            return new UploadPack(SharedRepositoryCache.get()
+                    .borrow(dir.toPath(), () -> repository = new CountingRepository(dir)));
+        }
+    }
+
+    private static SshdSessionFactory sessionFactory(KeyPair keyPair) {
+        return new SshdSessionFactory() {
+            @Override
+            protected Iterable<KeyPair> getDefaultKeys(File sshDir) {
+                return List.of(keyPair);
+            }
+
+            @Override
+            protected ServerKeyDatabase getServerKeyDatabase(File homeDir, File sshDir) {
+                return new ServerKeyDatabase() {
+                    @Override
+                    public List<PublicKey> lookup(
+                            String connectAddress, InetSocketAddress remoteAddress, Configuration config) {
+                        return List.of();
+                    }
+
+                    @Override
+                    public boolean accept(
+                            String connectAddress,
+                            InetSocketAddress remoteAddress,
+                            PublicKey serverKey,
+                            Configuration config,
+                            CredentialsProvider provider) {
+                        return true;
+                    }
+                };
+            }
+        };
+    }
+
+    private static KeyPair generateKeys(User user) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String encodedPublicKey = "ssh-rsa " + new PublicKeySignatureWriter().asString(keyPair.getPublic());
+        user.addProperty(new UserPropertyImpl(encodedPublicKey));
+        return keyPair;
+    }
+}